@@ -0,0 +1,211 @@
+package io.hyperfoil.furnace;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.WebApplicationException;
+
+import org.eclipse.microprofile.rest.client.inject.RestClient;
+import org.jboss.logging.Logger;
+
+import io.quarkus.runtime.Startup;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Node agent, deployed as a privileged DaemonSet instead of injecting a sidecar into every pod. The agent
+ * watches for pods labeled by the webhook on its node, registers them with the {@link Proxy} on their behalf
+ * and records each of them using <code>perf record -a -G &lt;pod cgroup&gt;</code>. Controller endpoints
+ * of a pod are exposed under <code>/agent/{namespace}/{pod}/controller</code>.
+ */
+@ApplicationScoped
+@Startup
+@Path("/agent")
+public class Agent {
+   private static final Logger log = Logger.getLogger(Agent.class);
+   static final String AGENT_LABEL = "furnace.agent";
+   private static final String NODE_NAME = System.getenv("NODE_NAME");
+   private static final String POD_IP = System.getenv("POD_IP");
+   private static final String SERVICE_ACCOUNT = "/var/run/secrets/kubernetes.io/serviceaccount";
+   private static final long DISCOVERY_PERIOD = TimeUnit.SECONDS.toMillis(Long.getLong("furnace.agent.discovery", 10));
+
+   @Inject
+   @RestClient
+   ProxyClient proxy;
+
+   private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+   private final Map<String, Controller> controllers = new HashMap<>();
+   // the controller captures the UID to find the pod cgroup, a pod recreated with the same name gets a new one
+   private final Map<String, String> uids = new HashMap<>();
+   private HttpClient client;
+   private int port = 12380;
+
+   @PostConstruct
+   public void init() {
+      if (!Util.getBooleanEnv("FURNACE_AGENT", false)) {
+         return;
+      }
+      if (NODE_NAME == null || POD_IP == null) {
+         log.error("Agent requires NODE_NAME and POD_IP to be set.");
+         return;
+      }
+      try {
+         port = Integer.parseInt(System.getenv("QUARKUS_HTTP_PORT"));
+      } catch (NumberFormatException e) {
+         // ignore
+      }
+      try {
+         client = HttpClient.newBuilder().sslContext(Util.trustingSslContext(Paths.get(SERVICE_ACCOUNT, "ca.crt"))).build();
+      } catch (GeneralSecurityException | IOException e) {
+         log.error("Failed to load service account CA certificate", e);
+         return;
+      }
+      log.infof("Discovering pods labeled %s on node %s", AGENT_LABEL, NODE_NAME);
+      executor.scheduleWithFixedDelay(this::discover, 0, DISCOVERY_PERIOD, TimeUnit.MILLISECONDS);
+   }
+
+   @PreDestroy
+   public synchronized void destroy() {
+      executor.shutdown();
+      controllers.values().forEach(Controller::destroy);
+   }
+
+   @Path("{namespace}/{pod}/controller")
+   public synchronized Controller controller(@PathParam("namespace") String namespace, @PathParam("pod") String pod) {
+      Controller controller = controllers.get(namespace + "/" + pod);
+      if (controller == null) {
+         throw new WebApplicationException("Pod " + namespace + "/" + pod + " is not recorded by this agent", 404);
+      }
+      return controller;
+   }
+
+   private void discover() {
+      JsonArray pods;
+      try {
+         pods = listPods();
+      } catch (Exception e) {
+         // any exception would cancel the periodic discovery
+         log.errorf(e, "Failed to list pods on node %s", NODE_NAME);
+         return;
+      }
+      Set<String> running = new HashSet<>();
+      for (Object item : pods) {
+         JsonObject pod = (JsonObject) item;
+         JsonObject metadata = pod.getJsonObject("metadata");
+         JsonObject status = pod.getJsonObject("status");
+         if (status == null || !"Running".equals(status.getString("phase"))) {
+            continue;
+         }
+         String namespace = metadata.getString("namespace");
+         String name = metadata.getString("name");
+         String uid = metadata.getString("uid");
+         String key = namespace + "/" + name;
+         running.add(key);
+         synchronized (this) {
+            String previousUid = uids.get(key);
+            // a busy controller is replaced once the recording of the previous pod is processed
+            if (previousUid != null && !previousUid.equals(uid) && !isBusy(controllers.get(key))) {
+               log.infof("Pod %s was recreated (uid %s, previously %s)", key, uid, previousUid);
+               controllers.remove(key).destroy();
+               uids.remove(key);
+            }
+            uids.putIfAbsent(key, uid);
+            controllers.computeIfAbsent(key, k -> {
+               log.infof("Recording pod %s (uid %s) from this node", key, uid);
+               File dir = new File("/out", key);
+               if (!dir.isDirectory() && !dir.mkdirs()) {
+                  log.errorf("Failed to create %s", dir);
+               }
+               // the pod cgroup survives container restarts
+               return new Controller(dir, namespace, name, () -> {
+                  String cgroup = Cgroups.podCgroup(uid);
+                  return cgroup == null ? null : List.of(cgroup);
+               }, true);
+            });
+         }
+         register(namespace, name);
+      }
+      synchronized (this) {
+         for (Iterator<Map.Entry<String, Controller>> iterator = controllers.entrySet().iterator(); iterator.hasNext(); ) {
+            Map.Entry<String, Controller> entry = iterator.next();
+            // let the processing finish, the registration expires anyway
+            if (running.contains(entry.getKey()) || isBusy(entry.getValue())) {
+               continue;
+            }
+            log.infof("Pod %s is gone", entry.getKey());
+            entry.getValue().destroy();
+            Util.deleteRecursively(new File("/out", entry.getKey()));
+            uids.remove(entry.getKey());
+            iterator.remove();
+         }
+      }
+   }
+
+   private static boolean isBusy(Controller controller) {
+      switch (controller.status()) {
+         case "perf record":
+         case AllocationTracing.STATUS:
+         case "perf script":
+         case "remote processing":
+         case "stackcollapse":
+         case "flamegraph":
+            return true;
+         default:
+            return false;
+      }
+   }
+
+   private void register(String namespace, String name) {
+      Proxy.Registration registration = Proxy.Registration.create(name, namespace, POD_IP, port, 0);
+      registration.path = "/agent/" + namespace + "/" + name;
+      try {
+         if (proxy.register(registration) <= 0) {
+            log.error("Registration " + registration + " was not accepted.");
+         }
+      } catch (Exception e) {
+         log.errorf(e, "Failed to register %s/%s", namespace, name);
+      }
+   }
+
+   private JsonArray listPods() throws IOException, InterruptedException {
+      String host = System.getenv("KUBERNETES_SERVICE_HOST");
+      if (host.indexOf(':') >= 0) {
+         host = "[" + host + "]";
+      }
+      URI uri = URI.create("https://" + host + ":" + System.getenv("KUBERNETES_SERVICE_PORT") + "/api/v1/pods" +
+            "?labelSelector=" + URLEncoder.encode(AGENT_LABEL + "=true", StandardCharsets.UTF_8) +
+            "&fieldSelector=" + URLEncoder.encode("spec.nodeName=" + NODE_NAME, StandardCharsets.UTF_8));
+      // the token is rotated, read it every time
+      String token = Files.readString(Paths.get(SERVICE_ACCOUNT, "token")).trim();
+      HttpRequest request = HttpRequest.newBuilder(uri).header("Authorization", "Bearer " + token).GET().build();
+      HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+      if (response.statusCode() != 200) {
+         throw new IOException("Unexpected response " + response.statusCode() + ": " + response.body());
+      }
+      return new JsonObject(response.body()).getJsonArray("items");
+   }
+}
@@ -0,0 +1,123 @@
+package io.hyperfoil.furnace;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import javax.ws.rs.WebApplicationException;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Native memory allocation profiling for processes outside of the JVM, e.g. C++ or Go services. Instead of
+ * <code>perf record</code> the controller runs <code>allocations.py</code> (a BCC script in the image) that traces
+ * <code>malloc</code> and friends through uprobes, or anonymous <code>mmap</code>/<code>munmap</code> syscalls,
+ * and sums up the bytes per stack in kernel maps; nothing is copied to the user space per allocation. When the
+ * tracing stops the script writes folded stacks and these become two charts in place of the sampled events:
+ * bytes still allocated at the end (the primary chart, for leaks) and allocation rate in bytes per second.
+ * <p>
+ * <code>ALLOCATION_SAMPLE_EVERY</code> traces only every n-th allocation on average to further reduce the overhead.
+ */
+class AllocationTracing {
+   private static final Logger log = Logger.getLogger(AllocationTracing.class);
+   private static final String SCRIPT = "/root/allocations.py";
+   private static final String SAMPLE_EVERY = System.getenv("ALLOCATION_SAMPLE_EVERY");
+   static final String STATUS = "tracing allocations";
+   static final String OUTSTANDING = "outstanding-bytes";
+   static final String RATE = "allocation-rate";
+   static final List<String> EVENTS = List.of(OUTSTANDING, RATE);
+   private static final List<String> MODES = List.of("malloc", "mmap");
+   private static final Map<String, String> FOLDED = Map.of(OUTSTANDING, "outstanding.folded", RATE, "allocated.folded");
+
+   static String mode(String mode) {
+      if (!MODES.contains(mode)) {
+         throw new WebApplicationException("Unknown allocation tracing mode: " + mode + ", use one of " + MODES, 400);
+      }
+      return mode;
+   }
+
+   /**
+    * @param pids Traced processes, in our PID namespace.
+    */
+   static List<String> command(String mode, List<String> pids, File dir) {
+      List<String> command = new ArrayList<>(Arrays.asList("python3", SCRIPT, "--mode", mode,
+            "--pids", String.join(",", pids), "--output", dir.toString()));
+      if (SAMPLE_EVERY != null) {
+         try {
+            command.add("--sample-every=" + Math.max(1, Integer.parseInt(SAMPLE_EVERY)));
+         } catch (NumberFormatException e) {
+            log.errorf("Cannot parse ALLOCATION_SAMPLE_EVERY=%s", SAMPLE_EVERY);
+         }
+      }
+      return command;
+   }
+
+   /**
+    * @return Unit of the chart, for <code>flamegraph.pl --countname</code>.
+    */
+   static String countName(String event) {
+      return RATE.equals(event) ? "bytes/s" : "bytes";
+   }
+
+   /**
+    * @return pprof sample type of the exported event.
+    */
+   static String sampleType(String event) {
+      return RATE.equals(event) ? "alloc_space" : "inuse_space";
+   }
+
+   /**
+    * @param collapsed Collapsed stacks of the event, as written by {@link #collapse}.
+    * @return Collapsed stacks of the event in bytes, for the exports; the allocation rate is kept in bytes
+    *         allocated over the whole tracing as well.
+    */
+   static File bytesFile(String event, File collapsed) {
+      return RATE.equals(event) ? new File(collapsed.getParentFile(), collapsed.getName().replace(".collapsed", ".bytes.collapsed")) : collapsed;
+   }
+
+   /**
+    * Reads the folded stacks written by the script, applies the stack transforms and writes the collapsed stacks
+    * of the event. The allocation rate is computed from the aggregated bytes and rounded to whole bytes per second,
+    * the resolution of the chart; stacks allocating less than 0.5 B/s are left out of it.
+    *
+    * @param duration Duration of the tracing in milliseconds, for the allocation rate.
+    */
+   static void collapse(File dir, String event, long duration, StackTransforms transforms, File target) throws IOException {
+      File folded = new File(dir, FOLDED.get(event));
+      File bytes = bytesFile(event, target);
+      try (CollapsedStacks stacks = new CollapsedStacks(transforms, dir);
+           BufferedReader reader = Files.newBufferedReader(folded.toPath(), StandardCharsets.UTF_8)) {
+         stacks.addAll(reader);
+         stacks.write(bytes);
+      }
+      if (RATE.equals(event)) {
+         writeRate(bytes, target, duration);
+      }
+   }
+
+   static void writeRate(File bytes, File target, long duration) throws IOException {
+      try (BufferedReader reader = Files.newBufferedReader(bytes.toPath(), StandardCharsets.UTF_8);
+           BufferedWriter writer = Files.newBufferedWriter(target.toPath(), StandardCharsets.UTF_8)) {
+         String line;
+         while ((line = reader.readLine()) != null) {
+            int lastSpace = line.lastIndexOf(' ');
+            if (lastSpace <= 0) {
+               continue;
+            }
+            long rate = Math.round(Long.parseLong(line.substring(lastSpace + 1).trim()) * 1000.0 / Math.max(1, duration));
+            if (rate > 0) {
+               writer.write(line, 0, lastSpace + 1);
+               writer.write(Long.toString(rate));
+               writer.newLine();
+            }
+         }
+      }
+   }
+}
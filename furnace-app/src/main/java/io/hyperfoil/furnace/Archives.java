@@ -0,0 +1,253 @@
+package io.hyperfoil.furnace;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Recordings and results travel between the sidecar and the processing workers (see {@link Workers}) as tar archives
+ * compressed with deflate. The fastest level is used: perf.data and binaries compress well even so, and the sidecar
+ * should not take CPU from the recorded pod.
+ */
+class Archives {
+   private static final int BUFFER_SIZE = 65536;
+
+   /**
+    * Starts <code>tar</code> and returns its compressed output. Closing the stream fails if <code>tar</code>
+    * did not archive all files.
+    *
+    * @param args Files to archive, possibly with <code>-C</code> options.
+    */
+   static InputStream pack(List<String> args) throws IOException {
+      List<String> command = new ArrayList<>(Arrays.asList("tar", "-c"));
+      command.addAll(args);
+      Process tar = new ProcessBuilder().command(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+      return new DeflaterInputStream(tar.getInputStream(), new Deflater(Deflater.BEST_SPEED), BUFFER_SIZE) {
+         private boolean closed;
+
+         @Override
+         public void close() throws IOException {
+            if (closed) {
+               return;
+            }
+            closed = true;
+            super.close();
+            // the deflater is not ours by default, DeflaterInputStream does not release it
+            def.end();
+            waitFor(tar);
+         }
+      };
+   }
+
+   /**
+    * Extracts compressed archive created by {@link #pack(List)} into the directory. The archive comes from another
+    * pod, entries that would be extracted outside of the directory are rejected before <code>tar</code> sees them.
+    */
+   static void unpack(InputStream compressed, File target) throws IOException {
+      Process tar = new ProcessBuilder().command("tar", "-x", "--no-same-owner", "-C", target.toString())
+            .redirectError(ProcessBuilder.Redirect.INHERIT).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+      Inflater inflater = new Inflater();
+      try (OutputStream output = new EntryCheck(tar.getOutputStream())) {
+         new InflaterInputStream(compressed, inflater, BUFFER_SIZE).transferTo(output);
+      } catch (IOException e) {
+         tar.destroy();
+         throw e;
+      } finally {
+         inflater.end();
+      }
+      waitFor(tar);
+   }
+
+   private static void waitFor(Process tar) throws IOException {
+      try {
+         int rc = tar.waitFor();
+         if (rc != 0) {
+            throw new IOException("Non-zero return code from tar: " + rc);
+         }
+      } catch (InterruptedException e) {
+         tar.destroy();
+         Thread.currentThread().interrupt();
+         throw new InterruptedIOException("Interrupted waiting for tar");
+      }
+   }
+
+   /**
+    * Parses the headers of the archive passing through and fails on absolute paths and <code>..</code> components.
+    * Only the entries written by <code>tar -c</code> in the default GNU format are accepted: {@link #pack(List)}
+    * dereferences symbolic links, so valid archives contain files, directories, hard links and long names. Other
+    * types (pax headers, sparse files...) could make <code>tar</code> see entry boundaries elsewhere than this check.
+    */
+   private static class EntryCheck extends FilterOutputStream {
+      private static final int BLOCK = 512;
+      // GNU long names are read into memory
+      private static final int MAX_LONG_NAME = 65536;
+
+      private final byte[] header = new byte[BLOCK];
+      private int headerLength;
+      // bytes of the current entry, including padding, that are not headers
+      private long skip;
+      private ByteArrayOutputStream longName;
+      private char longNameType;
+      // set by the GNU long name entries preceding the entry
+      private String path;
+      private String linkPath;
+
+      EntryCheck(OutputStream out) {
+         super(out);
+      }
+
+      @Override
+      public void write(int b) throws IOException {
+         write(new byte[]{ (byte) b }, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+         int position = off;
+         int end = off + len;
+         while (position < end) {
+            if (skip > 0) {
+               int n = (int) Math.min(skip, end - position);
+               if (longName != null) {
+                  longName.write(b, position, n);
+               }
+               skip -= n;
+               position += n;
+               if (skip == 0 && longName != null) {
+                  readLongName();
+               }
+            } else {
+               int n = Math.min(BLOCK - headerLength, end - position);
+               System.arraycopy(b, position, header, headerLength, n);
+               headerLength += n;
+               position += n;
+               if (headerLength == BLOCK) {
+                  headerLength = 0;
+                  checkHeader();
+               }
+            }
+         }
+         // the whole buffer is checked before tar gets any of it
+         out.write(b, off, len);
+      }
+
+      private void checkHeader() throws IOException {
+         boolean zero = true;
+         for (byte b : header) {
+            if (b != 0) {
+               zero = false;
+               break;
+            }
+         }
+         if (zero) {
+            // end of archive and padding
+            return;
+         }
+         char type = (char) header[156];
+         long size = size();
+         switch (type) {
+            case 'L':
+            case 'K':
+               if (size > MAX_LONG_NAME) {
+                  throw new IOException("Archive entry name too long: " + size + " bytes");
+               }
+               longName = new ByteArrayOutputStream((int) size);
+               longNameType = type;
+               skip = padded(size);
+               if (skip == 0) {
+                  readLongName();
+               }
+               return;
+            case '1':
+               checkPath(linkPath != null ? linkPath : string(157, 100));
+               // fall through
+            case '5':
+               // readers differ in whether these skip data, tar -c does not write any
+               if (size != 0) {
+                  throw new IOException("Unexpected data of archive entry " + name());
+               }
+               break;
+            case '0':
+            case '\0':
+               break;
+            default:
+               throw new IOException("Unsupported archive entry type '" + type + "': " + name());
+         }
+         checkPath(name());
+         path = null;
+         linkPath = null;
+         skip = padded(size);
+      }
+
+      private String name() {
+         return path != null ? path : string(0, 100);
+      }
+
+      private long size() throws IOException {
+         if ((header[124] & 0x80) != 0) {
+            // GNU base-256 encoding of large sizes
+            long size = header[124] & 0x7F;
+            for (int i = 125; i < 136; ++i) {
+               size = (size << 8) | (header[i] & 0xFF);
+            }
+            return size;
+         }
+         String octal = string(124, 12).trim();
+         try {
+            return octal.isEmpty() ? 0 : Long.parseLong(octal, 8);
+         } catch (NumberFormatException e) {
+            throw new IOException("Invalid size in archive header: " + octal);
+         }
+      }
+
+      private String string(int offset, int length) {
+         int end = offset;
+         while (end < offset + length && header[end] != 0) {
+            ++end;
+         }
+         return new String(header, offset, end - offset, StandardCharsets.ISO_8859_1);
+      }
+
+      private void readLongName() {
+         byte[] bytes = longName.toByteArray();
+         longName = null;
+         int end = 0;
+         while (end < bytes.length && bytes[end] != 0) {
+            ++end;
+         }
+         String name = new String(bytes, 0, end, StandardCharsets.ISO_8859_1);
+         if (longNameType == 'L') {
+            path = name;
+         } else {
+            linkPath = name;
+         }
+      }
+
+      private static long padded(long size) {
+         return (size + BLOCK - 1) / BLOCK * BLOCK;
+      }
+
+      private static void checkPath(String path) throws IOException {
+         if (path.startsWith("/")) {
+            throw new IOException("Absolute path in archive: " + path);
+         }
+         for (String component : path.split("/")) {
+            if (component.equals("..")) {
+               throw new IOException("Archive entry outside of the target directory: " + path);
+            }
+         }
+      }
+   }
+}
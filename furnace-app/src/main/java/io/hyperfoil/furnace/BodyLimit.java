@@ -0,0 +1,118 @@
+package io.hyperfoil.furnace;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.enterprise.event.Observes;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ResourceInfo;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.ext.Provider;
+
+import io.quarkus.vertx.http.runtime.filters.Filters;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.ext.web.RoutingContext;
+
+/**
+ * Limits request bodies to 10 MB, the default of <code>quarkus.http.limits.max-body-size</code>. That limit
+ * is raised for the recordings submitted to {@link Workers}, which are streamed to disk, but it applies to all
+ * routes; this keeps the rest of the endpoints at the default. Requests declaring a larger body are rejected
+ * before it is read, as Quarkus does, and the body of chunked requests is counted while being read.
+ */
+@Provider
+public class BodyLimit implements ContainerRequestFilter {
+   static final long MAX_BODY = 10 << 20;
+
+   @Context
+   ResourceInfo resourceInfo;
+
+   @Context
+   HttpServerRequest request;
+
+   void registerFilter(@Observes Filters filters) {
+      filters.register(this::checkLength, 100);
+   }
+
+   private void checkLength(RoutingContext ctx) {
+      String length = ctx.request().getHeader(HttpHeaders.CONTENT_LENGTH);
+      if (length != null && !ctx.normalizedPath().equals(Workers.PATH)) {
+         try {
+            if (Long.parseLong(length) > MAX_BODY) {
+               reject(ctx.request());
+               return;
+            }
+         } catch (NumberFormatException e) {
+            ctx.response().setStatusCode(400).end();
+            return;
+         }
+      }
+      ctx.next();
+   }
+
+   private static void reject(HttpServerRequest request) {
+      // the client would keep sending the body otherwise
+      request.response().putHeader(HttpHeaders.CONNECTION, "close").setStatusCode(413)
+            .endHandler(v -> request.connection().close()).end();
+   }
+
+   @Override
+   public void filter(ContainerRequestContext requestContext) {
+      Class<?> resourceClass = resourceInfo.getResourceClass();
+      if (resourceClass != null && Workers.class.isAssignableFrom(resourceClass)) {
+         return;
+      }
+      // chunked requests do not declare the length
+      requestContext.setEntityStream(new LimitedInputStream(requestContext.getEntityStream(), request));
+   }
+
+   /**
+    * Responds directly, the exception from reading the entity would turn into 400.
+    */
+   private static class LimitedInputStream extends FilterInputStream {
+      private final HttpServerRequest request;
+      private long read;
+
+      LimitedInputStream(InputStream in, HttpServerRequest request) {
+         super(in);
+         this.request = request;
+      }
+
+      @Override
+      public int read() throws IOException {
+         int b = super.read();
+         if (b >= 0) {
+            count(1);
+         }
+         return b;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+         int n = super.read(b, off, len);
+         if (n > 0) {
+            count(n);
+         }
+         return n;
+      }
+
+      @Override
+      public long skip(long n) throws IOException {
+         long skipped = super.skip(n);
+         count(skipped);
+         return skipped;
+      }
+
+      private void count(long n) throws IOException {
+         read += n;
+         if (read > MAX_BODY) {
+            if (!request.response().ended()) {
+               reject(request);
+            }
+            throw new IOException("Request body exceeds " + MAX_BODY + " bytes");
+         }
+      }
+   }
+}
@@ -0,0 +1,181 @@
+package io.hyperfoil.furnace;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Locates cgroups for <code>perf record -G</code>. Perf resolves the cgroup name relative to the mount point
+ * of the <code>perf_event</code> controller (cgroup v1) or of the unified hierarchy (cgroup v2).
+ * <p>
+ * The sidecar sees only its own cgroup in <code>/sys/fs/cgroup</code> and needs it writable for podman, therefore
+ * the webhook mounts the host hierarchy to <code>/host/sys/fs/cgroup</code> and {@link #withHostHierarchy(List)}
+ * runs perf in a private mount namespace where the host hierarchy replaces <code>/sys/fs/cgroup</code>.
+ * The node agent mounts the host hierarchy directly to <code>/sys/fs/cgroup</code>.
+ */
+class Cgroups {
+   private static final File HOST_MOUNT = new File("/host/sys/fs/cgroup");
+   private static final File DEFAULT_MOUNT = new File("/sys/fs/cgroup");
+   // the deepest pod cgroups are kubepods.slice/kubepods-burstable.slice/kubepods-burstable-pod<uid>.slice
+   private static final int MAX_DEPTH = 3;
+
+   static File root() {
+      File mount = HOST_MOUNT.isDirectory() ? HOST_MOUNT : DEFAULT_MOUNT;
+      File v1 = new File(mount, "perf_event");
+      return v1.isDirectory() ? v1 : mount;
+   }
+
+   /**
+    * @param cgroup Path relative to {@link #root()}.
+    * @return CPU time consumed by the cgroup in nanoseconds or -1 if it cannot be read.
+    */
+   static long cpuUsage(String cgroup) {
+      File mount = HOST_MOUNT.isDirectory() ? HOST_MOUNT : DEFAULT_MOUNT;
+      try {
+         if (new File(mount, "perf_event").isDirectory()) {
+            return Long.parseLong(Files.readString(new File(mount, "cpuacct/" + cgroup + "/cpuacct.usage").toPath()).trim());
+         }
+         for (String line : Files.readAllLines(new File(mount, cgroup + "/cpu.stat").toPath())) {
+            if (line.startsWith("usage_usec ")) {
+               return Long.parseLong(line.substring(11).trim()) * 1000;
+            }
+         }
+      } catch (IOException | NumberFormatException e) {
+         // the cgroup is gone
+      }
+      return -1;
+   }
+
+   /**
+    * @param cgroup Path relative to {@link #root()}.
+    * @return Percentage of the last 10 seconds when some tasks in the cgroup were stalled waiting for CPU,
+    *         or -1 if pressure stall information is not available (requires cgroup v2).
+    */
+   static double cpuPressure(String cgroup) {
+      File mount = HOST_MOUNT.isDirectory() ? HOST_MOUNT : DEFAULT_MOUNT;
+      try {
+         for (String line : Files.readAllLines(new File(mount, cgroup + "/cpu.pressure").toPath())) {
+            // some avg10=1.23 avg60=0.50 avg300=0.10 total=123456
+            if (line.startsWith("some ")) {
+               for (String part : line.split(" ")) {
+                  if (part.startsWith("avg10=")) {
+                     return Double.parseDouble(part.substring(6));
+                  }
+               }
+            }
+         }
+      } catch (IOException | NumberFormatException e) {
+         // not supported
+      }
+      return -1;
+   }
+
+   static List<String> withHostHierarchy(List<String> command) {
+      if (!HOST_MOUNT.isDirectory()) {
+         return command;
+      }
+      // unshare makes the new mount namespace private so the pod does not see the bind mount
+      List<String> wrapped = new ArrayList<>(Arrays.asList("unshare", "--mount", "--", "sh", "-c",
+            "mount --rbind " + HOST_MOUNT + " " + DEFAULT_MOUNT + " && exec \"$@\"", "sh"));
+      wrapped.addAll(command);
+      return wrapped;
+   }
+
+   /**
+    * Finds cgroups of all containers in the pod except the one running this process, so that the sidecar
+    * does not record itself. Processes forked later in these containers are recorded, too.
+    *
+    * @return Paths relative to {@link #root()} or <code>null</code> if the pod cgroup cannot be found.
+    */
+   static List<String> containerCgroups(String podUid) {
+      String pod = podCgroup(podUid);
+      if (pod == null) {
+         return null;
+      }
+      File[] children = new File(root(), pod).listFiles(File::isDirectory);
+      if (children == null) {
+         return List.of(pod);
+      }
+      String self = String.valueOf(ProcessHandle.current().pid());
+      List<String> cgroups = new ArrayList<>();
+      for (File child : children) {
+         if (!containsProcess(child, self)) {
+            cgroups.add(pod + "/" + child.getName());
+         }
+      }
+      return cgroups.isEmpty() ? List.of(pod) : cgroups;
+   }
+
+   /**
+    * @param cgroups Paths relative to {@link #root()}.
+    * @return PIDs of processes in the cgroups and their descendants, in our PID namespace.
+    */
+   static List<String> processes(List<String> cgroups) {
+      List<String> pids = new ArrayList<>();
+      Deque<File> queue = new ArrayDeque<>();
+      for (String cgroup : cgroups) {
+         queue.add(new File(root(), cgroup));
+      }
+      while (!queue.isEmpty()) {
+         File dir = queue.poll();
+         try {
+            pids.addAll(Files.readAllLines(new File(dir, "cgroup.procs").toPath()));
+         } catch (IOException e) {
+            // the cgroup is gone
+         }
+         File[] children = dir.listFiles(File::isDirectory);
+         if (children != null) {
+            queue.addAll(Arrays.asList(children));
+         }
+      }
+      return pids;
+   }
+
+   private static boolean containsProcess(File cgroup, String pid) {
+      try {
+         // PIDs are translated to our PID namespace, the pod shares it with the sidecar
+         return Files.readAllLines(new File(cgroup, "cgroup.procs").toPath()).contains(pid);
+      } catch (IOException e) {
+         return false;
+      }
+   }
+
+   /**
+    * Finds the cgroup of a pod by its UID. Kubelet names the pod cgroup <code>pod&lt;uid&gt;</code> with cgroupfs
+    * driver and <code>kubepods-&lt;qos&gt;-pod&lt;uid with underscores&gt;.slice</code> with systemd driver.
+    *
+    * @return Path relative to {@link #root()} or <code>null</code> if the cgroup does not exist (yet).
+    */
+   static String podCgroup(String uid) {
+      if (uid == null) {
+         return null;
+      }
+      String cgroupfsName = "pod" + uid;
+      String systemdName = "pod" + uid.replace('-', '_') + ".slice";
+      File root = root();
+      Deque<File> queue = new ArrayDeque<>();
+      queue.add(root);
+      while (!queue.isEmpty()) {
+         File dir = queue.poll();
+         File[] children = dir.listFiles(File::isDirectory);
+         if (children == null) {
+            continue;
+         }
+         for (File child : children) {
+            String name = child.getName();
+            if (name.equals(cgroupfsName) || name.endsWith(systemdName)) {
+               return root.toPath().relativize(child.toPath()).toString();
+            }
+            if (child.toPath().getNameCount() - root.toPath().getNameCount() < MAX_DEPTH) {
+               queue.add(child);
+            }
+         }
+      }
+      return null;
+   }
+}
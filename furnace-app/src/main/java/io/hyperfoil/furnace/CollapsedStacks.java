@@ -0,0 +1,475 @@
+package io.hyperfoil.furnace;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Aggregates lines in the format produced by <code>stackcollapse-perf.pl</code>, summing up
+ * the sample counts of identical stacks. Stacks are passed through {@link StackTransforms} before
+ * aggregation.
+ * <p>
+ * Frames are interned to integer IDs and stacks are kept as arrays of these IDs. When the estimated memory
+ * usage exceeds the budget (<code>COLLAPSE_MEMORY</code> in MB, by default a quarter of the heap) the stacks
+ * are written to a sorted run file in the spill directory and the memory is released; the runs are merged
+ * by streaming when the stacks are {@link #write(File) written}. The output is sorted by stack.
+ * <p>
+ * The budget is shared by all aggregates (the events of a recording, the live chart and the pre-trigger samples)
+ * unless given explicitly; {@link #close() close} the aggregate to return its memory to the budget.
+ */
+class CollapsedStacks implements Closeable {
+   private static final Logger log = Logger.getLogger(CollapsedStacks.class);
+   private static final String COLLAPSE_MEMORY = System.getenv("COLLAPSE_MEMORY");
+   // runs are compacted into one when there are too many of them to merge at once
+   private static final int MAX_RUNS = 64;
+   private static final int INITIAL_CAPACITY = 1024;
+   // rough JVM object sizes: interned frame (String, entries in the map and list) and stack array header
+   private static final long FRAME_OVERHEAD = 120;
+   private static final long ARRAY_OVERHEAD = 16;
+   // per slot: reference to the stack, its count and the reference in the array sorted on spill
+   private static final long SLOT_SIZE = 24;
+   private static final MemoryBudget SHARED_BUDGET = new MemoryBudget(budget(COLLAPSE_MEMORY));
+
+   private final StackTransforms transforms;
+   private final File spillDir;
+   private final MemoryBudget budget;
+   private final Map<String, Integer> frameIds = new HashMap<>();
+   private final List<String> frames = new ArrayList<>();
+   private final List<File> runs = new ArrayList<>();
+   private final StringBuilder line = new StringBuilder();
+   private String previous;
+   private int[] previousIds;
+   private int[] previousEnds;
+   private int[][] table = new int[INITIAL_CAPACITY][];
+   private long[] counts = new long[INITIAL_CAPACITY];
+   private int size;
+   private long frameBytes;
+   private long stackBytes;
+   // memory accounted in the budget
+   private long reserved;
+   private long samples;
+
+   CollapsedStacks(File spillDir) {
+      this(new StackTransforms(List.of()), spillDir);
+   }
+
+   CollapsedStacks(StackTransforms transforms, File spillDir) {
+      this(transforms, spillDir, SHARED_BUDGET);
+   }
+
+   /**
+    * @param budget Memory budget in bytes of this aggregate alone.
+    */
+   CollapsedStacks(StackTransforms transforms, File spillDir, long budget) {
+      this(transforms, spillDir, new MemoryBudget(budget));
+   }
+
+   CollapsedStacks(StackTransforms transforms, File spillDir, MemoryBudget budget) {
+      this.transforms = transforms;
+      this.spillDir = spillDir;
+      this.budget = budget;
+   }
+
+   static long budget(String configured) {
+      if (configured != null && !configured.isBlank()) {
+         try {
+            return Long.parseLong(configured.trim()) << 20;
+         } catch (NumberFormatException e) {
+            log.errorf("Cannot parse COLLAPSE_MEMORY=%s", configured);
+         }
+      }
+      return Runtime.getRuntime().maxMemory() / 4;
+   }
+
+   void add(String line) throws IOException {
+      int lastSpace = line.lastIndexOf(' ');
+      if (lastSpace <= 0) {
+         return;
+      }
+      try {
+         long count = Long.parseLong(line.substring(lastSpace + 1).trim());
+         String stack = transforms.apply(line.substring(0, lastSpace));
+         if (stack != null) {
+            addTransformed(stack, count);
+         }
+      } catch (NumberFormatException e) {
+         log.errorf("Invalid collapsed stack: %s", line);
+      }
+   }
+
+   void addAll(BufferedReader reader) throws IOException {
+      String line;
+      while ((line = reader.readLine()) != null) {
+         add(line);
+      }
+   }
+
+   /**
+    * Adds already transformed stacks, with sample counts multiplied (e.g. to compensate for lower frequency).
+    */
+   void addAll(CollapsedStacks other, long multiplier) throws IOException {
+      other.forEach((stack, count) -> addTransformed(stack, count * multiplier));
+   }
+
+   void read(File file) throws IOException {
+      try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+         addAll(reader);
+      }
+   }
+
+   long samples() {
+      return samples;
+   }
+
+   void write(File file) throws IOException {
+      write(file, this::forEach);
+   }
+
+   /**
+    * Deletes the spilled runs and returns the memory to the budget.
+    */
+   @Override
+   public void close() {
+      deleteRuns();
+      clearMemory();
+      reserve(0);
+   }
+
+   private void deleteRuns() {
+      for (File run : runs) {
+         if (!run.delete()) {
+            log.errorf("Failed to delete %s", run);
+         }
+      }
+      runs.clear();
+   }
+
+   private void addTransformed(String stack, long count) throws IOException {
+      int numFrames = 1;
+      for (int i = stack.indexOf(';'); i >= 0; i = stack.indexOf(';', i + 1)) {
+         ++numFrames;
+      }
+      int[] ids = new int[numFrames];
+      // the input is usually sorted, frames shared with the previous stack need not be looked up again
+      int reused = 0;
+      if (previous != null) {
+         int common = 0;
+         int length = Math.min(stack.length(), previous.length());
+         while (common < length && stack.charAt(common) == previous.charAt(common)) {
+            ++common;
+         }
+         while (reused < previousIds.length && reused < numFrames && previousEnds[reused] < common) {
+            ids[reused] = previousIds[reused];
+            ++reused;
+         }
+      }
+      int[] ends = new int[numFrames];
+      int start = 0;
+      if (reused > 0) {
+         System.arraycopy(previousEnds, 0, ends, 0, reused);
+         start = ends[reused - 1] + 1;
+      }
+      for (int i = reused; i < numFrames; ++i) {
+         int end = stack.indexOf(';', start);
+         if (end < 0) {
+            end = stack.length();
+         }
+         ids[i] = frameId(stack.substring(start, end));
+         ends[i] = end;
+         start = end + 1;
+      }
+      previous = stack;
+      previousIds = ids;
+      previousEnds = ends;
+      int slot = slot(ids);
+      if (table[slot] == null) {
+         table[slot] = ids;
+         stackBytes += ARRAY_OVERHEAD + 4L * ids.length;
+         ++size;
+      }
+      counts[slot] += count;
+      samples += count;
+      if (size > table.length * 3 / 4) {
+         resize();
+      }
+      long usage = frameBytes + stackBytes + SLOT_SIZE * table.length;
+      reserve(usage);
+      if (budget.exceeded(usage)) {
+         spill();
+      }
+   }
+
+   private int frameId(String frame) {
+      Integer id = frameIds.get(frame);
+      if (id == null) {
+         id = frames.size();
+         frameIds.put(frame, id);
+         frames.add(frame);
+         frameBytes += FRAME_OVERHEAD + frame.length();
+      }
+      return id;
+   }
+
+   private int slot(int[] ids) {
+      int mask = table.length - 1;
+      int slot = mix(Arrays.hashCode(ids)) & mask;
+      while (table[slot] != null && !Arrays.equals(table[slot], ids)) {
+         slot = (slot + 1) & mask;
+      }
+      return slot;
+   }
+
+   private static int mix(int hash) {
+      return hash ^ (hash >>> 16);
+   }
+
+   private void resize() {
+      int[][] oldTable = table;
+      long[] oldCounts = counts;
+      table = new int[oldTable.length * 2][];
+      counts = new long[oldTable.length * 2];
+      for (int i = 0; i < oldTable.length; ++i) {
+         if (oldTable[i] != null) {
+            int slot = slot(oldTable[i]);
+            table[slot] = oldTable[i];
+            counts[slot] = oldCounts[i];
+         }
+      }
+   }
+
+   /**
+    * Writes the stacks in memory to a sorted run and releases the memory.
+    */
+   private void spill() throws IOException {
+      if (size == 0) {
+         return;
+      }
+      File run = File.createTempFile("perf.collapsed.", ".run", spillDir);
+      runs.add(run);
+      write(run, this::forEachInMemory);
+      log.debugf("Spilled %d stacks (%d frames) to %s", size, frames.size(), run);
+      clearMemory();
+      reserve(SLOT_SIZE * table.length);
+      if (runs.size() >= MAX_RUNS) {
+         File compacted = File.createTempFile("perf.collapsed.", ".run", spillDir);
+         write(compacted, consumer -> merge(runs, consumer));
+         deleteRuns();
+         runs.add(compacted);
+      }
+   }
+
+   private void clearMemory() {
+      frameIds.clear();
+      frames.clear();
+      previous = null;
+      previousIds = null;
+      previousEnds = null;
+      table = new int[INITIAL_CAPACITY][];
+      counts = new long[INITIAL_CAPACITY];
+      size = 0;
+      frameBytes = 0;
+      stackBytes = 0;
+   }
+
+   private void reserve(long usage) {
+      if (usage != reserved) {
+         budget.update(reserved, usage);
+         reserved = usage;
+      }
+   }
+
+   private static void write(File file, StackSource source) throws IOException {
+      try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8))) {
+         source.forEach((stack, count) -> {
+            writer.print(stack);
+            writer.print(' ');
+            writer.println(count);
+         });
+         // PrintWriter swallows exceptions, a truncated run would lose samples silently
+         if (writer.checkError()) {
+            throw new IOException("Failed to write " + file);
+         }
+      }
+   }
+
+   private void forEach(StackConsumer consumer) throws IOException {
+      if (runs.isEmpty()) {
+         forEachInMemory(consumer);
+      } else {
+         spill();
+         merge(runs, consumer);
+      }
+   }
+
+   /**
+    * Sorted by frames (frame-wise lexicographic order, shorter stacks first), which is the order of the
+    * stack strings if ';' sorted before any other character.
+    */
+   private void forEachInMemory(StackConsumer consumer) throws IOException {
+      Integer[] byName = new Integer[frames.size()];
+      for (int i = 0; i < byName.length; ++i) {
+         byName[i] = i;
+      }
+      Arrays.sort(byName, Comparator.comparing(frames::get));
+      int[] rank = new int[byName.length];
+      for (int i = 0; i < byName.length; ++i) {
+         rank[byName[i]] = i;
+      }
+      int[][] sorted = new int[size][];
+      int n = 0;
+      for (int[] stack : table) {
+         if (stack != null) {
+            sorted[n++] = stack;
+         }
+      }
+      Arrays.sort(sorted, (s1, s2) -> {
+         int length = Math.min(s1.length, s2.length);
+         for (int i = 0; i < length; ++i) {
+            if (s1[i] != s2[i]) {
+               return Integer.compare(rank[s1[i]], rank[s2[i]]);
+            }
+         }
+         return Integer.compare(s1.length, s2.length);
+      });
+      for (int[] stack : sorted) {
+         line.setLength(0);
+         for (int id : stack) {
+            if (line.length() > 0) {
+               line.append(';');
+            }
+            line.append(frames.get(id));
+         }
+         consumer.accept(line.toString(), counts[slot(stack)]);
+      }
+   }
+
+   private static void merge(List<File> runs, StackConsumer consumer) throws IOException {
+      PriorityQueue<Run> queue = new PriorityQueue<>(runs.size(), (r1, r2) -> compareStacks(r1.stack, r2.stack));
+      try {
+         for (File file : runs) {
+            Run run = new Run(Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8));
+            if (run.next()) {
+               queue.add(run);
+            } else {
+               run.reader.close();
+            }
+         }
+         while (!queue.isEmpty()) {
+            Run run = queue.poll();
+            String stack = run.stack;
+            long count = run.count;
+            while (!queue.isEmpty() && queue.peek().stack.equals(stack)) {
+               Run other = queue.poll();
+               count += other.count;
+               if (other.next()) {
+                  queue.add(other);
+               } else {
+                  other.reader.close();
+               }
+            }
+            consumer.accept(stack, count);
+            if (run.next()) {
+               queue.add(run);
+            } else {
+               run.reader.close();
+            }
+         }
+      } finally {
+         for (Run run : queue) {
+            run.reader.close();
+         }
+      }
+   }
+
+   private static int compareStacks(String s1, String s2) {
+      int length = Math.min(s1.length(), s2.length());
+      for (int i = 0; i < length; ++i) {
+         char c1 = s1.charAt(i);
+         char c2 = s2.charAt(i);
+         if (c1 != c2) {
+            return c1 == ';' ? -1 : c2 == ';' ? 1 : Character.compare(c1, c2);
+         }
+      }
+      return Integer.compare(s1.length(), s2.length());
+   }
+
+   private interface StackSource {
+      void forEach(StackConsumer consumer) throws IOException;
+   }
+
+   private interface StackConsumer {
+      void accept(String stack, long count) throws IOException;
+   }
+
+   private static class Run {
+      final BufferedReader reader;
+      String stack;
+      long count;
+
+      Run(BufferedReader reader) {
+         this.reader = reader;
+      }
+
+      boolean next() throws IOException {
+         String line = reader.readLine();
+         if (line == null) {
+            return false;
+         }
+         int lastSpace = line.lastIndexOf(' ');
+         stack = line.substring(0, lastSpace);
+         count = Long.parseLong(line.substring(lastSpace + 1));
+         return true;
+      }
+   }
+
+   /**
+    * Memory shared by several aggregates. When the total exceeds the limit the aggregates holding at least their
+    * fair share spill on their next addition; smaller ones keep growing rather than spilling tiny runs.
+    */
+   static class MemoryBudget {
+      private final long limit;
+      private final AtomicLong used = new AtomicLong();
+      // aggregates with memory reserved
+      private final AtomicInteger holders = new AtomicInteger();
+
+      MemoryBudget(long limit) {
+         this.limit = limit;
+      }
+
+      long used() {
+         return used.get();
+      }
+
+      private void update(long from, long to) {
+         if (from == 0) {
+            holders.incrementAndGet();
+         } else if (to == 0) {
+            holders.decrementAndGet();
+         }
+         used.addAndGet(to - from);
+      }
+
+      /**
+       * @return True if the aggregate using given amount of memory should spill.
+       */
+      private boolean exceeded(long usage) {
+         long total = used.get();
+         return total > limit && usage * holders.get() >= total;
+      }
+   }
+}
@@ -1,20 +1,37 @@
 package io.hyperfoil.furnace;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
@@ -27,12 +44,14 @@ import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
 import org.eclipse.microprofile.rest.client.inject.RestClient;
 import org.jboss.logging.Logger;
 
 import io.quarkus.runtime.Startup;
+import io.quarkus.runtime.annotations.RegisterForReflection;
 
 @ApplicationScoped
 @Startup
@@ -41,31 +60,91 @@ public class Controller {
    private static final Logger log = Logger.getLogger(Controller.class);
    private static final String POD_NAME = System.getenv("POD_NAME");
    private static final String POD_NAMESPACE = System.getenv("POD_NAMESPACE");
+   private static final String POD_UID = System.getenv("POD_UID");
+   private static final boolean SIDECAR = System.getenv("FURNACE_SIDECAR") != null;
    private static final String AUTOSTART = System.getenv("AUTOSTART");
    private static final String AUTOSTART_DELAY = System.getenv("AUTOSTART_DELAY");
    private static final String AUTOSTOP = System.getenv("AUTOSTOP");
    private static final String AUTORESTART = System.getenv("AUTORESTART");
    private static final String PROCESS_PATTERN = System.getenv("PROCESS_PATTERN");
    private static final String PULL_IMAGE = System.getenv("PULL_IMAGE");
+   private static final String LIVE_INTERVAL = System.getenv("LIVE_INTERVAL");
+   private static final String SCRIPT_PARALLELISM = System.getenv("SCRIPT_PARALLELISM");
+   private static final String SCRIPT_SHARDING = System.getenv("SCRIPT_SHARDING");
+   private static final String EVENTS = System.getenv("EVENTS");
+   private static final int FREQUENCY = 99;
+   // divides FREQUENCY so that the pre-trigger samples can be scaled to the same weight
+   private static final int BACKGROUND_FREQUENCY = 33;
+   private static final long SCHEDULE_SPIN = 20;
+   // time to resolve the scheduled recording before it starts
+   private static final long SCHEDULE_PREPARE = 1000;
+   // amount of perf script output passed to one stackcollapse-perf.pl process
+   private static final long COLLAPSE_CHUNK = 64 << 20;
+   private static final RemoteProcessing REMOTE = RemoteProcessing.create();
 
    @Inject
    @RestClient
    ProxyClient proxy;
 
+   private final File dir;
+   private final String namespace;
+   private final String podName;
+   private final Supplier<List<String>> cgroups;
+   private final boolean requireCgroups;
    private final ScheduledExecutorService leaseExecutor = Executors.newSingleThreadScheduledExecutor();
    private final ScheduledExecutorService timedExecutor = Executors.newSingleThreadScheduledExecutor();
    private final ExecutorService processingExecutor = Executors.newSingleThreadExecutor();
+   private final ScheduledExecutorService liveExecutor = Executors.newSingleThreadScheduledExecutor();
+   // spins until the scheduled start and stop, separate from the timedExecutor running triggers and background refresh
+   private final ScheduledExecutorService scheduleExecutor = Executors.newSingleThreadScheduledExecutor();
    private String mountPoint;
+   private String kallsyms = "/proc/kallsyms";
+   private File scripts = new File("/scripts");
+   private PerfMaps perfMaps;
    private Process perfRecord;
-   private Process perfScript;
-   private Process stackCollapse;
+   private final List<Process> perfScripts = new ArrayList<>();
+   private final List<File> scriptShards = new ArrayList<>();
+   private final List<Process> stackCollapses = Collections.synchronizedList(new ArrayList<>());
    private Process flamegraph;
+   private boolean remoteProcessing;
    private String error;
    private long recordStart, recordEnd;
+   private long scheduledStart, scheduledStop;
+   // pending tasks of a scheduled recording, cancelled by stop or a manual start
+   private ScheduledFuture<?> scheduledLaunch, scheduledEnd;
+   private Pattern threadFilter;
+   private List<String> events = List.of(PerfEvents.DEFAULT);
+   private List<String> backgroundEvents = List.of(PerfEvents.DEFAULT);
+   // mode of allocation tracing, null when sampling CPU
+   private String allocations;
+   private Triggers triggers;
+   private Process backgroundRecord;
+   private LiveRecording preTrigger;
+   private boolean triggered;
+   private LiveRecording live;
+   private ScheduledFuture<?> liveRefresh;
+
+   public Controller() {
+      this(new File("/out"), POD_NAMESPACE, POD_NAME, () -> POD_UID == null ? null : Cgroups.containerCgroups(POD_UID), false);
+   }
+
+   /**
+    * @param cgroups Supplies paths of the cgroups to record, relative to the cgroup filesystem mount, or <code>null</code>
+    *                when these cannot be found.
+    * @param requireCgroups When set the recording fails if the cgroups cannot be found, otherwise it falls back
+    *                       to <code>processPattern</code> or recording the whole host.
+    */
+   Controller(File dir, String namespace, String podName, Supplier<List<String>> cgroups, boolean requireCgroups) {
+      this.dir = dir;
+      this.namespace = namespace;
+      this.podName = podName;
+      this.cgroups = cgroups;
+      this.requireCgroups = requireCgroups;
+   }
 
    @PostConstruct
    public synchronized void init() {
-      if (System.getenv().get("FURNACE_SIDECAR") == null) {
+      if (!SIDECAR) {
          return;
       }
       if (AUTOSTART != null) {
@@ -87,7 +166,7 @@ public class Controller {
                }
                if (restart != null) {
                   timedExecutor.scheduleWithFixedDelay(() -> stop(true, 0, null, true).whenComplete(
-                              (ignore1, ignore2) -> start(null, true, 0, null, true, null)),
+                              (ignore1, ignore2) -> start(null, true, 0, null, true, null, false, null, null)),
                         restart, restart, TimeUnit.SECONDS);
                }
             }
@@ -101,15 +180,20 @@ public class Controller {
             }
             if (delay != null) {
                Integer myStop = stop;
-               timedExecutor.schedule(() -> start(myStop, true, 0, null, true, null), delay, TimeUnit.SECONDS);
+               timedExecutor.schedule(() -> start(myStop, true, 0, null, true, null, false, null, null), delay, TimeUnit.SECONDS);
             } else {
-               start(stop, true, 0, null, true, null);
+               start(stop, true, 0, null, true, null, false, null, null);
             }
          }
       }
       if (mountPoint == null) {
          mountMainImage(System.getenv("FURNACE_MAIN_IMAGE"));
       }
+      triggers = Triggers.create(this, cgroups);
+      if (triggers != null) {
+         triggers.start(timedExecutor);
+         startBackground();
+      }
       registerSelf();
    }
 
@@ -177,12 +261,12 @@ public class Controller {
             log.errorf("Failed to start podman: %d", rc);
          } else {
             rc = new ProcessBuilder().command("podman", "mount", "main-container")
-                  .inheritIO().redirectOutput(new File("/out/mountpoint"))
+                  .inheritIO().redirectOutput(new File(dir, "mountpoint"))
                   .start().waitFor();
             if (rc != 0) {
                log.errorf("Failed to find podman mount point: %d", rc);
             } else {
-               mountPoint = Files.readString(Paths.get("/out/mountpoint"));
+               mountPoint = Files.readString(new File(dir, "mountpoint").toPath());
                log.infof("Container mount point is %s", mountPoint);
             }
          }
@@ -193,8 +277,14 @@ public class Controller {
 
    @PreDestroy
    public void destroy() {
+      // delayed tasks would still run after the shutdown
+      cancelSchedule();
+      stopBackground(false);
       processingExecutor.shutdown();
       leaseExecutor.shutdown();
+      timedExecutor.shutdown();
+      liveExecutor.shutdown();
+      scheduleExecutor.shutdown();
    }
 
    @GET
@@ -206,14 +296,18 @@ public class Controller {
    @GET
    @Path("status")
    public synchronized String status() {
-      if (perfRecord != null) {
-         return "perf record";
-      } else if (perfScript != null) {
+      if (remoteProcessing) {
+         return "remote processing";
+      } else if (perfRecord != null) {
+         return allocations == null ? "perf record" : AllocationTracing.STATUS;
+      } else if (!perfScripts.isEmpty()) {
          return "perf script";
-      } else if (stackCollapse != null) {
+      } else if (!stackCollapses.isEmpty()) {
          return "stackcollapse";
       } else if (flamegraph != null) {
          return "flamegraph";
+      } else if (scheduledLaunch != null) {
+         return "scheduled";
       }
       return error == null ? "idle" : error;
    }
@@ -225,79 +319,267 @@ public class Controller {
                                   @QueryParam("width") int width,
                                   @QueryParam("colors") String colors,
                                   @QueryParam("inverted") @DefaultValue("true") boolean inverted,
-                                  @QueryParam("processPattern") String processPattern) {
+                                  @QueryParam("processPattern") String processPattern,
+                                  @QueryParam("live") boolean live,
+                                  @QueryParam("events") String events,
+                                  @QueryParam("allocations") String allocations) {
+      if (!triggered && scheduledLaunch != null) {
+         log.info("Recording started manually, cancelling the scheduled recording");
+         cancelSchedule();
+      }
+      PreparedRecording recording = prepare(false, symfs, processPattern, live, events, allocations);
+      if (recording != null) {
+         launch(false, recording, stop, symfs, width, colors, inverted);
+      }
+   }
+
+   /**
+    * @param scheduled Called from the task launching a scheduled recording, which is not idle.
+    */
+   private void checkIdle(boolean scheduled) {
       String status = status();
-      if (!"idle".equals(status)) {
+      if (!"idle".equals(status) && !(scheduled && "scheduled".equals(status))) {
          throw new WebApplicationException("Already running: " + status);
       }
+   }
+
+   /**
+    * Checks the parameters and resolves the events and the recorded processes into the command; probing the events
+    * with <code>perf stat</code> and looking up the cgroups or PIDs takes hundreds of milliseconds.
+    *
+    * @return Recording to {@link #launch launch} or <code>null</code> if there is nothing to record.
+    */
+   private PreparedRecording prepare(boolean scheduled, boolean symfs, String processPattern, boolean live, String events, String allocations) {
+      checkIdle(scheduled);
+      checkSymfs(symfs);
       backupOldChart();
       if (processPattern == null) {
          processPattern = PROCESS_PATTERN;
       }
-      List<String> command = new ArrayList<>(Arrays.asList("perf", "record", "-g", "-F", "99", "-o", "/out/perf.data"));
-      if (processPattern == null) {
-         command.add("-a");
-      } else {
-         try {
-            int rc = new ProcessBuilder().command("pgrep", processPattern)
-                  .inheritIO().redirectOutput(new File("/out/pids"))
-                  .start().waitFor();
-            if (rc != 0) {
-               log.errorf("Failed to find PIDs for pattern %s: %d", processPattern, rc);
-               return;
-            } else {
-               List<String> pids = Files.readAllLines(Paths.get("/out/pids"));
-               if (pids.isEmpty()) {
-                  log.errorf("No PIDs for pattern %s", processPattern);
-                  return;
-               }
-               log.infof("Recording data from pids %s", pids);
-               command.add("-p");
-               command.add(String.join(",", pids));
-            }
-         } catch (InterruptedException | IOException e) {
-            log.errorf(e, "Failed to find PIDs for pattern %s", processPattern);
+      if (!triggered) {
+         // manual start, the pre-trigger samples are not relevant
+         stopBackground(false);
+      }
+      List<String> resolvedEvents;
+      List<String> command;
+      if (allocations != null) {
+         if (live) {
+            throw new WebApplicationException("Live chart is not available when tracing allocations", 400);
          }
+         resolvedEvents = AllocationTracing.EVENTS;
+         command = allocationTracingCommand(AllocationTracing.mode(allocations), processPattern);
+      } else {
+         resolvedEvents = PerfEvents.resolve(events == null ? EVENTS : events);
+         command = perfRecordCommand(FREQUENCY, new File(dir, "perf.data"), processPattern, resolvedEvents);
+      }
+      if (command == null) {
+         return null;
+      }
+      int liveInterval = 0;
+      if (live) {
+         liveInterval = parseLiveInterval();
+         // perf rotates /out/perf.data into /out/perf.data.<timestamp> chunks
+         command.add("--switch-output=" + liveInterval + "s");
+      }
+      return new PreparedRecording(command, resolvedEvents, allocations, threadFilter, liveInterval);
+   }
+
+   /**
+    * Starts the prepared command; nothing else is resolved here so that a scheduled recording starts on time.
+    */
+   private void launch(boolean scheduled, PreparedRecording recording, Integer stop, boolean symfs, int width, String colors, boolean inverted) {
+      checkIdle(scheduled);
+      this.events = recording.events;
+      this.allocations = recording.allocations;
+      this.threadFilter = recording.threadFilter;
+      if (recording.liveInterval > 0) {
+         LiveRecording.deleteChunks(dir);
+         new File(dir, "perf.script").delete();
+         new File(dir, "live.svg").delete();
       }
       try {
-         perfRecord = new ProcessBuilder().command(command).inheritIO().start();
+         perfRecord = new ProcessBuilder().command(recording.command).inheritIO().start();
          recordStart = System.currentTimeMillis();
       } catch (IOException e) {
          error = "Failed to start `perf record`";
          throw new WebApplicationException(error, e);
       }
+      log.infof("Recording events %s", recording.events);
+      if (recording.liveInterval > 0) {
+         int liveInterval = recording.liveInterval;
+         LiveRecording liveRecording = new LiveRecording(dir, symfsRoot(symfs), recording.events, transforms());
+         this.live = liveRecording;
+         log.infof("Refreshing live chart every %d seconds.", liveInterval);
+         liveRefresh = liveExecutor.scheduleWithFixedDelay(() -> refreshLive(liveRecording, width, colors, inverted),
+               liveInterval, liveInterval, TimeUnit.SECONDS);
+      }
       if (stop != null) {
          log.infof("The recording will automatically stop in %d seconds.", stop);
          timedExecutor.schedule(() -> this.stop(symfs, width, colors, inverted), stop, TimeUnit.SECONDS);
       }
    }
 
+   /**
+    * @return Command for <code>perf record</code> with options selecting what to record, further options can be
+    *         appended. Returns <code>null</code> if there is nothing to record.
+    */
+   private List<String> perfRecordCommand(int frequency, File output, String processPattern, List<String> events) {
+      List<String> command = new ArrayList<>(Arrays.asList("perf", "record", "-g", "-F", String.valueOf(frequency), "-o", output.toString()));
+      List<String> cgroups = this.cgroups.get();
+      threadFilter = null;
+      if (cgroups == null && requireCgroups) {
+         error = "Cannot find cgroup of pod " + namespace + "/" + podName;
+         throw new WebApplicationException(error);
+      } else if (cgroups != null) {
+         // unlike the PIDs from pgrep the cgroups include processes started during the recording
+         log.infof("Recording data from cgroups %s", cgroups);
+         command.add("-a");
+         // perf requires the events before -G, each cgroup applies to one event in order
+         List<String> eventPerCgroup = new ArrayList<>();
+         List<String> cgroupPerEvent = new ArrayList<>();
+         for (String event : events) {
+            eventPerCgroup.addAll(Collections.nCopies(cgroups.size(), event));
+            cgroupPerEvent.addAll(cgroups);
+         }
+         command.add("-e");
+         command.add(String.join(",", eventPerCgroup));
+         command.add("-G");
+         command.add(String.join(",", cgroupPerEvent));
+         setThreadFilter(processPattern);
+      } else if (processPattern == null) {
+         command.add("-a");
+         command.add("-e");
+         command.add(String.join(",", events));
+      } else {
+         List<String> pids = pgrep(processPattern);
+         if (pids == null) {
+            return null;
+         }
+         log.infof("Recording data from pids %s", pids);
+         command.add("-p");
+         command.add(String.join(",", pids));
+         command.add("-e");
+         command.add(String.join(",", events));
+      }
+      return cgroups == null ? command : Cgroups.withHostHierarchy(command);
+   }
+
+   /**
+    * @return Command tracing allocations of the recorded processes, or <code>null</code> if there is nothing to trace.
+    */
+   private List<String> allocationTracingCommand(String mode, String processPattern) {
+      List<String> cgroups = this.cgroups.get();
+      threadFilter = null;
+      List<String> pids;
+      if (cgroups == null && requireCgroups) {
+         error = "Cannot find cgroup of pod " + namespace + "/" + podName;
+         throw new WebApplicationException(error);
+      } else if (cgroups != null) {
+         // uprobes are attached to the processes, those started later are not traced
+         pids = Cgroups.processes(cgroups);
+         // the stacks start with the process name rather than the thread name
+         setThreadFilter(processPattern);
+      } else if (processPattern == null) {
+         throw new WebApplicationException("Tracing allocations of the whole host is not supported, set processPattern", 400);
+      } else {
+         pids = pgrep(processPattern);
+      }
+      if (pids == null || pids.isEmpty()) {
+         log.error("No processes to trace");
+         return null;
+      }
+      log.infof("Tracing %s allocations in pids %s", mode, pids);
+      return AllocationTracing.command(mode, pids, dir);
+   }
+
+   private void setThreadFilter(String processPattern) {
+      if (processPattern != null) {
+         try {
+            threadFilter = Pattern.compile(processPattern);
+         } catch (PatternSyntaxException e) {
+            throw new WebApplicationException("Invalid process pattern: " + e.getMessage(), 400);
+         }
+         log.infof("Keeping only threads matching %s", processPattern);
+      }
+   }
+
+   /**
+    * @return PIDs of processes matching the pattern or <code>null</code> if there are none.
+    */
+   private List<String> pgrep(String processPattern) {
+      try {
+         int rc = new ProcessBuilder().command("pgrep", processPattern)
+               .inheritIO().redirectOutput(new File(dir, "pids"))
+               .start().waitFor();
+         if (rc != 0) {
+            log.errorf("Failed to find PIDs for pattern %s: %d", processPattern, rc);
+            return null;
+         }
+         List<String> pids = Files.readAllLines(new File(dir, "pids").toPath());
+         if (pids.isEmpty()) {
+            log.errorf("No PIDs for pattern %s", processPattern);
+            return null;
+         }
+         return pids;
+      } catch (InterruptedException | IOException e) {
+         log.errorf(e, "Failed to find PIDs for pattern %s", processPattern);
+         return null;
+      }
+   }
+
    @POST
    @Path("stop")
    public synchronized CompletionStage<Void> stop(@QueryParam("symfs") boolean symfs,
                                                   @QueryParam("width") int width,
                                                   @QueryParam("colors") String colors,
                                                   @QueryParam("inverted") @DefaultValue("true") boolean inverted) {
-      if (!"perf record".equals(status())) {
-         throw new WebApplicationException("Not running: current status is: " + status());
+      if (scheduledLaunch != null) {
+         log.info("Cancelling the scheduled recording");
+         cancelSchedule();
+         return CompletableFuture.completedFuture(null);
       }
+      String status = status();
+      if (!"perf record".equals(status) && !AllocationTracing.STATUS.equals(status)) {
+         throw new WebApplicationException("Not running: current status is: " + status);
+      }
+      checkSymfs(symfs);
       if (!perfRecord.isAlive()) {
          throw new WebApplicationException("Already stopping...");
       }
+      if (scheduledEnd != null) {
+         // stopped before the scheduled time
+         scheduledEnd.cancel(true);
+         scheduledEnd = null;
+      }
       recordEnd = System.currentTimeMillis();
       perfRecord.destroy();
+      LiveRecording liveRecording = live;
+      if (liveRefresh != null) {
+         liveRefresh.cancel(false);
+         liveRefresh = null;
+      }
       CompletableFuture<Void> future = new CompletableFuture<>();
       processingExecutor.submit(() -> {
          try {
             int rc = perfRecord.waitFor();
-            if (rc == 0 || rc == 143) {
-               List<String> command = new ArrayList<>(Arrays.asList("perf", "script", "-i", "/out/perf.data", "--kallsyms=/proc/kallsyms"));
-               if (symfs) {
-                  command.add("--symfs=" + mountPoint);
+            if (allocations != null) {
+               // the script writes the stacks on SIGTERM and exits normally, there is no perf.data to process
+               if (rc == 0) {
+                  processAllocations(width, colors, inverted);
+               } else {
+                  error = rc == 143 ? "`allocations.py` was terminated before it started tracing" : "Non-zero return code from `allocations.py`: " + rc;
+                  future.completeExceptionally(new WebApplicationException(error));
                }
-               perfScript = new ProcessBuilder().command(command)
-                     .inheritIO().redirectOutput(new File("/out/perf.script")).start();
+            } else if ((rc == 0 || rc == 143) && liveRecording != null) {
+               // the chunks decoded so far are already in /out/perf.script, decode only the last one
+               liveRecording.refresh();
+               liveRecording.close();
                process(width, colors, inverted);
+            } else if (rc == 0 || rc == 143) {
+               if (!processRemotely(symfs, width, colors, inverted)) {
+                  startPerfScript(symfs);
+                  process(width, colors, inverted);
+               }
             } else {
                error = "Non-zero return code from `perf record`: " + rc;
                future.completeExceptionally(new WebApplicationException(error));
@@ -309,40 +591,394 @@ public class Controller {
             error = "Failed to start `perf script`";
             future.completeExceptionally(new WebApplicationException(error, e));
          } finally {
+            if (liveRecording != null) {
+               // returns the memory of the live aggregate to the budget also when the recording failed
+               liveRecording.close();
+            }
             synchronized (this) {
                perfRecord = null;
+               live = null;
             }
+            // no-op if completed exceptionally
             future.complete(null);
+            startBackground();
          }
       });
       return future;
    }
 
-   private synchronized void process(int width, String colors, boolean inverted) {
+   /**
+    * @return False if the recording should be processed locally.
+    */
+   private boolean processRemotely(boolean symfs, int width, String colors, boolean inverted) {
+      synchronized (this) {
+         // shell hooks expect the whole perf.script in /out, pre-trigger chunks are decoded here
+         if (REMOTE == null || preTrigger != null || !shellHooks().isEmpty()) {
+            return false;
+         }
+         remoteProcessing = true;
+      }
+      try {
+         List<String> cgroups = this.cgroups.get();
+         Map<String, Object> params = new LinkedHashMap<>();
+         params.put("namespace", namespace);
+         params.put("pod", podName);
+         params.put("start", recordStart);
+         params.put("stop", recordEnd);
+         params.put("width", width);
+         params.put("colors", colors);
+         params.put("inverted", inverted);
+         params.put("threadFilter", threadFilter == null ? null : threadFilter.pattern());
+         params.put("events", String.join(",", events));
+         REMOTE.process(dir, symfsRoot(symfs), cgroups == null ? allProcesses() : Cgroups.processes(cgroups), params);
+         log.infof("Written remotely processed flamegraph to %s", new File(dir, "perf.svg"));
+         return true;
+      } catch (IOException e) {
+         log.error("Remote processing failed, processing locally", e);
+         return false;
+      } catch (InterruptedException e) {
+         error = "Interrupted waiting for remote processing";
+         log.error(error, e);
+         return true;
+      } finally {
+         synchronized (this) {
+            remoteProcessing = false;
+         }
+      }
+   }
+
+   private static List<String> allProcesses() {
+      String self = String.valueOf(ProcessHandle.current().pid());
+      String[] pids = new File("/proc").list((d, name) -> !name.equals(self) && name.chars().allMatch(Character::isDigit));
+      return pids == null ? List.of() : Arrays.asList(pids);
+   }
+
+   /**
+    * Processes a recording made on another host, see {@link Workers}. The binaries, kernel symbols, JIT maps
+    * and stack transforms shipped with the recording are in the directory.
+    */
+   synchronized void processOffline(long start, long end, String processPattern, String events,
+                                    int width, String colors, boolean inverted) throws IOException {
+      mountPoint = dir.toString();
+      kallsyms = new File(dir, "kallsyms").toString();
+      scripts = new File(dir, "scripts");
+      perfMaps = new PerfMaps(dir);
+      recordStart = start;
+      recordEnd = end;
+      this.events = events == null ? List.of(PerfEvents.DEFAULT) : PerfEvents.parse(events);
+      try {
+         threadFilter = processPattern == null ? null : Pattern.compile(processPattern);
+      } catch (PatternSyntaxException e) {
+         throw new IOException("Invalid process pattern: " + e.getMessage());
+      }
+      error = null;
+      startPerfScript(true);
+      process(width, colors, inverted);
+      if (error != null) {
+         throw new IOException(error);
+      }
+   }
+
+   /**
+    * @return Names of the files with collapsed stacks and flamegraphs of the last recording.
+    */
+   synchronized List<String> outputs() {
+      List<String> outputs = new ArrayList<>();
+      for (String event : events) {
+         outputs.add(collapsedFile(event).getName());
+         outputs.add(chartFile(event).getName());
+      }
+      outputs.add(Modules.FILE);
+      return outputs;
+   }
+
+   private File collapsedFile(String event) {
+      return new File(dir, "perf" + PerfEvents.suffix(events, event) + ".collapsed");
+   }
+
+   private File chartFile(String event) {
+      return new File(dir, "perf" + PerfEvents.suffix(events, event) + ".svg");
+   }
+
+   /**
+    * Schedules start and stop of the recording at given wall-clock time, to record several pods in the same window.
+    * The times are in this host's clock; the proxy compensates for clock offsets between the hosts.
+    */
+   @POST
+   @Path("schedule")
+   public synchronized void schedule(@QueryParam("startAt") long startAt,
+                                     @QueryParam("stopAt") long stopAt,
+                                     @QueryParam("symfs") boolean symfs,
+                                     @QueryParam("width") int width,
+                                     @QueryParam("colors") String colors,
+                                     @QueryParam("inverted") @DefaultValue("true") boolean inverted,
+                                     @QueryParam("processPattern") String processPattern,
+                                     @QueryParam("events") String events) {
+      checkIdle(false);
+      if (stopAt <= startAt) {
+         throw new WebApplicationException("Recording must stop after it starts", 400);
+      }
+      checkSymfs(symfs);
+      long now = System.currentTimeMillis();
+      scheduledStart = startAt;
+      scheduledStop = stopAt;
+      recordStart = 0;
+      recordEnd = 0;
+      log.infof("Recording scheduled to start in %d ms and stop in %d ms", startAt - now, stopAt - now);
+      // The executor is not precise enough: wake up earlier, resolve the recording (probing the events and finding
+      // the cgroups takes hundreds of milliseconds) and spin until the exact time to start only the process.
+      scheduledLaunch = scheduleExecutor.schedule(() -> {
+         try {
+            PreparedRecording recording;
+            synchronized (this) {
+               // cancelled while waiting for the lock
+               if (Thread.currentThread().isInterrupted()) {
+                  return;
+               }
+               recording = prepare(true, symfs, processPattern, false, events, null);
+               if (recording == null) {
+                  throw new WebApplicationException("Nothing to record");
+               }
+            }
+            awaitTime(startAt);
+            synchronized (this) {
+               if (Thread.currentThread().isInterrupted()) {
+                  return;
+               }
+               launch(true, recording, null, symfs, width, colors, inverted);
+               scheduledLaunch = null;
+            }
+         } catch (WebApplicationException e) {
+            synchronized (this) {
+               if (!Thread.currentThread().isInterrupted()) {
+                  error = "Failed to start scheduled recording: " + e.getMessage();
+                  log.error(error, e);
+                  scheduledLaunch = null;
+                  cancelSchedule();
+               }
+            }
+         }
+      }, Math.max(0, startAt - now - SCHEDULE_PREPARE - SCHEDULE_SPIN), TimeUnit.MILLISECONDS);
+      scheduledEnd = scheduleExecutor.schedule(() -> {
+         awaitTime(stopAt);
+         try {
+            synchronized (this) {
+               if (Thread.currentThread().isInterrupted()) {
+                  return;
+               }
+               scheduledEnd = null;
+               stop(symfs, width, colors, inverted);
+            }
+         } catch (WebApplicationException e) {
+            log.error("Failed to stop scheduled recording", e);
+         }
+      }, Math.max(0, stopAt - now - SCHEDULE_SPIN), TimeUnit.MILLISECONDS);
+   }
+
+   /**
+    * Cancels the pending tasks of a scheduled recording. The tasks check the interruption while holding the lock
+    * of this controller, so they do not act after this returns.
+    */
+   private synchronized void cancelSchedule() {
+      if (scheduledLaunch != null) {
+         scheduledLaunch.cancel(true);
+         scheduledLaunch = null;
+      }
+      if (scheduledEnd != null) {
+         scheduledEnd.cancel(true);
+         scheduledEnd = null;
+      }
+   }
+
+   private static void awaitTime(long timestamp) {
       try {
-         int rc2 = perfScript.waitFor();
-         if (rc2 != 0) {
-            error = "Non zero return code from `perf script`: " + rc2;
-            log.error(error);
+         long sleep = timestamp - System.currentTimeMillis() - SCHEDULE_SPIN;
+         if (sleep > 0) {
+            Thread.sleep(sleep);
+         }
+      } catch (InterruptedException e) {
+         // cancelled
+         Thread.currentThread().interrupt();
+         return;
+      }
+      while (System.currentTimeMillis() < timestamp && !Thread.currentThread().isInterrupted()) {
+         Thread.onSpinWait();
+      }
+   }
+
+   @GET
+   @Path("clock")
+   @Produces(MediaType.TEXT_PLAIN)
+   public long clock() {
+      return System.currentTimeMillis();
+   }
+
+   @GET
+   @Path("timing")
+   @Produces(MediaType.APPLICATION_JSON)
+   public synchronized Timing timing() {
+      Timing timing = new Timing();
+      timing.scheduledStart = scheduledStart;
+      timing.start = recordStart;
+      timing.scheduledStop = scheduledStop;
+      timing.stop = recordEnd;
+      return timing;
+   }
+
+   private synchronized void startPerfScript(boolean symfs) throws IOException {
+      List<List<String>> shards = ScriptShards.shards(SCRIPT_SHARDING, ScriptShards.parallelism(SCRIPT_PARALLELISM), new File(dir, "perf.data"));
+      if (shards.size() > 1) {
+         log.infof("Decoding perf.data in %d parallel shards", shards.size());
+      }
+      try {
+         for (int i = 0; i < shards.size(); ++i) {
+            List<String> command = new ArrayList<>(Arrays.asList("perf", "script", "-i", new File(dir, "perf.data").toString(), "--kallsyms=" + kallsyms));
+            String symfsRoot = symfsRoot(symfs);
+            if (symfsRoot != null) {
+               command.add("--symfs=" + symfsRoot);
+            }
+            command.addAll(shards.get(i));
+            File output = new File(dir, shards.size() == 1 ? "perf.script" : "perf.script." + i);
+            scriptShards.add(output);
+            perfScripts.add(new ProcessBuilder().command(command).inheritIO().redirectOutput(output).start());
+         }
+      } catch (IOException e) {
+         perfScripts.forEach(Process::destroy);
+         perfScripts.clear();
+         scriptShards.clear();
+         throw e;
+      }
+   }
+
+   private void checkSymfs(boolean symfs) {
+      // the node agent does not mount the images, perf finds the binaries through /proc/<pid>/root
+      if (symfs && mountPoint == null && !SIDECAR) {
+         throw new WebApplicationException("Option symfs is not available for pods recorded by the node agent", 400);
+      }
+   }
+
+   /**
+    * @return Root of the filesystem with the binaries for <code>perf script --symfs</code>, or <code>null</code>
+    *         when perf should find them through the recorded processes.
+    */
+   private String symfsRoot(boolean symfs) {
+      if (symfs && mountPoint == null) {
+         log.warn("The image of the pod is not mounted, ignoring symfs");
+      }
+      return symfs ? mountPoint : null;
+   }
+
+   private int parseLiveInterval() {
+      if (LIVE_INTERVAL != null) {
+         try {
+            return Math.max(1, Integer.parseInt(LIVE_INTERVAL));
+         } catch (NumberFormatException e) {
+            log.errorf("Cannot parse LIVE_INTERVAL=%s", LIVE_INTERVAL);
+         }
+      }
+      return 10;
+   }
+
+   private void refreshLive(LiveRecording liveRecording, int width, String colors, boolean inverted) {
+      try {
+         if (!liveRecording.refresh()) {
             return;
          }
+         File collapsed = new File(dir, "live.collapsed");
+         liveRecording.writeCollapsed(collapsed);
+         String title = namespace + "/" + podName + " " + new SimpleDateFormat("yyyy/MM/dd HH:mm:ss").format(new Date(recordStart)) + " - now (live)";
+         File tmp = new File(dir, "live.svg.tmp");
+         int rc = new ProcessBuilder().command(flamegraphCommand(width, colors, inverted, title, null, collapsed.toString()))
+               .inheritIO().redirectOutput(tmp).start().waitFor();
+         if (rc != 0) {
+            log.errorf("Non-zero return code from flamegraph.pl for live chart: %d", rc);
+            return;
+         }
+         Files.move(tmp.toPath(), new File(dir, "live.svg").toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+         log.debugf("Live chart updated with %d samples", liveRecording.samples());
+      } catch (IOException e) {
+         log.error("Failed to refresh live chart", e);
+      } catch (InterruptedException e) {
+         log.error("Interrupted refreshing live chart", e);
+      }
+   }
+
+   /**
+    * @param countName Unit of the counts, <code>null</code> for samples.
+    */
+   private List<String> flamegraphCommand(int width, String colors, boolean inverted, String title, String countName, String input) {
+      List<String> command = new ArrayList<>();
+      command.add("/root/FlameGraph/flamegraph.pl");
+      if (width > 0) {
+         command.add("--width");
+         command.add(String.valueOf(width));
+      }
+      if (colors != null && !colors.isEmpty()) {
+         command.add("--colors");
+         command.add(colors);
+      }
+      if (inverted) {
+         command.add("--inverted");
+      }
+      command.add("--title");
+      command.add(title);
+      if (countName != null) {
+         command.add("--countname");
+         command.add(countName);
+      }
+      command.add(input);
+      return command;
+   }
+
+   private synchronized void process(int width, String colors, boolean inverted) {
+      try {
+         for (Process perfScript : perfScripts) {
+            int rc2 = perfScript.waitFor();
+            if (rc2 != 0) {
+               error = "Non zero return code from `perf script`: " + rc2;
+               log.error(error);
+               return;
+            }
+         }
       } catch (InterruptedException e) {
          error = "Interrupted waiting for `perf script`";
          log.error(error, e);
          return;
       } finally {
-         perfScript = null;
+         // no-op for those that already finished
+         perfScripts.forEach(Process::destroy);
+         perfScripts.clear();
       }
-      String[] scripts = new File("/scripts").list();
-      if (scripts != null) {
-         Arrays.sort(scripts);
-         for (String filename : scripts) {
-            if (filename.startsWith(".") || !filename.endsWith(".sh")) {
-               log.infof("Ignoring non-shell script %s", filename);
-               continue;
+      List<File> shards = new ArrayList<>(scriptShards);
+      scriptShards.clear();
+      if (perfMaps != null) {
+         try {
+            for (File shard : shards) {
+               perfMaps.resolve(shard);
             }
-            File file = new File("/scripts", filename);
-            if (file.isHidden() || !file.isFile() || !file.canExecute()) continue;
+         } catch (IOException e) {
+            error = "Failed to resolve JIT frames";
+            log.error(error, e);
+            return;
+         }
+      }
+      StackTransforms transforms = transforms();
+      if (!transforms.isEmpty()) {
+         log.infof("Applying %d stack transforms", transforms.size());
+      }
+      // shell hooks rewrite the whole /out/perf.script and are therefore the slow path
+      List<File> hooks = shellHooks();
+      if (shards.size() > 1 && hooks.isEmpty()) {
+         // collapse the shards in parallel, too
+         if (!collapse(shards, transforms)) {
+            return;
+         }
+         concatenate(shards, new File(dir, "perf.script"));
+      } else {
+         if (shards.size() > 1) {
+            concatenate(shards, new File(dir, "perf.script"));
+         }
+         for (File file : hooks) {
             log.infof("Executing script %s", file.toString());
             try {
                Runtime.getRuntime().exec("bash -c " + file).waitFor();
@@ -350,56 +986,54 @@ public class Controller {
                log.error("Failed to execute script", e);
             }
          }
+         if (!collapse(List.of(new File(dir, "perf.script")), transforms)) {
+            return;
+         }
       }
+      LiveRecording preTrigger;
+      synchronized (this) {
+         preTrigger = this.preTrigger;
+         this.preTrigger = null;
+      }
+      if (preTrigger != null) {
+         mergePreTrigger(preTrigger);
+      }
+      flamegraphs(width, colors, inverted);
+   }
+
+   private synchronized void processAllocations(int width, String colors, boolean inverted) {
+      StackTransforms transforms = transforms();
       try {
-         stackCollapse = new ProcessBuilder().command("/root/FlameGraph/stackcollapse-perf.pl", "/out/perf.script")
-               .inheritIO().redirectOutput(new File("/out/perf.collapsed")).start();
-         int rc3 = stackCollapse.waitFor();
-         if (rc3 != 0) {
-            error = "Non-zero return code from stackcollapse-perf.pl: " + rc3;
-            log.error(error);
-            return;
+         for (String event : events) {
+            AllocationTracing.collapse(dir, event, recordEnd - recordStart, transforms, collapsedFile(event));
          }
-      } catch (InterruptedException e) {
-         error = "Interrupted waiting for stackcollapse-perf.pl";
-         log.error(error, e);
-         return;
-      } catch (IOException e){
-         error = "Failed to start `stackcollapse-perf.pl`";
+      } catch (IOException | RuntimeException e) {
+         error = "Failed to collapse traced allocations";
          log.error(error, e);
          return;
-      } finally {
-         stackCollapse = null;
       }
+      flamegraphs(width, colors, inverted);
+   }
+
+   private void flamegraphs(int width, String colors, boolean inverted) {
       try {
          log.infof("Creating flamegraph, width: %d, colors: %s, inverted: %s", width, colors, inverted);
-         List<String> command = new ArrayList<>();
-         command.add("/root/FlameGraph/flamegraph.pl");
-         if (width > 0) {
-            command.add("--width");
-            command.add(String.valueOf(width));
-         }
-         if (colors != null && !colors.isEmpty()) {
-            command.add("--colors");
-            command.add(colors);
-         }
-         if (inverted) {
-            command.add("--inverted");
-         }
          SimpleDateFormat df = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
          Date startDate = new Date(recordStart);
          Date endDate = new Date(recordEnd);
-         command.add("--title");
-         command.add(POD_NAMESPACE + "/" + POD_NAME + " " + df.format(startDate) + " - " + df.format(endDate));
-         command.add("/out/perf.collapsed");
-         File target = new File("/out/perf.svg");
-         flamegraph = new ProcessBuilder().command(command)
-               .inheritIO().redirectOutput(target).start();
-         int rc4 = flamegraph.waitFor();
-         if (rc4 != 0) {
-            error = "Non-zero return code from flamegraph.pl: " + rc4;
-            log.error(error);
-         } else {
+         String title = namespace + "/" + podName + " " + df.format(startDate) + " - " + df.format(endDate);
+         for (String event : events) {
+            List<String> command = flamegraphCommand(width, colors, inverted, events.size() > 1 ? title + " (" + event + ")" : title,
+                  allocations == null ? null : AllocationTracing.countName(event), collapsedFile(event).toString());
+            File target = chartFile(event);
+            flamegraph = new ProcessBuilder().command(command)
+                  .inheritIO().redirectOutput(target).start();
+            int rc4 = flamegraph.waitFor();
+            if (rc4 != 0) {
+               error = "Non-zero return code from flamegraph.pl: " + rc4;
+               log.error(error);
+               return;
+            }
             log.infof("Written flamegraph to %s", target.toString());
          }
       } catch (InterruptedException e) {
@@ -413,16 +1047,280 @@ public class Controller {
       }
    }
 
+   private StackTransforms transforms() {
+      StackTransforms transforms = StackTransforms.load(new File(scripts, StackTransforms.DEFAULT_CONFIG.getName()));
+      // with cgroup scope the process pattern is applied when collapsing the stacks
+      return threadFilter == null ? transforms : transforms.keepThreads(threadFilter);
+   }
+
+   private List<File> shellHooks() {
+      List<File> hooks = new ArrayList<>();
+      String[] filenames = scripts.list();
+      if (filenames != null) {
+         Arrays.sort(filenames);
+         for (String filename : filenames) {
+            if (filename.startsWith(".") || !filename.endsWith(".sh")) {
+               log.infof("Ignoring non-shell script %s", filename);
+               continue;
+            }
+            File file = new File(scripts, filename);
+            if (file.isHidden() || !file.isFile() || !file.canExecute()) continue;
+            hooks.add(file);
+         }
+      }
+      return hooks;
+   }
+
+   private boolean collapse(List<File> inputs, StackTransforms transforms) {
+      ExecutorService executor = Executors.newFixedThreadPool(inputs.size());
+      Map<String, CollapsedStacks> merged = new LinkedHashMap<>();
+      Modules modules = new Modules();
+      try {
+         for (String event : events) {
+            merged.put(event, new CollapsedStacks(transforms, dir));
+         }
+         List<Future<Modules>> futures = new ArrayList<>();
+         for (File input : inputs) {
+            futures.add(executor.submit(() -> collapse(input, merged)));
+         }
+         for (Future<Modules> future : futures) {
+            modules.addAll(future.get());
+         }
+         for (Map.Entry<String, CollapsedStacks> entry : merged.entrySet()) {
+            entry.getValue().write(collapsedFile(entry.getKey()));
+         }
+         modules.write(new File(dir, Modules.FILE));
+         return true;
+      } catch (ExecutionException e) {
+         error = e.getCause() instanceof IOException ? e.getCause().getMessage() : "Failed to collapse stacks";
+         log.error(error, e.getCause());
+         return false;
+      } catch (InterruptedException e) {
+         error = "Interrupted waiting for stackcollapse-perf.pl";
+         log.error(error, e);
+         return false;
+      } catch (IOException e){
+         error = "Failed to collapse stacks";
+         log.error(error, e);
+         return false;
+      } finally {
+         executor.shutdownNow();
+         merged.values().forEach(CollapsedStacks::close);
+         stackCollapses.forEach(Process::destroy);
+         stackCollapses.clear();
+      }
+   }
+
+   /**
+    * Pipes the input to stackcollapse-perf.pl in chunks that end on the empty line between samples, so that
+    * the script holds at most a chunk worth of distinct stacks in memory; the aggregate spills to disk instead.
+    * With several events each sample is piped to the stackcollapse-perf.pl process of its event, as the script
+    * keeps only the first event it sees; all events are collapsed in one pass over the output of
+    * <code>perf script</code>. The libraries of the frames, which the script drops, are collected on the way.
+    *
+    * @param targets Aggregate of each event; these share the stack transforms, which are not thread-safe,
+    *                so the map is also the lock.
+    */
+   private Modules collapse(File input, Map<String, CollapsedStacks> targets) throws IOException, InterruptedException {
+      List<String> events = new ArrayList<>(targets.keySet());
+      Modules modules = new Modules();
+      // the output can contain anything in the comm and symbol names, ISO-8859-1 passes the bytes through
+      try (BufferedReader reader = Files.newBufferedReader(input.toPath(), StandardCharsets.ISO_8859_1)) {
+         String line = reader.readLine();
+         while (line != null) {
+            Map<String, Process> processes = new LinkedHashMap<>();
+            Map<String, Writer> writers = new HashMap<>();
+            try {
+               long written = 0;
+               Writer writer = null;
+               for (; line != null; line = reader.readLine()) {
+                  if (line.isEmpty()) {
+                     if (writer != null) {
+                        writer.write('\n');
+                     }
+                     writer = null;
+                     if (written >= COLLAPSE_CHUNK) {
+                        line = reader.readLine();
+                        break;
+                     }
+                     continue;
+                  } else if (writer == null) {
+                     String event = events.size() == 1 ? events.get(0) : PerfEvents.sampleEvent(line, events);
+                     writer = event == null ? Writer.nullWriter() : writers.get(event);
+                     if (writer == null) {
+                        Process process = new ProcessBuilder().command("/root/FlameGraph/stackcollapse-perf.pl", "--all")
+                              .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+                        stackCollapses.add(process);
+                        processes.put(event, process);
+                        writer = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.ISO_8859_1), 65536);
+                        writers.put(event, writer);
+                     }
+                  } else {
+                     modules.addFrame(line);
+                  }
+                  writer.write(line);
+                  writer.write('\n');
+                  written += line.length() + 1;
+               }
+               for (Writer w : writers.values()) {
+                  w.close();
+               }
+               // the script prints the stacks only after reading all input
+               for (Map.Entry<String, Process> entry : processes.entrySet()) {
+                  Process process = entry.getValue();
+                  try (BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                     synchronized (targets) {
+                        targets.get(entry.getKey()).addAll(output);
+                     }
+                  }
+                  int rc = process.waitFor();
+                  if (rc != 0) {
+                     throw new IOException("Non-zero return code from stackcollapse-perf.pl: " + rc);
+                  }
+               }
+            } finally {
+               for (Process process : processes.values()) {
+                  process.destroy();
+                  stackCollapses.remove(process);
+               }
+            }
+         }
+      }
+      return modules;
+   }
+
+   private void concatenate(List<File> shards, File target) {
+      try (OutputStream output = Files.newOutputStream(target.toPath())) {
+         for (File shard : shards) {
+            Files.copy(shard.toPath(), output);
+            Files.delete(shard.toPath());
+         }
+      } catch (IOException e) {
+         log.errorf(e, "Failed to concatenate decoded shards into %s", target);
+      }
+   }
+
+   /**
+    * Starts a recording triggered by {@link Triggers}, including samples from the background recording.
+    *
+    * @return True if the recording has started.
+    */
+   synchronized boolean trigger(String reason, int duration) {
+      if (!"idle".equals(status())) {
+         return false;
+      }
+      log.infof("Triggering recording for %d seconds: %s", duration, reason);
+      stopBackground(true);
+      triggered = true;
+      boolean started = false;
+      try {
+         start(duration, true, 0, null, true, null, false, null, null);
+         started = perfRecord != null;
+      } catch (WebApplicationException e) {
+         log.error("Failed to start triggered recording", e);
+      } finally {
+         triggered = false;
+         if (!started) {
+            // the samples would be merged into the next manual recording
+            stopBackground(false);
+            startBackground();
+         }
+      }
+      return started;
+   }
+
+   /**
+    * Starts low-frequency recording that keeps only the last few chunks; these provide the samples preceding
+    * a trigger, as the spike is often over by the time it is detected.
+    */
+   private synchronized void startBackground() {
+      if (triggers == null || triggers.preBuffer() <= 0 || backgroundRecord != null || perfRecord != null) {
+         return;
+      }
+      try {
+         startBackgroundRecord();
+      } catch (RuntimeException e) {
+         // e.g. the cgroups are not found, the triggers keep working without the pre-trigger samples
+         log.error("Failed to start background recording", e);
+      }
+   }
+
+   private void startBackgroundRecord() {
+      File background = new File(dir, "background");
+      if (!background.isDirectory() && !background.mkdirs()) {
+         log.errorf("Failed to create %s", background);
+         return;
+      }
+      LiveRecording.deleteChunks(background);
+      new File(background, "perf.script").delete();
+      // the pre-trigger samples are added to the primary event of triggered recordings
+      backgroundEvents = List.of(PerfEvents.resolve(EVENTS).get(0));
+      List<String> command = perfRecordCommand(BACKGROUND_FREQUENCY, new File(background, "perf.data"), PROCESS_PATTERN, backgroundEvents);
+      if (command == null) {
+         return;
+      }
+      int chunk = Math.max(1, (triggers.preBuffer() + 2) / 3);
+      command.add("--switch-output=" + chunk + "s");
+      command.add("--switch-max-files=4");
+      try {
+         backgroundRecord = new ProcessBuilder().command(command).inheritIO().start();
+      } catch (IOException e) {
+         log.error("Failed to start background recording", e);
+      }
+   }
+
+   private synchronized void stopBackground(boolean keep) {
+      File background = new File(dir, "background");
+      if (backgroundRecord != null) {
+         backgroundRecord.destroy();
+         try {
+            // perf writes out the last chunk on exit
+            backgroundRecord.waitFor();
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+         backgroundRecord = null;
+      }
+      if (preTrigger != null) {
+         preTrigger.close();
+      }
+      if (keep) {
+         preTrigger = new LiveRecording(background, mountPoint, backgroundEvents, transforms());
+      } else {
+         preTrigger = null;
+         LiveRecording.deleteChunks(background);
+         new File(background, "perf.script").delete();
+      }
+   }
+
+   private void mergePreTrigger(LiveRecording preTrigger) {
+      File collapsed = new File(dir, "perf.collapsed");
+      try {
+         preTrigger.refresh();
+         try (CollapsedStacks merged = new CollapsedStacks(dir)) {
+            merged.read(collapsed);
+            long samples = merged.samples();
+            preTrigger.mergeInto(merged, FREQUENCY / BACKGROUND_FREQUENCY);
+            merged.write(collapsed);
+            log.infof("Added %d pre-trigger samples (scaled) to %d samples", merged.samples() - samples, samples);
+         }
+      } catch (IOException | InterruptedException e) {
+         log.error("Failed to add pre-trigger samples", e);
+      } finally {
+         preTrigger.close();
+      }
+   }
+
    private void backupOldChart() {
-      File target = new File("/out/perf.svg");
+      File target = new File(dir, "perf.svg");
       if (!target.exists()) {
          return;
       }
       int counter = 0;
-      File backup = new File("/out/perf." + counter + ".svg");
+      File backup = new File(dir, "perf." + counter + ".svg");
       while (backup.exists()) {
          ++counter;
-         backup = new File("/out/perf." + counter + ".svg");
+         backup = new File(dir, "perf." + counter + ".svg");
       }
       try {
          log.infof("Backing up %s to %s", target.toString(), backup.toString());
@@ -435,12 +1333,128 @@ public class Controller {
    @GET
    @Path("chart")
    @Produces("image/svg+xml")
-   public Response chart() {
-      File file = new File("/out/perf.svg");
+   public Response chart(@QueryParam("live") boolean live, @QueryParam("event") String event) {
+      File file = live ? new File(dir, "live.svg") : chartFile(event);
       if (file.exists()) {
          return Response.ok(file).build();
       } else {
          return Response.status(404).build();
       }
    }
+
+   @GET
+   @Path("export")
+   @Produces(MediaType.APPLICATION_OCTET_STREAM)
+   public Response export(@QueryParam("format") @DefaultValue("pprof") String format, @QueryParam("event") String event) {
+      File collapsed = collapsedFile(event);
+      // allocation tracing has bytes, not samples taken at FREQUENCY
+      String resolved = event == null ? events.get(0) : event;
+      if (allocations != null) {
+         collapsed = AllocationTracing.bytesFile(resolved, collapsed);
+      }
+      if (!collapsed.exists()) {
+         return Response.status(404).build();
+      }
+      String suffix = PerfEvents.suffix(events, event);
+      File target;
+      if ("pprof".equalsIgnoreCase(format)) {
+         target = new File(dir, "perf" + suffix + ".pb.gz");
+      } else if ("jfr".equalsIgnoreCase(format)) {
+         target = new File(dir, "perf" + suffix + ".jfr");
+      } else {
+         throw new WebApplicationException("Unknown export format: " + format, 400);
+      }
+      if (!target.exists() || target.lastModified() < collapsed.lastModified()) {
+         File tmp = new File(target.getPath() + ".tmp");
+         try {
+            log.infof("Exporting %s to %s", collapsed, target);
+            if (allocations != null) {
+               if (target.getName().endsWith(".jfr")) {
+                  JfrExport.writeAllocations(collapsed, tmp, recordStart, recordEnd);
+               } else {
+                  PprofExport.writeMemory(collapsed, tmp, recordStart, recordEnd, AllocationTracing.sampleType(resolved));
+               }
+            } else if (target.getName().endsWith(".jfr")) {
+               JfrExport.write(collapsed, tmp, recordStart, recordEnd);
+            } else {
+               PprofExport.write(collapsed, tmp, recordStart, recordEnd, FREQUENCY);
+            }
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+         } catch (IOException e) {
+            throw new WebApplicationException("Failed to export to " + format, e);
+         }
+      }
+      return Response.ok(target).build();
+   }
+
+   @GET
+   @Path("report")
+   public Response report(@QueryParam("top") @DefaultValue("50") int top,
+                          @QueryParam("filter") String filter,
+                          @QueryParam("module") String module,
+                          @QueryParam("sort") @DefaultValue("self") String sort,
+                          @QueryParam("format") @DefaultValue("json") String format,
+                          @QueryParam("event") String event) {
+      File file = collapsedFile(event);
+      if (!file.exists()) {
+         return Response.status(404).build();
+      }
+      Pattern pattern = null;
+      if (filter != null && !filter.isEmpty()) {
+         try {
+            pattern = Pattern.compile(filter);
+         } catch (PatternSyntaxException e) {
+            throw new WebApplicationException("Invalid filter: " + e.getMessage(), 400);
+         }
+      }
+      Report report;
+      try {
+         report = Report.read(file.toPath(), Modules.read(new File(dir, Modules.FILE)), pattern, module);
+      } catch (IOException e) {
+         throw new WebApplicationException("Failed to read collapsed stacks", e);
+      }
+      boolean byTotal = "total".equalsIgnoreCase(sort);
+      if ("csv".equalsIgnoreCase(format)) {
+         return Response.ok(Report.toCsv(report.entries(top, byTotal)), "text/csv").build();
+      }
+      return Response.ok(report.top(top, byTotal), MediaType.APPLICATION_JSON).build();
+   }
+
+   /**
+    * @return Events of the last recording, the primary one first.
+    */
+   @GET
+   @Path("events")
+   @Produces(MediaType.APPLICATION_JSON)
+   public synchronized List<String> events() {
+      return events;
+   }
+
+   @RegisterForReflection
+   public static class Timing {
+      public long scheduledStart;
+      public long start;
+      public long scheduledStop;
+      public long stop;
+   }
+
+   /**
+    * Resolved command of a recording that has not started yet.
+    */
+   private static class PreparedRecording {
+      final List<String> command;
+      final List<String> events;
+      final String allocations;
+      final Pattern threadFilter;
+      // seconds between the live chart refreshes, 0 when not live
+      final int liveInterval;
+
+      PreparedRecording(List<String> command, List<String> events, String allocations, Pattern threadFilter, int liveInterval) {
+         this.command = command;
+         this.events = events;
+         this.allocations = allocations;
+         this.threadFilter = threadFilter;
+         this.liveInterval = liveInterval;
+      }
+   }
 }
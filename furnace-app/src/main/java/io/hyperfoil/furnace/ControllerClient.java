@@ -1,16 +1,23 @@
 package io.hyperfoil.furnace;
 
+import java.util.List;
+
 import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
+import io.quarkus.runtime.annotations.RegisterForReflection;
+
+@RegisterForReflection
 @Path("/controller")
 public interface ControllerClient {
    @POST
    @Path("start")
-   void start();
+   void start(@QueryParam("live") boolean live, @QueryParam("events") String events, @QueryParam("allocations") String allocations);
 
    @POST
    @Path("stop")
@@ -20,7 +27,37 @@ public interface ControllerClient {
    @Path("status")
    String status();
 
+   @POST
+   @Path("schedule")
+   void schedule(@QueryParam("startAt") long startAt, @QueryParam("stopAt") long stopAt, @QueryParam("symfs") boolean symfs,
+                 @QueryParam("width") int width, @QueryParam("colors") String colors, @QueryParam("inverted") boolean inverted,
+                 @QueryParam("events") String events);
+
+   @GET
+   @Path("clock")
+   @Produces(MediaType.TEXT_PLAIN)
+   long clock();
+
+   @GET
+   @Path("timing")
+   @Produces(MediaType.APPLICATION_JSON)
+   Controller.Timing timing();
+
    @GET
    @Path("chart")
-   Response chart();
+   Response chart(@QueryParam("live") boolean live, @QueryParam("event") String event);
+
+   @GET
+   @Path("export")
+   Response export(@QueryParam("format") String format, @QueryParam("event") String event);
+
+   @GET
+   @Path("report")
+   Response report(@QueryParam("top") int top, @QueryParam("filter") String filter, @QueryParam("module") String module,
+                   @QueryParam("sort") String sort, @QueryParam("format") String format, @QueryParam("event") String event);
+
+   @GET
+   @Path("events")
+   @Produces(MediaType.APPLICATION_JSON)
+   List<String> events();
 }
@@ -0,0 +1,522 @@
+package io.hyperfoil.furnace;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes collapsed stacks as a single-chunk JFR file with <code>jdk.ExecutionSample</code> events,
+ * readable by the <code>jfr</code> tool and JDK Mission Control. Symbols, methods, stack traces and threads
+ * are stored in constant pools and referenced from the events.
+ * <p>
+ * Collapsed stacks carry no timing information, so the samples are spread evenly over the recording
+ * in the order of the collapsed file. The root frame (thread name) becomes the sampled thread.
+ * <p>
+ * Allocation tracing results are written as one <code>jdk.ObjectAllocationSample</code> event per stack, with
+ * the bytes as its weight; the allocated type is not known.
+ */
+public class JfrExport {
+   private static final long TYPE_METADATA = 0;
+   private static final long TYPE_CONSTANT_POOL = 1;
+   private static final long TYPE_LONG = 10;
+   private static final long TYPE_INT = 11;
+   private static final long TYPE_BOOLEAN = 12;
+   private static final long TYPE_STRING = 13;
+   private static final long TYPE_THREAD = 20;
+   private static final long TYPE_SYMBOL = 21;
+   private static final long TYPE_CLASS = 22;
+   private static final long TYPE_METHOD = 23;
+   private static final long TYPE_FRAME_TYPE = 24;
+   private static final long TYPE_STACK_FRAME = 25;
+   private static final long TYPE_STACK_TRACE = 26;
+   private static final long TYPE_THREAD_STATE = 27;
+   private static final long TYPE_TIMESTAMP = 30;
+   private static final long TYPE_DATA_AMOUNT = 31;
+   private static final long TYPE_EXECUTION_SAMPLE = 100;
+   private static final long TYPE_OBJECT_ALLOCATION_SAMPLE = 101;
+   private static final int HEADER_SIZE = 68;
+   private static final String NATIVE_CLASS = "[native]";
+   private static final String[] FRAME_TYPES = { "Interpreted", "JIT compiled", "Inlined", "Native" };
+
+   private final Map<String, Long> symbols = new LinkedHashMap<>();
+   private final Map<String, Long> classes = new LinkedHashMap<>();
+   private final Map<String, long[]> methods = new LinkedHashMap<>();
+   private final Map<String, Long> threads = new LinkedHashMap<>();
+   private final Map<String, Long> stackTraces = new HashMap<>();
+   private final ByteArrayOutputStream stackTracePool = new ByteArrayOutputStream();
+   private final ByteArrayOutputStream event = new ByteArrayOutputStream();
+   private final ByteArrayOutputStream frames = new ByteArrayOutputStream();
+
+   private JfrExport() {
+   }
+
+   public static void write(File collapsed, File target, long startMillis, long endMillis) throws IOException {
+      write(collapsed, target, startMillis, endMillis, false);
+   }
+
+   /**
+    * @param collapsed Collapsed stacks with bytes in place of the sample counts.
+    */
+   public static void writeAllocations(File collapsed, File target, long startMillis, long endMillis) throws IOException {
+      write(collapsed, target, startMillis, endMillis, true);
+   }
+
+   private static void write(File collapsed, File target, long startMillis, long endMillis, boolean allocations) throws IOException {
+      // number of events, to spread them over the recording
+      long samples = 0;
+      try (BufferedReader reader = Files.newBufferedReader(collapsed.toPath(), StandardCharsets.UTF_8)) {
+         String line;
+         while ((line = reader.readLine()) != null) {
+            long count = count(line);
+            samples += allocations ? Math.min(count, 1) : count;
+         }
+      }
+      long startNanos = TimeUnit.MILLISECONDS.toNanos(startMillis);
+      long durationNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, endMillis - startMillis));
+      JfrExport export = new JfrExport();
+      try (FileChannel channel = FileChannel.open(target.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+           BufferedReader reader = Files.newBufferedReader(collapsed.toPath(), StandardCharsets.UTF_8)) {
+         channel.position(HEADER_SIZE);
+         OutputStream output = new ChannelOutputStream(channel);
+         long sample = 0;
+         String line;
+         while ((line = reader.readLine()) != null) {
+            long count = count(line);
+            if (count <= 0) {
+               continue;
+            }
+            String stack = line.substring(0, line.lastIndexOf(' '));
+            int firstSemicolon = stack.indexOf(';');
+            String thread = firstSemicolon < 0 ? stack : stack.substring(0, firstSemicolon);
+            long threadId = export.threads.computeIfAbsent(thread, t -> (long) export.threads.size() + 1);
+            long stackTraceId = export.stackTrace(firstSemicolon < 0 ? "" : stack.substring(firstSemicolon + 1));
+            if (allocations) {
+               long ticks = startNanos + (samples <= 1 ? 0 : durationNanos * sample++ / samples);
+               export.event.reset();
+               writeVarint(export.event, TYPE_OBJECT_ALLOCATION_SAMPLE);
+               writeVarint(export.event, ticks);
+               writeVarint(export.event, threadId);
+               writeVarint(export.event, stackTraceId);
+               writeVarint(export.event, export.classId(NATIVE_CLASS));
+               writeVarint(export.event, count);
+               writeEvent(output, export.event);
+               continue;
+            }
+            for (long i = 0; i < count; ++i, ++sample) {
+               long ticks = startNanos + (samples <= 1 ? 0 : durationNanos * sample / samples);
+               export.event.reset();
+               writeVarint(export.event, TYPE_EXECUTION_SAMPLE);
+               writeVarint(export.event, ticks);
+               writeVarint(export.event, threadId);
+               writeVarint(export.event, stackTraceId);
+               // thread state
+               writeVarint(export.event, 1);
+               writeEvent(output, export.event);
+            }
+         }
+         output.flush();
+         long constantPoolOffset = channel.position();
+         export.writeConstantPools(output, startNanos);
+         output.flush();
+         long metadataOffset = channel.position();
+         export.writeMetadata(output, startNanos);
+         output.flush();
+         long chunkSize = channel.position();
+
+         ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+         header.put(new byte[]{ 'F', 'L', 'R', 0 });
+         header.putShort((short) 2);
+         header.putShort((short) 0);
+         header.putLong(chunkSize);
+         header.putLong(constantPoolOffset);
+         header.putLong(metadataOffset);
+         header.putLong(startNanos);
+         header.putLong(durationNanos);
+         header.putLong(startNanos);
+         // ticks are nanoseconds
+         header.putLong(TimeUnit.SECONDS.toNanos(1));
+         // file state (finished), two unused bytes, flags (compressed integers, final chunk)
+         header.put(new byte[]{ 0, 0, 0, 3 });
+         header.flip();
+         channel.write(header, 0);
+      }
+   }
+
+   private static long count(String line) {
+      int lastSpace = line.lastIndexOf(' ');
+      if (lastSpace <= 0) {
+         return 0;
+      }
+      try {
+         return Long.parseLong(line.substring(lastSpace + 1).trim());
+      } catch (NumberFormatException e) {
+         return 0;
+      }
+   }
+
+   private long stackTrace(String stack) throws IOException {
+      Long existing = stackTraces.get(stack);
+      if (existing != null) {
+         return existing;
+      }
+      long id = stackTraces.size() + 1;
+      stackTraces.put(stack, id);
+      String[] parts = stack.isEmpty() ? new String[0] : stack.split(";");
+      frames.reset();
+      writeVarint(frames, id);
+      // truncated
+      frames.write(0);
+      writeVarint(frames, parts.length);
+      // JFR lists the top frame first
+      for (int i = parts.length - 1; i >= 0; --i) {
+         String frame = parts[i];
+         int frameType = 3;
+         boolean kernel = frame.endsWith("_[k]");
+         if (frame.endsWith("_[j]")) {
+            frameType = 1;
+         } else if (frame.endsWith("_[i]")) {
+            frameType = 2;
+         }
+         if (frame.length() > 4 && frame.charAt(frame.length() - 4) == '_' && frame.charAt(frame.length() - 3) == '[') {
+            frame = frame.substring(0, frame.length() - 4);
+         }
+         writeVarint(frames, method(frame, kernel));
+         // line number, bytecode index
+         writeVarint(frames, 0);
+         writeVarint(frames, 0);
+         writeVarint(frames, frameType + 1);
+      }
+      frames.writeTo(stackTracePool);
+      return id;
+   }
+
+   private long method(String frame, boolean kernel) {
+      String className = kernel ? "[kernel]" : NATIVE_CLASS;
+      String methodName = frame;
+      int separator = frame.lastIndexOf("::");
+      if (separator > 0) {
+         className = frame.substring(0, separator);
+         // perf-map-agent uses type descriptors, e.g. Ljava/lang/Thread;::run, and stackcollapse-perf.pl
+         // replaces the semicolon with a colon
+         if (className.length() > 2 && className.startsWith("L") && (className.endsWith(";") || className.endsWith(":"))) {
+            className = className.substring(1, className.length() - 1);
+         }
+         methodName = frame.substring(separator + 2);
+      }
+      String key = className + "::" + methodName;
+      long[] method = methods.get(key);
+      if (method == null) {
+         method = new long[]{ methods.size() + 1, classId(className), symbol(methodName) };
+         methods.put(key, method);
+      }
+      return method[0];
+   }
+
+   private long classId(String className) {
+      return classes.computeIfAbsent(className, c -> {
+         symbol(c);
+         return (long) classes.size() + 1;
+      });
+   }
+
+   private long symbol(String value) {
+      return symbols.computeIfAbsent(value, v -> (long) symbols.size() + 1);
+   }
+
+   private void writeConstantPools(OutputStream output, long startNanos) throws IOException {
+      // method signatures are not known
+      long descriptor = symbol("()V");
+      event.reset();
+      writeVarint(event, TYPE_CONSTANT_POOL);
+      writeVarint(event, startNanos);
+      // duration, delta to the previous constant pool event (0 = none), flush
+      writeVarint(event, 0);
+      writeVarint(event, 0);
+      event.write(0);
+      writeVarint(event, 7);
+
+      writeVarint(event, TYPE_THREAD);
+      writeVarint(event, threads.size());
+      long javaThreadId = 1;
+      for (Map.Entry<String, Long> entry : threads.entrySet()) {
+         writeVarint(event, entry.getValue());
+         writeString(event, entry.getKey());
+         writeVarint(event, entry.getValue());
+         writeString(event, entry.getKey());
+         writeVarint(event, javaThreadId++);
+      }
+
+      writeVarint(event, TYPE_THREAD_STATE);
+      writeVarint(event, 1);
+      writeVarint(event, 1);
+      writeString(event, "STATE_RUNNABLE");
+
+      writeVarint(event, TYPE_FRAME_TYPE);
+      writeVarint(event, FRAME_TYPES.length);
+      for (int i = 0; i < FRAME_TYPES.length; ++i) {
+         writeVarint(event, i + 1);
+         writeString(event, FRAME_TYPES[i]);
+      }
+
+      writeVarint(event, TYPE_SYMBOL);
+      writeVarint(event, symbols.size());
+      for (Map.Entry<String, Long> entry : symbols.entrySet()) {
+         writeVarint(event, entry.getValue());
+         writeString(event, entry.getKey());
+      }
+
+      writeVarint(event, TYPE_CLASS);
+      writeVarint(event, classes.size());
+      for (Map.Entry<String, Long> entry : classes.entrySet()) {
+         writeVarint(event, entry.getValue());
+         writeVarint(event, symbols.get(entry.getKey()));
+         // modifiers, hidden
+         writeVarint(event, 0);
+         event.write(0);
+      }
+
+      writeVarint(event, TYPE_METHOD);
+      writeVarint(event, methods.size());
+      for (long[] method : methods.values()) {
+         writeVarint(event, method[0]);
+         writeVarint(event, method[1]);
+         writeVarint(event, method[2]);
+         // descriptor, modifiers, hidden
+         writeVarint(event, descriptor);
+         writeVarint(event, 0);
+         event.write(0);
+      }
+
+      writeVarint(event, TYPE_STACK_TRACE);
+      writeVarint(event, stackTraces.size());
+      stackTracePool.writeTo(event);
+      writeEvent(output, event);
+   }
+
+   private void writeMetadata(OutputStream output, long startNanos) throws IOException {
+      Element metadata = new Element("metadata");
+      metadata.add(primitive("long", TYPE_LONG));
+      metadata.add(primitive("int", TYPE_INT));
+      metadata.add(primitive("boolean", TYPE_BOOLEAN));
+      metadata.add(primitive("java.lang.String", TYPE_STRING));
+      metadata.add(type("jdk.jfr.Timestamp", TYPE_TIMESTAMP, "java.lang.annotation.Annotation")
+            .add(field("value", TYPE_STRING, false)));
+      metadata.add(type("jdk.jfr.DataAmount", TYPE_DATA_AMOUNT, "java.lang.annotation.Annotation")
+            .add(field("value", TYPE_STRING, false)));
+      metadata.add(type("java.lang.Thread", TYPE_THREAD, null)
+            .add(field("osName", TYPE_STRING, false))
+            .add(field("osThreadId", TYPE_LONG, false))
+            .add(field("javaName", TYPE_STRING, false))
+            .add(field("javaThreadId", TYPE_LONG, false)));
+      metadata.add(type("jdk.types.ThreadState", TYPE_THREAD_STATE, null).attribute("simpleType", "true")
+            .add(field("name", TYPE_STRING, false)));
+      metadata.add(type("jdk.types.FrameType", TYPE_FRAME_TYPE, null).attribute("simpleType", "true")
+            .add(field("description", TYPE_STRING, false)));
+      metadata.add(type("jdk.types.Symbol", TYPE_SYMBOL, null).attribute("simpleType", "true")
+            .add(field("string", TYPE_STRING, false)));
+      metadata.add(type("java.lang.Class", TYPE_CLASS, null)
+            .add(field("name", TYPE_SYMBOL, true))
+            .add(field("modifiers", TYPE_INT, false))
+            .add(field("hidden", TYPE_BOOLEAN, false)));
+      metadata.add(type("jdk.types.Method", TYPE_METHOD, null)
+            .add(field("type", TYPE_CLASS, true))
+            .add(field("name", TYPE_SYMBOL, true))
+            .add(field("descriptor", TYPE_SYMBOL, true))
+            .add(field("modifiers", TYPE_INT, false))
+            .add(field("hidden", TYPE_BOOLEAN, false)));
+      metadata.add(type("jdk.types.StackFrame", TYPE_STACK_FRAME, null)
+            .add(field("method", TYPE_METHOD, true))
+            .add(field("lineNumber", TYPE_INT, false))
+            .add(field("bytecodeIndex", TYPE_INT, false))
+            .add(field("type", TYPE_FRAME_TYPE, true)));
+      metadata.add(type("jdk.types.StackTrace", TYPE_STACK_TRACE, null)
+            .add(field("truncated", TYPE_BOOLEAN, false))
+            .add(field("frames", TYPE_STACK_FRAME, false).attribute("dimension", "1")));
+      metadata.add(type("jdk.ExecutionSample", TYPE_EXECUTION_SAMPLE, "jdk.jfr.Event")
+            .add(field("startTime", TYPE_LONG, false)
+                  .add(new Element("annotation").attribute("class", String.valueOf(TYPE_TIMESTAMP)).attribute("value", "TICKS")))
+            .add(field("sampledThread", TYPE_THREAD, true))
+            .add(field("stackTrace", TYPE_STACK_TRACE, true))
+            .add(field("state", TYPE_THREAD_STATE, true)));
+      metadata.add(type("jdk.ObjectAllocationSample", TYPE_OBJECT_ALLOCATION_SAMPLE, "jdk.jfr.Event")
+            .add(field("startTime", TYPE_LONG, false)
+                  .add(new Element("annotation").attribute("class", String.valueOf(TYPE_TIMESTAMP)).attribute("value", "TICKS")))
+            .add(field("eventThread", TYPE_THREAD, true))
+            .add(field("stackTrace", TYPE_STACK_TRACE, true))
+            .add(field("objectClass", TYPE_CLASS, true))
+            .add(field("weight", TYPE_LONG, false)
+                  .add(new Element("annotation").attribute("class", String.valueOf(TYPE_DATA_AMOUNT)).attribute("value", "BYTES"))));
+      Element root = new Element("root")
+            .add(metadata)
+            .add(new Element("region").attribute("gmtOffset", "0").attribute("locale", "en_US"));
+
+      Map<String, Integer> strings = new LinkedHashMap<>();
+      root.collectStrings(strings);
+      event.reset();
+      writeVarint(event, TYPE_METADATA);
+      writeVarint(event, startNanos);
+      // duration, metadata id
+      writeVarint(event, 0);
+      writeVarint(event, 1);
+      writeVarint(event, strings.size());
+      for (String string : strings.keySet()) {
+         writeString(event, string);
+      }
+      root.write(event, strings);
+      writeEvent(output, event);
+   }
+
+   private static Element primitive(String name, long id) {
+      return new Element("class").attribute("name", name).attribute("id", String.valueOf(id));
+   }
+
+   private static Element type(String name, long id, String superType) {
+      Element type = new Element("class").attribute("name", name).attribute("id", String.valueOf(id));
+      if (superType != null) {
+         type.attribute("superType", superType);
+      }
+      return type;
+   }
+
+   private static Element field(String name, long type, boolean constantPool) {
+      Element field = new Element("field").attribute("name", name).attribute("class", String.valueOf(type));
+      if (constantPool) {
+         field.attribute("constantPool", "true");
+      }
+      return field;
+   }
+
+   private static void writeEvent(OutputStream output, ByteArrayOutputStream event) throws IOException {
+      // the size includes the size field itself
+      int size = event.size() + 1;
+      while (varintLength(size) + event.size() != size) {
+         ++size;
+      }
+      writeVarint(output, size);
+      event.writeTo(output);
+   }
+
+   private static int varintLength(long value) {
+      int length = 1;
+      while ((value & ~0x7FL) != 0) {
+         value >>>= 7;
+         ++length;
+      }
+      return length;
+   }
+
+   private static void writeString(OutputStream output, String value) throws IOException {
+      if (value.isEmpty()) {
+         // empty string encoding
+         output.write(1);
+         return;
+      }
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      // UTF-8 byte array encoding
+      output.write(3);
+      writeVarint(output, bytes.length);
+      output.write(bytes);
+   }
+
+   private static void writeVarint(OutputStream output, long value) throws IOException {
+      while ((value & ~0x7FL) != 0) {
+         output.write((int) ((value & 0x7F) | 0x80));
+         value >>>= 7;
+      }
+      output.write((int) value);
+   }
+
+   private static class Element {
+      private final String name;
+      private final List<String[]> attributes = new ArrayList<>();
+      private final List<Element> children = new ArrayList<>();
+
+      private Element(String name) {
+         this.name = name;
+      }
+
+      Element attribute(String key, String value) {
+         attributes.add(new String[]{ key, value });
+         return this;
+      }
+
+      Element add(Element child) {
+         children.add(child);
+         return this;
+      }
+
+      void collectStrings(Map<String, Integer> strings) {
+         strings.putIfAbsent(name, strings.size());
+         for (String[] attribute : attributes) {
+            strings.putIfAbsent(attribute[0], strings.size());
+            strings.putIfAbsent(attribute[1], strings.size());
+         }
+         children.forEach(child -> child.collectStrings(strings));
+      }
+
+      void write(OutputStream output, Map<String, Integer> strings) throws IOException {
+         writeVarint(output, strings.get(name));
+         writeVarint(output, attributes.size());
+         for (String[] attribute : attributes) {
+            writeVarint(output, strings.get(attribute[0]));
+            writeVarint(output, strings.get(attribute[1]));
+         }
+         writeVarint(output, children.size());
+         for (Element child : children) {
+            child.write(output, strings);
+         }
+      }
+   }
+
+   private static class ChannelOutputStream extends OutputStream {
+      private final FileChannel channel;
+      private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+      private ChannelOutputStream(FileChannel channel) {
+         this.channel = channel;
+      }
+
+      @Override
+      public void write(int b) throws IOException {
+         if (!buffer.hasRemaining()) {
+            flush();
+         }
+         buffer.put((byte) b);
+      }
+
+      @Override
+      public void write(byte[] bytes, int offset, int length) throws IOException {
+         while (length > 0) {
+            if (!buffer.hasRemaining()) {
+               flush();
+            }
+            int chunk = Math.min(length, buffer.remaining());
+            buffer.put(bytes, offset, chunk);
+            offset += chunk;
+            length -= chunk;
+         }
+      }
+
+      @Override
+      public void flush() throws IOException {
+         buffer.flip();
+         while (buffer.hasRemaining()) {
+            channel.write(buffer);
+         }
+         buffer.clear();
+      }
+   }
+}
@@ -0,0 +1,154 @@
+package io.hyperfoil.furnace;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Folds the chunks rotated by <code>perf record --switch-output</code> into an in-memory aggregate
+ * of collapsed stacks. Each chunk is decoded only once, so a refresh costs time proportional to the new
+ * samples rather than to the whole recording. The decoded chunks are appended to <code>/out/perf.script</code>
+ * and the regular pipeline picks up from there when the recording stops.
+ */
+class LiveRecording {
+   private static final Logger log = Logger.getLogger(LiveRecording.class);
+   static final String CHUNK_PREFIX = "perf.data.";
+
+   private final File dir;
+   private final String symfs;
+   private final List<String> events;
+   private final CollapsedStacks stacks;
+
+   /**
+    * @param events Recorded events, only samples of the first one are shown.
+    */
+   LiveRecording(File dir, String symfs, List<String> events, StackTransforms transforms) {
+      this.dir = dir;
+      this.symfs = symfs;
+      this.events = events;
+      this.stacks = new CollapsedStacks(transforms, dir);
+   }
+
+   static void deleteChunks(File dir) {
+      for (File chunk : chunks(dir)) {
+         if (!chunk.delete()) {
+            log.errorf("Failed to delete %s", chunk);
+         }
+      }
+   }
+
+   private static List<File> chunks(File dir) {
+      String[] names = dir.list((d, name) -> name.startsWith(CHUNK_PREFIX) && name.length() > CHUNK_PREFIX.length()
+            && Character.isDigit(name.charAt(CHUNK_PREFIX.length())));
+      if (names == null) {
+         return List.of();
+      }
+      // perf names the chunks by timestamp so lexicographic order is chronological
+      Arrays.sort(names);
+      List<File> files = new ArrayList<>(names.length);
+      for (String name : names) {
+         files.add(new File(dir, name));
+      }
+      return files;
+   }
+
+   /**
+    * @return True if any new samples were folded into the aggregate.
+    */
+   synchronized boolean refresh() throws IOException, InterruptedException {
+      boolean changed = false;
+      for (File chunk : chunks(dir)) {
+         File chunkScript = new File(dir, "perf.script.chunk");
+         List<String> command = new ArrayList<>(Arrays.asList("perf", "script", "-i", chunk.toString(), "--kallsyms=/proc/kallsyms"));
+         if (symfs != null) {
+            command.add("--symfs=" + symfs);
+         }
+         int rc = new ProcessBuilder().command(command).inheritIO().redirectOutput(chunkScript).start().waitFor();
+         if (rc != 0) {
+            throw new IOException("Non-zero return code from `perf script` on " + chunk + ": " + rc);
+         }
+         Process collapse;
+         if (events.size() > 1) {
+            collapse = new ProcessBuilder().command("/root/FlameGraph/stackcollapse-perf.pl", "--all")
+                  .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+            writePrimarySamples(chunkScript, collapse.getOutputStream());
+         } else {
+            collapse = new ProcessBuilder().command("/root/FlameGraph/stackcollapse-perf.pl", "--all", chunkScript.toString())
+                  .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+         }
+         try (BufferedReader reader = new BufferedReader(new InputStreamReader(collapse.getInputStream(), StandardCharsets.UTF_8))) {
+            stacks.addAll(reader);
+         }
+         rc = collapse.waitFor();
+         if (rc != 0) {
+            throw new IOException("Non-zero return code from stackcollapse-perf.pl on " + chunk + ": " + rc);
+         }
+         try (var output = Files.newOutputStream(new File(dir, "perf.script").toPath(), StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            Files.copy(chunkScript.toPath(), output);
+         }
+         Files.delete(chunkScript.toPath());
+         Files.delete(chunk.toPath());
+         changed = true;
+      }
+      return changed;
+   }
+
+   /**
+    * The script keeps the first event it sees, which might not be the primary one, and its
+    * <code>--event-filter</code> does not match names with modifiers that perf appends.
+    */
+   private void writePrimarySamples(File script, OutputStream output) throws IOException {
+      // the output can contain anything in the comm and symbol names, ISO-8859-1 passes the bytes through
+      try (BufferedReader reader = Files.newBufferedReader(script.toPath(), StandardCharsets.ISO_8859_1);
+           Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.ISO_8859_1), 65536)) {
+         boolean header = true;
+         boolean keep = false;
+         String line;
+         while ((line = reader.readLine()) != null) {
+            if (line.isEmpty()) {
+               header = true;
+            } else if (header) {
+               header = false;
+               keep = events.get(0).equals(PerfEvents.sampleEvent(line, events));
+            }
+            if (keep) {
+               writer.write(line);
+               writer.write('\n');
+            }
+         }
+      }
+   }
+
+   synchronized long samples() {
+      return stacks.samples();
+   }
+
+   synchronized void mergeInto(CollapsedStacks target, long multiplier) throws IOException {
+      target.addAll(stacks, multiplier);
+   }
+
+   /**
+    * Deletes the aggregate spilled to disk and releases its memory; the decoded chunks remain in
+    * <code>/out/perf.script</code>.
+    */
+   synchronized void close() {
+      stacks.close();
+   }
+
+   synchronized void writeCollapsed(File file) throws IOException {
+      stacks.write(file);
+   }
+}
@@ -0,0 +1,115 @@
+package io.hyperfoil.furnace;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Libraries (DSOs) of the symbolized native frames. <code>stackcollapse-perf.pl</code> drops the
+ * <code>(/path/to/libfoo.so)</code> that <code>perf script</code> prints after each frame, keeping only the function
+ * name, so the modules are collected from the same lines while collapsing and stored next to the collapsed stacks
+ * in <code>perf.modules</code> (<code>function&lt;TAB&gt;module</code>). Kernel and JIT frames are recognized from their
+ * annotations and unresolved frames carry the module in the name, these are not stored.
+ */
+class Modules {
+   static final String FILE = "perf.modules";
+   // Go methods, e.g. main.(*Server).Serve, keep their parentheses
+   private static final Pattern KEEP_PARENS = Pattern.compile("\\.\\(.*\\)\\.");
+
+   private final Map<String, String> modules = new HashMap<>();
+
+   /**
+    * @param line Frame line from <code>perf script</code>, decoded as ISO-8859-1, e.g.
+    *             <code>    7f2b4c0d1e2f memcpy+0x1f (/usr/lib64/libc-2.28.so)</code>
+    */
+   void addFrame(String line) {
+      int moduleStart = line.lastIndexOf(" (");
+      if (moduleStart < 0 || line.charAt(line.length() - 1) != ')') {
+         return;
+      }
+      String module = line.substring(moduleStart + 2, line.length() - 1);
+      // same rules as the kernel and JIT annotations of stackcollapse-perf.pl --all
+      if (module.startsWith("[") || module.endsWith("vmlinux") || module.startsWith("/tmp/perf-")) {
+         return;
+      }
+      int start = 0;
+      while (start < moduleStart && Character.isWhitespace(line.charAt(start))) {
+         ++start;
+      }
+      // skip the address
+      start = line.indexOf(' ', start);
+      if (start < 0 || start >= moduleStart) {
+         return;
+      }
+      String function = functionName(line.substring(start + 1, moduleStart).trim());
+      if (function != null && !modules.containsKey(function)) {
+         modules.put(function, module.substring(module.lastIndexOf('/') + 1));
+      }
+   }
+
+   /**
+    * @return Frame name as <code>stackcollapse-perf.pl</code> writes it (with the default tidying), or
+    *         <code>null</code> for frames that do not get a module.
+    */
+   static String functionName(String symbol) {
+      int offset = symbol.lastIndexOf("+0x");
+      if (offset > 0 && symbol.substring(offset + 3).chars().allMatch(c -> Character.digit(c, 16) >= 0)) {
+         symbol = symbol.substring(0, offset);
+      }
+      if (symbol.isEmpty() || symbol.startsWith("(") || symbol.equals("[unknown]")) {
+         return null;
+      }
+      symbol = symbol.replace(';', ':');
+      if (!KEEP_PARENS.matcher(symbol).find()) {
+         symbol = symbol.replace("<", "").replace(">", "");
+         int paren = symbol.indexOf('(');
+         if (paren >= 0) {
+            symbol = symbol.substring(0, paren);
+         }
+      }
+      // the collapsed stacks are read as UTF-8
+      return new String(symbol.getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8);
+   }
+
+   void addAll(Modules other) {
+      other.modules.forEach(modules::putIfAbsent);
+   }
+
+   Map<String, String> map() {
+      return modules;
+   }
+
+   void write(File file) throws IOException {
+      try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8))) {
+         for (Map.Entry<String, String> entry : modules.entrySet()) {
+            writer.append(entry.getKey()).append('\t').append(entry.getValue()).append('\n');
+         }
+      }
+   }
+
+   /**
+    * @return Module of each function, empty if the file does not exist (e.g. recordings made before it was written).
+    */
+   static Map<String, String> read(File file) throws IOException {
+      Map<String, String> modules = new HashMap<>();
+      if (!file.exists()) {
+         return modules;
+      }
+      try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+         String line;
+         while ((line = reader.readLine()) != null) {
+            int tab = line.lastIndexOf('\t');
+            if (tab > 0) {
+               modules.put(line.substring(0, tab), line.substring(tab + 1));
+            }
+         }
+      }
+      return modules;
+   }
+}
@@ -0,0 +1,135 @@
+package io.hyperfoil.furnace;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.ws.rs.WebApplicationException;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Events sampled by <code>perf record</code>. Hardware events need a PMU, which is often not available in VMs;
+ * support of each event is probed with <code>perf stat</code> and unsupported hardware events fall back
+ * to software events. The first event is the primary one: its flamegraph is <code>perf.svg</code>, the other
+ * events get <code>perf.&lt;event&gt;.svg</code>.
+ */
+class PerfEvents {
+   private static final Logger log = Logger.getLogger(PerfEvents.class);
+   static final String DEFAULT = "cycles";
+   static final String CPU_CLOCK = "cpu-clock";
+   // hardware events measuring on-CPU time, cpu-clock samples the same stacks
+   private static final Set<String> CPU_TIME = Set.of("cycles", "cpu-cycles", "instructions", "ref-cycles", "bus-cycles");
+   // results of probing with perf stat, by event
+   static final Map<String, Boolean> supported = new ConcurrentHashMap<>();
+
+   /**
+    * @param events Comma-separated events or <code>null</code> for the default.
+    * @return Events to record, with unsupported events replaced or dropped.
+    */
+   static List<String> resolve(String events) {
+      List<String> resolved = new ArrayList<>();
+      for (String event : parse(events == null || events.isBlank() ? DEFAULT : events)) {
+         if (isSupported(event)) {
+            addUnique(resolved, event);
+         } else if (CPU_TIME.contains(event)) {
+            log.warnf("Event %s is not supported (no PMU?), recording %s instead", event, CPU_CLOCK);
+            addUnique(resolved, CPU_CLOCK);
+         } else {
+            log.warnf("Event %s is not supported and has no software counterpart, not recording it", event);
+         }
+      }
+      if (resolved.isEmpty()) {
+         resolved.add(CPU_CLOCK);
+      }
+      return resolved;
+   }
+
+   /**
+    * @return Part of the file name for charts and collapsed stacks of the event, empty for the primary event.
+    */
+   static String suffix(List<String> events, String event) {
+      if (event == null || event.isEmpty() || !events.isEmpty() && events.get(0).equals(event)) {
+         return "";
+      }
+      return "." + event.replaceAll("[^A-Za-z0-9_-]", "_");
+   }
+
+   /**
+    * @return The recorded event the sample header line belongs to, or <code>null</code>.
+    */
+   static String sampleEvent(String header, List<String> events) {
+      // java 1234/1235 [003] 12345.678901:     10101010 cycles:
+      String trimmed = header.stripTrailing();
+      if (trimmed.endsWith(":")) {
+         trimmed = trimmed.substring(0, trimmed.length() - 1);
+      }
+      String name = trimmed.substring(trimmed.lastIndexOf(' ') + 1);
+      for (String event : events) {
+         // perf can append modifiers, e.g. cpu-clock:pppH
+         if (name.equals(event) || name.startsWith(event + ":")) {
+            return event;
+         }
+      }
+      return null;
+   }
+
+   /**
+    * Splits on commas outside of <code>pmu/term=value,.../</code> definitions.
+    */
+   static List<String> parse(String events) {
+      List<String> list = new ArrayList<>();
+      boolean inPmu = false;
+      int start = 0;
+      for (int i = 0; i <= events.length(); ++i) {
+         char c = i < events.length() ? events.charAt(i) : ',';
+         if (c == '/') {
+            inPmu = !inPmu;
+         } else if (c == ',' && !inPmu) {
+            String event = events.substring(start, i).trim();
+            if (!event.isEmpty()) {
+               list.add(event);
+            }
+            start = i + 1;
+         }
+      }
+      return list;
+   }
+
+   private static void addUnique(List<String> events, String event) {
+      if (!events.contains(event)) {
+         events.add(event);
+      }
+   }
+
+   private static boolean isSupported(String event) {
+      Boolean cached = supported.get(event);
+      if (cached != null) {
+         return cached;
+      }
+      String output;
+      int rc;
+      try {
+         Process process = new ProcessBuilder().command("perf", "stat", "-x", ",", "-e", event, "--", "true")
+               .redirectErrorStream(true).start();
+         output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+         rc = process.waitFor();
+      } catch (IOException e) {
+         throw new WebApplicationException("Failed to probe event " + event, e);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new WebApplicationException("Interrupted probing event " + event, e);
+      }
+      if (rc != 0) {
+         log.errorf("Cannot probe event %s: %s", event, output);
+         throw new WebApplicationException("Invalid event: " + event, 400);
+      }
+      boolean result = !output.contains("<not supported>");
+      supported.put(event, result);
+      return result;
+   }
+}
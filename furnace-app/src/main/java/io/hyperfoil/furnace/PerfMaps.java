@@ -0,0 +1,136 @@
+package io.hyperfoil.furnace;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Resolves frames in JIT-compiled code when <code>perf script</code> runs on another host than the recording.
+ * Perf looks for <code>/tmp/perf-&lt;pid&gt;.map</code> on the local filesystem only (ignoring <code>--symfs</code>),
+ * so these frames come out as <code>[unknown] (/tmp/perf-&lt;pid&gt;.map)</code>; the maps shipped with
+ * the recording are under the root directory with the same path.
+ */
+class PerfMaps {
+   private static final Logger log = Logger.getLogger(PerfMaps.class);
+   private static final Pattern UNKNOWN_FRAME = Pattern.compile("^(\\s+)([0-9a-f]+) \\[unknown\\] \\((/tmp/perf-\\d+\\.map)\\)$");
+
+   private final File root;
+   private final Map<String, NavigableMap<Long, Symbol>> maps = new HashMap<>();
+
+   PerfMaps(File root) {
+      this.root = root;
+   }
+
+   /**
+    * Rewrites the output of <code>perf script</code> in place.
+    */
+   void resolve(File script) throws IOException {
+      File tmp = new File(script.getPath() + ".tmp");
+      long resolved = 0;
+      // the output can contain anything in the comm and symbol names, ISO-8859-1 passes the bytes through
+      try (BufferedReader reader = Files.newBufferedReader(script.toPath(), StandardCharsets.ISO_8859_1);
+           BufferedWriter writer = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.ISO_8859_1)) {
+         String line;
+         while ((line = reader.readLine()) != null) {
+            Matcher matcher = line.indexOf("[unknown]") < 0 ? null : UNKNOWN_FRAME.matcher(line);
+            Symbol symbol;
+            long address = 0;
+            if (matcher != null && matcher.matches()) {
+               address = Long.parseUnsignedLong(matcher.group(2), 16);
+               symbol = lookup(matcher.group(3), address);
+            } else {
+               symbol = null;
+            }
+            if (symbol == null) {
+               writer.write(line);
+            } else {
+               writer.write(matcher.group(1));
+               writer.write(matcher.group(2));
+               writer.write(' ');
+               writer.write(symbol.name);
+               writer.write("+0x");
+               writer.write(Long.toHexString(address - symbol.start));
+               writer.write(" (");
+               writer.write(matcher.group(3));
+               writer.write(')');
+               ++resolved;
+            }
+            writer.newLine();
+         }
+      }
+      Files.move(tmp.toPath(), script.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      if (resolved > 0) {
+         log.infof("Resolved %d JIT frames in %s", resolved, script);
+      }
+   }
+
+   private Symbol lookup(String path, long address) throws IOException {
+      NavigableMap<Long, Symbol> map = maps.get(path);
+      if (map == null) {
+         map = load(new File(root, path));
+         maps.put(path, map);
+      }
+      Map.Entry<Long, Symbol> entry = map.floorEntry(address);
+      if (entry == null || address >= entry.getKey() + entry.getValue().size) {
+         return null;
+      }
+      return entry.getValue();
+   }
+
+   /**
+    * Reads map in the format <code>START SIZE symbol</code>, with hexadecimal numbers.
+    */
+   private static NavigableMap<Long, Symbol> load(File file) throws IOException {
+      NavigableMap<Long, Symbol> map = new TreeMap<>();
+      if (!file.isFile()) {
+         return map;
+      }
+      try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.ISO_8859_1)) {
+         String line;
+         while ((line = reader.readLine()) != null) {
+            int first = line.indexOf(' ');
+            int second = first < 0 ? -1 : line.indexOf(' ', first + 1);
+            if (second < 0) {
+               continue;
+            }
+            try {
+               long start = parseHex(line.substring(0, first));
+               long size = parseHex(line.substring(first + 1, second));
+               // code can be recompiled at the same address, the later entry wins
+               map.put(start, new Symbol(start, size, line.substring(second + 1)));
+            } catch (NumberFormatException e) {
+               log.debugf("Invalid line in %s: %s", file, line);
+            }
+         }
+      }
+      return map;
+   }
+
+   private static long parseHex(String value) {
+      return Long.parseUnsignedLong(value.startsWith("0x") ? value.substring(2) : value, 16);
+   }
+
+   private static class Symbol {
+      final long start;
+      final long size;
+      final String name;
+
+      Symbol(long start, long size, String name) {
+         this.start = start;
+         this.size = size;
+         this.name = name;
+      }
+   }
+}
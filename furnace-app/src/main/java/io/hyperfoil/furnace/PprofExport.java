@@ -0,0 +1,200 @@
+package io.hyperfoil.furnace;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongUnaryOperator;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes collapsed stacks as gzipped <a href="https://github.com/google/pprof/blob/master/proto/profile.proto">pprof</a>
+ * protobuf. Protobuf allows repeated fields to be interleaved so the profile is written in a single pass over
+ * the collapsed stacks; only the string, function and location tables are kept in memory.
+ * <p>
+ * Sampled CPU profiles have the sample count and CPU time of each stack, with the sampling period; memory
+ * profiles (from allocation tracing) have only the bytes.
+ */
+public class PprofExport {
+   // field numbers in message Profile
+   private static final int PROFILE_SAMPLE_TYPE = 1;
+   private static final int PROFILE_SAMPLE = 2;
+   private static final int PROFILE_LOCATION = 4;
+   private static final int PROFILE_FUNCTION = 5;
+   private static final int PROFILE_STRING_TABLE = 6;
+   private static final int PROFILE_TIME_NANOS = 9;
+   private static final int PROFILE_DURATION_NANOS = 10;
+   private static final int PROFILE_PERIOD_TYPE = 11;
+   private static final int PROFILE_PERIOD = 12;
+
+   private final OutputStream output;
+   private final Map<String, Long> strings = new HashMap<>();
+   private final Map<String, Long> locations = new HashMap<>();
+   private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+   private final List<Long> stack = new ArrayList<>();
+
+   private PprofExport(OutputStream output) {
+      this.output = output;
+   }
+
+   public static void write(File collapsed, File target, long startMillis, long endMillis, int frequency) throws IOException {
+      long period = TimeUnit.SECONDS.toNanos(1) / frequency;
+      try (BufferedReader reader = Files.newBufferedReader(collapsed.toPath(), StandardCharsets.UTF_8);
+           OutputStream output = new GZIPOutputStream(Files.newOutputStream(target.toPath()))) {
+         PprofExport export = new PprofExport(output);
+         export.header(startMillis, endMillis);
+         export.valueType(PROFILE_SAMPLE_TYPE, "samples", "count");
+         export.valueType(PROFILE_SAMPLE_TYPE, "cpu", "nanoseconds");
+         export.valueType(PROFILE_PERIOD_TYPE, "cpu", "nanoseconds");
+         writeVarintField(output, PROFILE_PERIOD, period);
+         String line;
+         while ((line = reader.readLine()) != null) {
+            export.sample(line, count -> count, count -> count * period);
+         }
+      }
+   }
+
+   /**
+    * @param collapsed Collapsed stacks with bytes in place of the sample counts.
+    * @param type Sample type, e.g. <code>inuse_space</code> or <code>alloc_space</code>.
+    */
+   public static void writeMemory(File collapsed, File target, long startMillis, long endMillis, String type) throws IOException {
+      try (BufferedReader reader = Files.newBufferedReader(collapsed.toPath(), StandardCharsets.UTF_8);
+           OutputStream output = new GZIPOutputStream(Files.newOutputStream(target.toPath()))) {
+         PprofExport export = new PprofExport(output);
+         export.header(startMillis, endMillis);
+         export.valueType(PROFILE_SAMPLE_TYPE, type, "bytes");
+         String line;
+         while ((line = reader.readLine()) != null) {
+            export.sample(line, bytes -> bytes);
+         }
+      }
+   }
+
+   private void header(long startMillis, long endMillis) throws IOException {
+      // string_table[0] must be empty
+      string("");
+      writeVarintField(output, PROFILE_TIME_NANOS, TimeUnit.MILLISECONDS.toNanos(startMillis));
+      writeVarintField(output, PROFILE_DURATION_NANOS, TimeUnit.MILLISECONDS.toNanos(Math.max(0, endMillis - startMillis)));
+   }
+
+   private void valueType(int field, String type, String unit) throws IOException {
+      long typeIndex = string(type);
+      long unitIndex = string(unit);
+      buffer.reset();
+      writeVarintField(buffer, 1, typeIndex);
+      writeVarintField(buffer, 2, unitIndex);
+      writeMessage(field, buffer);
+   }
+
+   /**
+    * @param values Compute the values of the sample, in the order of the sample types, from the count.
+    */
+   private void sample(String line, LongUnaryOperator... values) throws IOException {
+      int lastSpace = line.lastIndexOf(' ');
+      if (lastSpace <= 0) {
+         return;
+      }
+      long count;
+      try {
+         count = Long.parseLong(line.substring(lastSpace + 1).trim());
+      } catch (NumberFormatException e) {
+         return;
+      }
+      stack.clear();
+      int start = 0;
+      while (start < lastSpace) {
+         int end = line.indexOf(';', start);
+         if (end < 0 || end > lastSpace) {
+            end = lastSpace;
+         }
+         stack.add(location(line.substring(start, end)));
+         start = end + 1;
+      }
+      ByteArrayOutputStream ids = new ByteArrayOutputStream();
+      // pprof lists the leaf first
+      for (int i = stack.size() - 1; i >= 0; --i) {
+         writeVarint(ids, stack.get(i));
+      }
+      ByteArrayOutputStream packed = new ByteArrayOutputStream();
+      for (LongUnaryOperator value : values) {
+         writeVarint(packed, value.applyAsLong(count));
+      }
+      buffer.reset();
+      writeBytesField(buffer, 1, ids);
+      writeBytesField(buffer, 2, packed);
+      writeMessage(PROFILE_SAMPLE, buffer);
+   }
+
+   private long location(String frame) throws IOException {
+      Long id = locations.get(frame);
+      if (id != null) {
+         return id;
+      }
+      id = (long) locations.size() + 1;
+      locations.put(frame, id);
+      long name = string(frame);
+      // functions and locations map 1:1, sharing the id
+      buffer.reset();
+      writeVarintField(buffer, 1, id);
+      writeVarintField(buffer, 2, name);
+      writeVarintField(buffer, 3, name);
+      writeMessage(PROFILE_FUNCTION, buffer);
+      ByteArrayOutputStream line = new ByteArrayOutputStream();
+      writeVarintField(line, 1, id);
+      buffer.reset();
+      writeVarintField(buffer, 1, id);
+      writeBytesField(buffer, 4, line);
+      writeMessage(PROFILE_LOCATION, buffer);
+      return id;
+   }
+
+   private long string(String value) throws IOException {
+      Long index = strings.get(value);
+      if (index != null) {
+         return index;
+      }
+      index = (long) strings.size();
+      strings.put(value, index);
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      writeTag(output, PROFILE_STRING_TABLE, 2);
+      writeVarint(output, bytes.length);
+      output.write(bytes);
+      return index;
+   }
+
+   private void writeMessage(int field, ByteArrayOutputStream message) throws IOException {
+      writeBytesField(output, field, message);
+   }
+
+   private static void writeBytesField(OutputStream stream, int field, ByteArrayOutputStream bytes) throws IOException {
+      writeTag(stream, field, 2);
+      writeVarint(stream, bytes.size());
+      bytes.writeTo(stream);
+   }
+
+   private static void writeVarintField(OutputStream stream, int field, long value) throws IOException {
+      writeTag(stream, field, 0);
+      writeVarint(stream, value);
+   }
+
+   private static void writeTag(OutputStream stream, int field, int wireType) throws IOException {
+      writeVarint(stream, ((long) field << 3) | wireType);
+   }
+
+   private static void writeVarint(OutputStream stream, long value) throws IOException {
+      while ((value & ~0x7FL) != 0) {
+         stream.write((int) ((value & 0x7F) | 0x80));
+         value >>>= 7;
+      }
+      stream.write((int) value);
+   }
+}
@@ -1,16 +1,29 @@
 package io.hyperfoil.furnace;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
 import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.POST;
@@ -18,6 +31,7 @@ import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
 import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
@@ -27,16 +41,26 @@ import org.jboss.resteasy.annotations.cache.NoCache;
 import org.jboss.resteasy.client.jaxrs.ResteasyClient;
 import org.jboss.resteasy.client.jaxrs.ResteasyClientBuilder;
 
+import io.quarkus.runtime.annotations.RegisterForReflection;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.json.JsonObject;
+
 @ApplicationScoped
 @Path("/proxy")
 public class Proxy {
    private static final Logger log = Logger.getLogger(Proxy.class);
 
-   private static final long LEASE = TimeUnit.SECONDS.toMillis(Long.getLong("furnace.lease", 30));
+   static final long LEASE = TimeUnit.SECONDS.toMillis(Long.getLong("furnace.lease", 30));
 
    private final Timer timer = new Timer(true);
-   private final List<Registration> registered = new ArrayList<>();
+   private final ExecutorService coordinator = Executors.newCachedThreadPool();
+   private final Registry registry = new Registry();
    private final Map<Registration, ResteasyClient> clients = new HashMap<>();
+   // registrations owned by other replicas, cached until they expire
+   private final Map<String, Registration> remote = new HashMap<>();
+
+   @Inject
+   ProxyCluster cluster;
 
    @PostConstruct
    public void init() {
@@ -45,7 +69,8 @@ public class Proxy {
          public void run() {
             long now = System.currentTimeMillis();
             synchronized (Proxy.this) {
-               registered.removeIf(r -> r.expires < now);
+               registry.expire(now);
+               remote.values().removeIf(r -> r.expires < now);
                for (Iterator<Map.Entry<Registration, ResteasyClient>> iterator = clients.entrySet().iterator(); iterator.hasNext(); ) {
                   Map.Entry<Registration, ResteasyClient> entry = iterator.next();
                   if (entry.getKey().expires < now) {
@@ -58,9 +83,16 @@ public class Proxy {
       }, 0, LEASE);
    }
 
+   @PreDestroy
+   public synchronized void destroy() {
+      timer.cancel();
+      coordinator.shutdown();
+      clients.values().forEach(ResteasyClient::close);
+   }
+
    @POST
    @Path("register")
-   public synchronized long register(Registration registration) {
+   public long register(Registration registration, @QueryParam("forwarded") boolean forwarded) {
       if (registration.podName == null || registration.namespace == null || registration.ip == null) {
          log.error("Invalid registration: " + registration);
          return -1;
@@ -68,31 +100,230 @@ public class Proxy {
       if (registration.port <= 0) {
          registration.port = 12380;
       }
+      String owner = cluster.owner(registration.namespace, registration.podName);
+      // forwarded registrations are accepted even if the views of the ring differ, to avoid loops
+      if (!forwarded && !cluster.isSelf(owner)) {
+         try {
+            return cluster.client(owner).register(registration, true);
+         } catch (Exception e) {
+            log.errorf(e, "Failed to forward registration of %s/%s to %s, keeping it here",
+                  registration.namespace, registration.podName, owner);
+         }
+      }
+      return registerLocally(registration);
+   }
+
+   private long registerLocally(Registration registration) {
       registration.expires = System.currentTimeMillis() + LEASE;
-      registered.removeIf(r -> r.podName.equals(registration.podName) && r.namespace.equals(registration.namespace));
-      registered.add(registration);
+      registry.put(registration);
       return LEASE;
    }
 
+   /**
+    * Lists registrations sorted by namespace and pod name.
+    *
+    * @param namespace Only pods in this namespace.
+    * @param prefix Only pods with names starting with this prefix.
+    * @param after Continue after this <code>namespace/podName</code>, the last registration of the previous page.
+    * @param limit Maximum number of registrations, unlimited by default.
+    */
    @GET
    @Path("registered")
+   @Produces(MediaType.APPLICATION_JSON)
+   @NoCache
+   public List<Registration> leases(@QueryParam("local") boolean local,
+                                    @QueryParam("namespace") String namespace, @QueryParam("prefix") String prefix,
+                                    @QueryParam("after") String after, @QueryParam("limit") int limit) {
+      int max = limit > 0 ? limit : Integer.MAX_VALUE;
+      List<Registration> leases = registry.list(namespace, prefix, after, max);
+      if (local || !cluster.isEnabled()) {
+         return leases;
+      }
+      // each replica returns its first page, the merged page is the first of these
+      for (String peer : cluster.peers()) {
+         try {
+            leases.addAll(cluster.client(peer).registered(true, namespace, prefix, after, limit));
+         } catch (Exception e) {
+            log.errorf(e, "Failed to fetch registrations from %s", peer);
+         }
+      }
+      Map<String, Registration> merged = new TreeMap<>();
+      // a pod could be briefly registered on two replicas when the ring changes
+      for (Registration registration : leases) {
+         merged.merge(Registry.key(registration.namespace, registration.podName), registration,
+               (r1, r2) -> r1.expires >= r2.expires ? r1 : r2);
+      }
+      return merged.values().stream().limit(max).collect(Collectors.toList());
+   }
+
+   /**
+    * Changes of registrations since the version returned by the previous call. The first call, without
+    * <code>since</code>, only returns the current version. When the changes are not known anymore (the version
+    * is too old or the replica restarted) the response has <code>reset</code> set and the client should list
+    * the registrations again.
+    */
+   @GET
+   @Path("registered/changes")
+   @Produces(MediaType.APPLICATION_JSON)
    @NoCache
-   public synchronized List<Registration> leases() {
-      return new ArrayList<>(registered);
+   public Changes changes(@QueryParam("since") String since,
+                          @QueryParam("namespace") String namespace, @QueryParam("prefix") String prefix,
+                          @QueryParam("local") boolean local) {
+      if (local || !cluster.isEnabled()) {
+         return registry.changes(since, namespace, prefix);
+      }
+      // the version tracks each replica separately, any replica can serve the next call
+      JsonObject versions = new JsonObject();
+      if (since != null) {
+         try {
+            versions = new JsonObject(new String(Base64.getUrlDecoder().decode(since), StandardCharsets.UTF_8));
+         } catch (RuntimeException e) {
+            throw new WebApplicationException("Invalid version: " + since, 400);
+         }
+      }
+      JsonObject nextVersions = new JsonObject();
+      Changes merged = new Changes();
+      Map<String, Registration> updated = new TreeMap<>();
+      Set<String> removed = new TreeSet<>();
+      List<String> members = new ArrayList<>(cluster.peers());
+      members.add(cluster.self());
+      for (String member : members) {
+         String memberSince = since == null ? null : versions.getString(member, "");
+         Changes changes;
+         try {
+            changes = cluster.isSelf(member) ? registry.changes(memberSince, namespace, prefix)
+                  : cluster.client(member).changes(memberSince, namespace, prefix, true);
+         } catch (Exception e) {
+            log.errorf(e, "Failed to fetch changes of registrations from %s", member);
+            // the changes will be fetched in the next call
+            if (memberSince != null) {
+               nextVersions.put(member, memberSince);
+            }
+            continue;
+         }
+         nextVersions.put(member, changes.version);
+         merged.reset |= changes.reset;
+         for (Registration registration : changes.updated) {
+            updated.merge(Registry.key(registration.namespace, registration.podName), registration,
+                  (r1, r2) -> r1.expires >= r2.expires ? r1 : r2);
+         }
+         removed.addAll(changes.removed);
+      }
+      merged.version = Base64.getUrlEncoder().withoutPadding().encodeToString(nextVersions.encode().getBytes(StandardCharsets.UTF_8));
+      if (!merged.reset) {
+         // the pod moved to another replica
+         removed.removeAll(updated.keySet());
+         merged.updated.addAll(updated.values());
+         merged.removed.addAll(removed);
+      }
+      return merged;
+   }
+
+   /**
+    * @return Namespaces with the number of registered pods, sorted by name.
+    */
+   @GET
+   @Path("namespaces")
+   @Produces(MediaType.APPLICATION_JSON)
+   @NoCache
+   public List<NamespaceSummary> namespaces(@QueryParam("local") boolean local) {
+      Map<String, Integer> namespaces = registry.namespaces();
+      if (!local && cluster.isEnabled()) {
+         for (String peer : cluster.peers()) {
+            try {
+               for (NamespaceSummary summary : cluster.client(peer).namespaces(true)) {
+                  namespaces.merge(summary.namespace, summary.pods, Integer::sum);
+               }
+            } catch (Exception e) {
+               log.errorf(e, "Failed to fetch namespaces from %s", peer);
+            }
+         }
+      }
+      List<NamespaceSummary> summaries = new ArrayList<>(namespaces.size());
+      for (Map.Entry<String, Integer> entry : namespaces.entrySet()) {
+         NamespaceSummary summary = new NamespaceSummary();
+         summary.namespace = entry.getKey();
+         summary.pods = entry.getValue();
+         summaries.add(summary);
+      }
+      return summaries;
+   }
+
+   @GET
+   @Path("registration")
+   @NoCache
+   public Registration registration(@QueryParam("namespace") String namespace, @QueryParam("pod") String pod) {
+      Registration registration = registry.get(namespace, pod);
+      if (registration == null) {
+         throw new WebApplicationException("No controller for ns: " + namespace + " pod: " + pod, 404);
+      }
+      return registration;
+   }
+
+   @POST
+   @Path("members")
+   public Map<String, Long> members(@Context HttpServerRequest request, Map<String, Long> members) {
+      String address = request.remoteAddress().host();
+      if (!cluster.isEnabled() || !cluster.isPeer(address)) {
+         log.warnf("Rejected membership from %s", address);
+         throw new WebApplicationException("Membership is not accepted from " + address, 403);
+      }
+      return cluster.merge(members);
+   }
+
+   ControllerClient controller(String namespace, String pod) {
+      Registration registration = lookup(namespace, pod);
+      synchronized (this) {
+         ResteasyClient client = clients.computeIfAbsent(registration, r -> (ResteasyClient) ResteasyClientBuilder.newClient());
+         String path = registration.path == null ? "" : registration.path;
+         return client.target("http://" + registration.ip + ":" + registration.port + path).proxy(ControllerClient.class);
+      }
+   }
+
+   /**
+    * @return IP of the controller registered for the pod, possibly on another replica, or <code>null</code>.
+    */
+   String registeredIp(String namespace, String pod) {
+      try {
+         return lookup(namespace, pod).ip;
+      } catch (WebApplicationException e) {
+         return null;
+      }
    }
 
-   private synchronized ControllerClient controller(String namespace, String pod) {
-      Registration registration = registered.stream()
-            .filter(r -> r.namespace.equals(namespace) && r.podName.equals(pod))
-            .findFirst().orElseThrow(() -> new WebApplicationException("No controller for ns: " + namespace + " pod: " + pod));
-      ResteasyClient client = clients.computeIfAbsent(registration, r -> (ResteasyClient) ResteasyClientBuilder.newClient());
-      return client.target("http://" + registration.ip + ":" + registration.port).proxy(ControllerClient.class);
+   private Registration lookup(String namespace, String pod) {
+      Registration registration = registry.get(namespace, pod);
+      if (registration != null) {
+         return registration;
+      }
+      String key = Registry.key(namespace, pod);
+      synchronized (this) {
+         registration = remote.get(key);
+         if (registration != null) {
+            return registration;
+         }
+      }
+      String owner = cluster.owner(namespace, pod);
+      if (cluster.isSelf(owner)) {
+         throw new WebApplicationException("No controller for ns: " + namespace + " pod: " + pod);
+      }
+      try {
+         registration = cluster.client(owner).registration(namespace, pod);
+      } catch (Exception e) {
+         throw new WebApplicationException("No controller for ns: " + namespace + " pod: " + pod + " on " + owner, e);
+      }
+      synchronized (this) {
+         remote.put(key, registration);
+      }
+      return registration;
    }
 
    @POST
    @Path("start")
-   public void start(@QueryParam("namespace") String namespace, @QueryParam("pod") String pod) {
-      controller(namespace, pod).start();
+   public void start(@QueryParam("namespace") String namespace, @QueryParam("pod") String pod,
+                     @QueryParam("live") boolean live, @QueryParam("events") String events,
+                     @QueryParam("allocations") String allocations) {
+      controller(namespace, pod).start(live, events, allocations);
    }
 
    @POST
@@ -104,6 +335,91 @@ public class Proxy {
       controller(namespace, pod).stop(symfs, width, colors, inverted);
    }
 
+   /**
+    * Records several pods in the same time window. The clock offset of each sidecar is estimated from the round-trip
+    * of a clock query (the uncertainty is half of the round-trip) and the sidecars are asked to start and stop
+    * at the same instant, converted to their own clock. The response reports how far from the agreed instant each
+    * recording actually started.
+    *
+    * @param targets Pods in the <code>namespace/pod</code> format.
+    * @param delay Milliseconds between the request and the start; this must cover scheduling on all sidecars.
+    */
+   @POST
+   @Path("coordinated")
+   @Produces(MediaType.APPLICATION_JSON)
+   public CompletionStage<List<Coordinated>> coordinated(@QueryParam("target") List<String> targets,
+                                                         @QueryParam("duration") @DefaultValue("30") int duration,
+                                                         @QueryParam("delay") @DefaultValue("2000") long delay,
+                                                         @QueryParam("symfs") @DefaultValue("false") boolean symfs,
+                                                         @QueryParam("width") int width, @QueryParam("colors") String colors,
+                                                         @QueryParam("inverted") @DefaultValue("true") boolean inverted,
+                                                         @QueryParam("events") String events) {
+      if (targets == null || targets.isEmpty()) {
+         throw new WebApplicationException("No target pods", 400);
+      }
+      List<Coordinated> results = new ArrayList<>();
+      for (String target : targets) {
+         int slash = target.indexOf('/');
+         if (slash <= 0) {
+            throw new WebApplicationException("Target must be namespace/pod: " + target, 400);
+         }
+         Coordinated result = new Coordinated();
+         result.namespace = target.substring(0, slash);
+         result.pod = target.substring(slash + 1);
+         results.add(result);
+      }
+      forEachParallel(results, this::measureClockOffset);
+      long startAt = System.currentTimeMillis() + delay;
+      long stopAt = startAt + TimeUnit.SECONDS.toMillis(duration);
+      forEachParallel(results, result -> {
+         if (result.error == null) {
+            result.startAt = startAt;
+            controller(result.namespace, result.pod).schedule(startAt + result.offset, stopAt + result.offset, symfs, width, colors, inverted, events);
+         }
+      });
+      // starting perf takes a moment
+      long settle = startAt - System.currentTimeMillis() + 1000;
+      return CompletableFuture.supplyAsync(() -> {
+         forEachParallel(results, result -> {
+            if (result.error == null) {
+               Controller.Timing timing = controller(result.namespace, result.pod).timing();
+               if (timing.start <= 0) {
+                  result.error = "Recording has not started";
+               } else {
+                  result.skew = timing.start - result.offset - startAt;
+               }
+            }
+         });
+         return results;
+      }, CompletableFuture.delayedExecutor(Math.max(0, settle), TimeUnit.MILLISECONDS, coordinator));
+   }
+
+   private void measureClockOffset(Coordinated result) {
+      ControllerClient controller = controller(result.namespace, result.pod);
+      long bestRoundTrip = Long.MAX_VALUE;
+      for (int i = 0; i < 3; ++i) {
+         long before = System.currentTimeMillis();
+         long remote = controller.clock();
+         long after = System.currentTimeMillis();
+         if (after - before < bestRoundTrip) {
+            bestRoundTrip = after - before;
+            result.offset = remote - (before + after) / 2;
+         }
+      }
+      result.uncertainty = (bestRoundTrip + 1) / 2;
+   }
+
+   private void forEachParallel(List<Coordinated> results, Consumer<Coordinated> action) {
+      CompletableFuture.allOf(results.stream().map(result -> CompletableFuture.runAsync(() -> {
+         try {
+            action.accept(result);
+         } catch (Exception e) {
+            log.errorf(e, "Coordinated recording failed on %s/%s", result.namespace, result.pod);
+            result.error = e.getMessage();
+         }
+      }, coordinator)).toArray(CompletableFuture[]::new)).join();
+   }
+
    @GET
    @Path("status")
    @Produces(MediaType.TEXT_PLAIN)
@@ -112,23 +428,124 @@ public class Proxy {
       return controller(namespace, pod).status();
    }
 
+   @GET
+   @Path("events")
+   @Produces(MediaType.APPLICATION_JSON)
+   @NoCache
+   public List<String> events(@QueryParam("namespace") String namespace, @QueryParam("pod") String pod) {
+      return controller(namespace, pod).events();
+   }
+
    @GET
    @Path("chart")
    @NoCache
-   public Response chart(@QueryParam("namespace") String namespace, @QueryParam("pod") String pod, @QueryParam("download") boolean download) {
-      Response.ResponseBuilder response = Response.ok(controller(namespace, pod).chart().getEntity(), new MediaType("image", "svg+xml"));
+   public Response chart(@QueryParam("namespace") String namespace, @QueryParam("pod") String pod,
+                         @QueryParam("download") boolean download, @QueryParam("live") boolean live,
+                         @QueryParam("format") @DefaultValue("svg") String format, @QueryParam("event") String event) {
+      Response.ResponseBuilder response;
+      String extension;
+      if ("svg".equalsIgnoreCase(format)) {
+         response = Response.ok(controller(namespace, pod).chart(live, event).getEntity(), new MediaType("image", "svg+xml"));
+         extension = ".svg";
+      } else if ("pprof".equalsIgnoreCase(format) || "jfr".equalsIgnoreCase(format)) {
+         Response export = controller(namespace, pod).export(format, event);
+         if (export.getStatus() != 200) {
+            return Response.status(export.getStatus()).build();
+         }
+         response = Response.ok(export.getEntity(), MediaType.APPLICATION_OCTET_STREAM_TYPE);
+         extension = "jfr".equalsIgnoreCase(format) ? ".jfr" : ".pb.gz";
+      } else {
+         throw new WebApplicationException("Unknown format: " + format, 400);
+      }
       if (download) {
-         response.header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=" + namespace + "_" + pod + ".svg");
+         response.header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=" + namespace + "_" + pod + eventSuffix(event) + extension);
       }
       return response.build();
    }
 
+   @GET
+   @Path("report")
+   @NoCache
+   public Response report(@QueryParam("namespace") String namespace, @QueryParam("pod") String pod,
+                          @QueryParam("top") @DefaultValue("50") int top, @QueryParam("filter") String filter,
+                          @QueryParam("module") String module, @QueryParam("sort") @DefaultValue("self") String sort,
+                          @QueryParam("format") @DefaultValue("json") String format, @QueryParam("download") boolean download,
+                          @QueryParam("event") String event) {
+      boolean csv = "csv".equalsIgnoreCase(format);
+      Response report = controller(namespace, pod).report(top, filter, module, sort, csv ? "csv" : "json", event);
+      if (report.getStatus() != 200) {
+         return Response.status(report.getStatus()).build();
+      }
+      Response.ResponseBuilder response = Response.ok(report.getEntity(), csv ? new MediaType("text", "csv") : MediaType.APPLICATION_JSON_TYPE);
+      if (download) {
+         response.header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=" + namespace + "_" + pod + eventSuffix(event) + (csv ? ".csv" : ".json"));
+      }
+      return response.build();
+   }
+
+   private static String eventSuffix(String event) {
+      return event == null || event.isEmpty() ? "" : "_" + event.replaceAll("[^A-Za-z0-9_-]", "_");
+   }
+
+   @RegisterForReflection
+   public static class Changes {
+      /**
+       * Opaque version to pass as <code>since</code> in the next call.
+       */
+      public String version;
+      /**
+       * The changes since the requested version are not known, registrations must be listed again.
+       */
+      public boolean reset;
+      /**
+       * Registrations that were added or changed.
+       */
+      public List<Registration> updated = new ArrayList<>();
+      /**
+       * Registrations that expired, in the <code>namespace/podName</code> format.
+       */
+      public List<String> removed = new ArrayList<>();
+   }
+
+   @RegisterForReflection
+   public static class NamespaceSummary {
+      public String namespace;
+      public int pods;
+   }
+
+   @RegisterForReflection
+   public static class Coordinated {
+      public String namespace;
+      public String pod;
+      /**
+       * Agreed start in proxy's clock.
+       */
+      public long startAt;
+      /**
+       * Estimated difference between the sidecar's and proxy's clock, in milliseconds.
+       */
+      public long offset;
+      public long uncertainty;
+      /**
+       * Difference between the actual start of <code>perf record</code> and the agreed start, in milliseconds.
+       */
+      public long skew;
+      public String error;
+   }
+
+   @RegisterForReflection
    public static class Registration {
       public String podName;
       public String namespace;
       public String ip;
       public int port;
+      /**
+       * Prefix of the controller endpoints, set when a node agent records the pod on its behalf.
+       */
+      public String path;
       public long expires;
+      // see Registry
+      long version;
 
       public static Registration create(String podName, String namespace, String ip, int port, long expires) {
          Registration r = new Registration();
@@ -147,6 +564,7 @@ public class Proxy {
                ", namespace='" + namespace + '\'' +
                ", ip='" + ip + '\'' +
                ", port=" + port +
+               ", path='" + path + '\'' +
                ", expires=" + expires +
                '}';
       }
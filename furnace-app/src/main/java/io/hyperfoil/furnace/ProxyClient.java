@@ -1,16 +1,73 @@
 package io.hyperfoil.furnace;
 
+import java.util.List;
+import java.util.Map;
+
 import javax.inject.Singleton;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.DELETE;
+import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
 
 import org.eclipse.microprofile.rest.client.inject.RegisterRestClient;
 
+import io.quarkus.runtime.annotations.RegisterForReflection;
+
+@RegisterForReflection
 @Path("/proxy")
 @RegisterRestClient(configKey = "proxy-client")
 @Singleton
+@Consumes(MediaType.APPLICATION_JSON)
+@Produces(MediaType.APPLICATION_JSON)
 public interface ProxyClient {
    @POST
    @Path("/register")
    long register(Proxy.Registration registration);
-}
\ No newline at end of file
+
+   // The methods below are used between Proxy replicas, see ProxyCluster
+
+   @POST
+   @Path("/register")
+   long register(Proxy.Registration registration, @QueryParam("forwarded") boolean forwarded);
+
+   @GET
+   @Path("/registration")
+   Proxy.Registration registration(@QueryParam("namespace") String namespace, @QueryParam("pod") String pod);
+
+   @GET
+   @Path("/registered")
+   List<Proxy.Registration> registered(@QueryParam("local") boolean local,
+                                       @QueryParam("namespace") String namespace, @QueryParam("prefix") String prefix,
+                                       @QueryParam("after") String after, @QueryParam("limit") int limit);
+
+   @GET
+   @Path("/registered/changes")
+   Proxy.Changes changes(@QueryParam("since") String since,
+                         @QueryParam("namespace") String namespace, @QueryParam("prefix") String prefix,
+                         @QueryParam("local") boolean local);
+
+   @GET
+   @Path("/namespaces")
+   List<Proxy.NamespaceSummary> namespaces(@QueryParam("local") boolean local);
+
+   @POST
+   @Path("/members")
+   Map<String, Long> members(Map<String, Long> members);
+
+   @GET
+   @Path("/jobs/{id}")
+   Workers.Job job(@PathParam("id") String id, @QueryParam("replica") String replica);
+
+   @DELETE
+   @Path("/jobs/{id}")
+   void deleteJob(@PathParam("id") String id, @QueryParam("replica") String replica);
+
+   @GET
+   @Path("/jobs/load")
+   Workers.Load load();
+}
@@ -0,0 +1,295 @@
+package io.hyperfoil.furnace;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.net.ssl.SSLContext;
+
+import org.jboss.logging.Logger;
+import org.jboss.resteasy.client.jaxrs.ResteasyClient;
+import org.jboss.resteasy.client.jaxrs.ResteasyClientBuilder;
+import org.jboss.resteasy.client.jaxrs.ResteasyWebTarget;
+
+import io.quarkus.runtime.Startup;
+
+/**
+ * Membership of {@link Proxy} replicas. Each replica periodically sends its view of the members (URL and lease
+ * expiration) to the peers it knows about and merges the view it gets back, so the replicas converge without
+ * any external store. Pods are assigned to the replicas by consistent hashing of <code>namespace/pod</code>;
+ * when a replica joins or leaves only the pods on its part of the ring move, and they re-register with the new
+ * owner on the next lease renewal.
+ * <p>
+ * The cluster is enabled by setting <code>PROXY_SELF_URL</code> (URL the peers use to reach this replica)
+ * and the seeds: <code>PROXY_PEERS</code> (comma-separated URLs) and/or <code>PROXY_PEERS_DNS</code> (URL with
+ * a host name that resolves to all replicas, e.g. a headless service). Several local instances can be run with
+ * <code>PROXY_SELF_URL=http://localhost:8081 PROXY_PEERS=http://localhost:8080</code> etc.
+ */
+@ApplicationScoped
+@Startup
+public class ProxyCluster {
+   private static final Logger log = Logger.getLogger(ProxyCluster.class);
+   private static final String SELF_URL = System.getenv("PROXY_SELF_URL");
+   private static final String PEERS = System.getenv("PROXY_PEERS");
+   private static final String PEERS_DNS = System.getenv("PROXY_PEERS_DNS");
+   // all replicas share the serving certificate, peers are contacted by IP so the host name does not match
+   private static final Path CERTIFICATE = Paths.get("/var/certs/tls.crt");
+   private static final int VIRTUAL_NODES = 64;
+
+   private final Timer timer = new Timer(true);
+   private final Map<String, Long> members = new HashMap<>();
+   private final Map<String, ResteasyClient> clients = new HashMap<>();
+   private NavigableMap<Long, String> ring = new TreeMap<>();
+   private SSLContext sslContext;
+
+   @PostConstruct
+   public void init() {
+      if (!isEnabled()) {
+         return;
+      }
+      if (Files.isRegularFile(CERTIFICATE)) {
+         try {
+            sslContext = Util.trustingSslContext(CERTIFICATE);
+         } catch (GeneralSecurityException | IOException e) {
+            log.error("Failed to load certificate for peer connections", e);
+         }
+      }
+      synchronized (this) {
+         members.put(SELF_URL, System.currentTimeMillis() + Proxy.LEASE);
+         updateRing();
+      }
+      log.infof("Running as %s in a cluster", SELF_URL);
+      timer.scheduleAtFixedRate(new TimerTask() {
+         @Override
+         public void run() {
+            gossip();
+         }
+      }, 0, Proxy.LEASE / 3);
+   }
+
+   @PreDestroy
+   public synchronized void destroy() {
+      timer.cancel();
+      clients.values().forEach(ResteasyClient::close);
+   }
+
+   public boolean isEnabled() {
+      return SELF_URL != null && (PEERS != null || PEERS_DNS != null);
+   }
+
+   /**
+    * @return URL of this replica or <code>null</code> when the cluster is not enabled.
+    */
+   public String self() {
+      return isEnabled() ? SELF_URL : null;
+   }
+
+   public boolean isSelf(String member) {
+      return !isEnabled() || SELF_URL.equals(member);
+   }
+
+   /**
+    * @return URL of the replica that owns registration of the pod.
+    */
+   public synchronized String owner(String namespace, String pod) {
+      if (ring.isEmpty()) {
+         return SELF_URL;
+      }
+      Map.Entry<Long, String> entry = ring.ceilingEntry(hash(namespace + "/" + pod));
+      return entry == null ? ring.firstEntry().getValue() : entry.getValue();
+   }
+
+   public synchronized List<String> peers() {
+      List<String> peers = new ArrayList<>(members.keySet());
+      peers.remove(SELF_URL);
+      return peers;
+   }
+
+   /**
+    * @param address IP of the remote end of a request.
+    * @return True if the address belongs to a known member or to one of the seeds, so that a replica that has
+    *         just started is accepted, too.
+    */
+   public boolean isPeer(String address) {
+      Set<String> candidates = new HashSet<>(peers());
+      candidates.addAll(seeds());
+      for (String peer : candidates) {
+         String host = URI.create(peer).getHost();
+         if (host != null && Util.resolvesTo(host, address)) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   public ProxyClient client(String member) {
+      return target(member).proxy(ProxyClient.class);
+   }
+
+   /**
+    * For requests that do not fit {@link ProxyClient}, e.g. streaming a large entity.
+    */
+   public synchronized ResteasyWebTarget target(String member) {
+      return clients.computeIfAbsent(member, m -> {
+         ResteasyClientBuilder builder = (ResteasyClientBuilder) ResteasyClientBuilder.newBuilder();
+         if (sslContext != null) {
+            builder.sslContext(sslContext).hostnameVerification(ResteasyClientBuilder.HostnameVerificationPolicy.ANY);
+         }
+         return builder.build();
+      }).target(member);
+   }
+
+   /**
+    * Merges view of another replica and returns the merged view. Leases longer than {@link Proxy#LEASE} are
+    * shortened, so that a member that has left expires even if a replica reported it with a bogus expiration.
+    */
+   public synchronized Map<String, Long> merge(Map<String, Long> view) {
+      long maxExpiration = System.currentTimeMillis() + Proxy.LEASE;
+      boolean changed = false;
+      for (Map.Entry<String, Long> entry : view.entrySet()) {
+         if (entry.getValue() == null || !isMemberUrl(entry.getKey())) {
+            log.warnf("Ignoring invalid proxy replica %s", entry.getKey());
+            continue;
+         }
+         long expiration = Math.min(entry.getValue(), maxExpiration);
+         Long current = members.get(entry.getKey());
+         if (current == null || current < expiration) {
+            changed |= current == null;
+            members.put(entry.getKey(), expiration);
+         }
+      }
+      changed |= expire();
+      if (changed) {
+         updateRing();
+      }
+      return new HashMap<>(members);
+   }
+
+   /**
+    * @return True for a http(s) URL with a host and nothing but a path.
+    */
+   static boolean isMemberUrl(String url) {
+      if (url == null) {
+         return false;
+      }
+      try {
+         URI uri = new URI(url);
+         return ("http".equals(uri.getScheme()) || "https".equals(uri.getScheme())) && uri.getHost() != null
+               && uri.getUserInfo() == null && uri.getQuery() == null && uri.getFragment() == null;
+      } catch (URISyntaxException e) {
+         return false;
+      }
+   }
+
+   private void gossip() {
+      Map<String, Long> view;
+      Set<String> targets = new HashSet<>(seeds());
+      synchronized (this) {
+         members.put(SELF_URL, System.currentTimeMillis() + Proxy.LEASE);
+         if (expire()) {
+            updateRing();
+         }
+         view = new HashMap<>(members);
+         targets.addAll(members.keySet());
+      }
+      targets.remove(SELF_URL);
+      for (String target : targets) {
+         try {
+            merge(client(target).members(view));
+         } catch (Exception e) {
+            log.debugf(e, "Failed to exchange membership with %s", target);
+         }
+      }
+   }
+
+   private boolean expire() {
+      long now = System.currentTimeMillis();
+      boolean changed = false;
+      for (Iterator<Map.Entry<String, Long>> iterator = members.entrySet().iterator(); iterator.hasNext(); ) {
+         Map.Entry<String, Long> entry = iterator.next();
+         if (entry.getValue() < now && !SELF_URL.equals(entry.getKey())) {
+            log.infof("Proxy replica %s has left", entry.getKey());
+            iterator.remove();
+            ResteasyClient client = clients.remove(entry.getKey());
+            if (client != null) {
+               client.close();
+            }
+            changed = true;
+         }
+      }
+      return changed;
+   }
+
+   private void updateRing() {
+      NavigableMap<Long, String> ring = new TreeMap<>();
+      for (String member : members.keySet()) {
+         for (int i = 0; i < VIRTUAL_NODES; ++i) {
+            ring.put(hash(member + "#" + i), member);
+         }
+      }
+      this.ring = ring;
+      log.infof("Proxy replicas: %s", members.keySet());
+   }
+
+   private static List<String> seeds() {
+      List<String> seeds = new ArrayList<>();
+      if (PEERS != null) {
+         for (String peer : PEERS.split(",")) {
+            if (!peer.isBlank()) {
+               seeds.add(peer.trim());
+            }
+         }
+      }
+      if (PEERS_DNS != null) {
+         URI uri = URI.create(PEERS_DNS);
+         try {
+            for (InetAddress address : InetAddress.getAllByName(uri.getHost())) {
+               String host = address.getHostAddress();
+               if (host.indexOf(':') >= 0) {
+                  host = "[" + host + "]";
+               }
+               seeds.add(uri.getScheme() + "://" + host + (uri.getPort() < 0 ? "" : ":" + uri.getPort()));
+            }
+         } catch (UnknownHostException e) {
+            log.debugf(e, "Cannot resolve %s", uri.getHost());
+         }
+      }
+      return seeds;
+   }
+
+   private static long hash(String key) {
+      try {
+         byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+         long hash = 0;
+         for (int i = 0; i < 8; ++i) {
+            hash = (hash << 8) | (digest[i] & 0xFF);
+         }
+         return hash;
+      } catch (NoSuchAlgorithmException e) {
+         throw new IllegalStateException(e);
+      }
+   }
+}
@@ -0,0 +1,148 @@
+package io.hyperfoil.furnace;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.TreeMap;
+
+/**
+ * Registrations of one proxy replica, sorted by <code>namespace/podName</code> so that a namespace or a pod name
+ * prefix is a range of keys and pages can be continued after the last key. Each registration that appears
+ * or changes its address gets a new version and removals are remembered as tombstones, therefore clients can
+ * ask for changes since the version they have seen instead of downloading the whole list. Versions restart
+ * with the replica; they are qualified with the start time (the epoch) so that clients notice.
+ */
+class Registry {
+   // with thousands of pods restarting this covers several minutes of churn
+   private static final int MAX_TOMBSTONES = 10000;
+
+   private final long epoch = System.currentTimeMillis();
+   private final NavigableMap<String, Proxy.Registration> registrations = new TreeMap<>();
+   private final NavigableMap<Long, String> tombstones = new TreeMap<>();
+   private long version;
+   // changes before this version are not known anymore
+   private long forgotten;
+
+   static String key(String namespace, String podName) {
+      return namespace + "/" + podName;
+   }
+
+   synchronized void put(Proxy.Registration registration) {
+      String key = key(registration.namespace, registration.podName);
+      Proxy.Registration previous = registrations.get(key);
+      if (previous != null && Objects.equals(previous.ip, registration.ip) && previous.port == registration.port
+            && Objects.equals(previous.path, registration.path)) {
+         // renewal of the lease is not a change
+         registration.version = previous.version;
+      } else {
+         registration.version = ++version;
+      }
+      registrations.put(key, registration);
+   }
+
+   synchronized Proxy.Registration get(String namespace, String podName) {
+      return registrations.get(key(namespace, podName));
+   }
+
+   /**
+    * @return Registrations that expired.
+    */
+   synchronized List<Proxy.Registration> expire(long now) {
+      List<Proxy.Registration> expired = new ArrayList<>();
+      for (Iterator<Proxy.Registration> iterator = registrations.values().iterator(); iterator.hasNext(); ) {
+         Proxy.Registration registration = iterator.next();
+         if (registration.expires < now) {
+            iterator.remove();
+            expired.add(registration);
+            tombstones.put(++version, key(registration.namespace, registration.podName));
+         }
+      }
+      while (tombstones.size() > MAX_TOMBSTONES) {
+         forgotten = tombstones.pollFirstEntry().getKey();
+      }
+      return expired;
+   }
+
+   synchronized List<Proxy.Registration> list(String namespace, String prefix, String after, int limit) {
+      List<Proxy.Registration> list = new ArrayList<>();
+      for (Proxy.Registration registration : range(namespace, prefix, after).values()) {
+         if (list.size() >= limit) {
+            break;
+         }
+         if (matches(registration, namespace, prefix)) {
+            list.add(registration);
+         }
+      }
+      return list;
+   }
+
+   /**
+    * @return Number of registered pods in each namespace.
+    */
+   synchronized Map<String, Integer> namespaces() {
+      Map<String, Integer> namespaces = new TreeMap<>();
+      for (Proxy.Registration registration : registrations.values()) {
+         namespaces.merge(registration.namespace, 1, Integer::sum);
+      }
+      return namespaces;
+   }
+
+   /**
+    * @param since Version returned by the previous call, <code>null</code> to start tracking changes.
+    */
+   synchronized Proxy.Changes changes(String since, String namespace, String prefix) {
+      Proxy.Changes changes = new Proxy.Changes();
+      changes.version = epoch + "." + version;
+      if (since == null) {
+         return changes;
+      }
+      long sinceVersion;
+      try {
+         int dot = since.indexOf('.');
+         sinceVersion = dot < 0 || Long.parseLong(since.substring(0, dot)) != epoch ? -1 : Long.parseLong(since.substring(dot + 1));
+      } catch (NumberFormatException e) {
+         sinceVersion = -1;
+      }
+      if (sinceVersion < forgotten || sinceVersion > version) {
+         changes.reset = true;
+         return changes;
+      }
+      for (Proxy.Registration registration : range(namespace, prefix, null).values()) {
+         if (registration.version > sinceVersion && matches(registration, namespace, prefix)) {
+            changes.updated.add(registration);
+         }
+      }
+      for (String key : tombstones.tailMap(sinceVersion, false).values()) {
+         int slash = key.indexOf('/');
+         if (matches(key.substring(0, slash), key.substring(slash + 1), namespace, prefix) && !registrations.containsKey(key)) {
+            changes.removed.add(key);
+         }
+      }
+      return changes;
+   }
+
+   private NavigableMap<String, Proxy.Registration> range(String namespace, String prefix, String after) {
+      NavigableMap<String, Proxy.Registration> range = registrations;
+      if (namespace != null) {
+         String from = key(namespace, prefix == null ? "" : prefix);
+         // the successor of a prefix is the prefix with the last character incremented
+         String to = from.substring(0, from.length() - 1) + (char) (from.charAt(from.length() - 1) + 1);
+         range = range.subMap(from, true, to, false);
+      }
+      if (after != null) {
+         range = range.tailMap(after, false);
+      }
+      return range;
+   }
+
+   static boolean matches(Proxy.Registration registration, String namespace, String prefix) {
+      return matches(registration.namespace, registration.podName, namespace, prefix);
+   }
+
+   private static boolean matches(String registrationNamespace, String podName, String namespace, String prefix) {
+      return (namespace == null || namespace.equals(registrationNamespace)) && (prefix == null || podName.startsWith(prefix));
+   }
+}
@@ -0,0 +1,236 @@
+package io.hyperfoil.furnace;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.jboss.logging.Logger;
+
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Hands a finished recording over to the processing workers behind the proxy (see {@link Workers}) instead of
+ * decoding it in the sidecar, which shares the node and often the limits with the recorded pod. The sidecar
+ * streams perf.data together with what is needed to resolve the symbols elsewhere: the binaries that have
+ * samples (as listed by <code>perf buildid-list --with-hits</code>), <code>/proc/kallsyms</code>, the JIT maps
+ * <code>/tmp/perf-&lt;pid&gt;.map</code> of the recorded processes and the stack transforms. Only
+ * the collapsed stacks and flamegraphs of the recorded events come back.
+ * <p>
+ * Enabled with <code>REMOTE_PROCESSING=true</code>; the proxy is reached at <code>PROXY_CLIENT_MP_REST_URL</code>.
+ */
+class RemoteProcessing {
+   private static final Logger log = Logger.getLogger(RemoteProcessing.class);
+   private static final String PROXY_URL = System.getenv("PROXY_CLIENT_MP_REST_URL");
+   private static final String TRUSTSTORE = System.getenv("PROXY_CLIENT_MP_REST_TRUSTSTORE");
+   private static final String TRUSTSTORE_PASSWORD = System.getenv("PROXY_CLIENT_MP_REST_TRUSTSTOREPASSWORD");
+   private static final long POLL_PERIOD = 1000;
+
+   private final HttpClient client;
+   private final String url;
+
+   private RemoteProcessing(HttpClient client, String url) {
+      this.client = client;
+      this.url = url;
+   }
+
+   /**
+    * @return <code>null</code> if remote processing is not enabled.
+    */
+   static RemoteProcessing create() {
+      if (!Util.getBooleanEnv("REMOTE_PROCESSING", false)) {
+         return null;
+      }
+      if (PROXY_URL == null) {
+         log.error("Remote processing requires PROXY_CLIENT_MP_REST_URL");
+         return null;
+      }
+      // upgrade to HTTP/2 over plain HTTP does not work with a streamed request body
+      HttpClient.Builder builder = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1);
+      if (TRUSTSTORE != null) {
+         try {
+            builder.sslContext(Util.trustStoreSslContext(TRUSTSTORE, TRUSTSTORE_PASSWORD));
+         } catch (GeneralSecurityException | IOException e) {
+            log.error("Failed to load truststore, remote processing is disabled", e);
+            return null;
+         }
+      }
+      log.infof("Recordings will be processed by workers behind %s", PROXY_URL);
+      return new RemoteProcessing(builder.build(), PROXY_URL);
+   }
+
+   /**
+    * Processes perf.data in the directory remotely and writes the collapsed stacks and flamegraphs there.
+    *
+    * @param symfs Root of the filesystem with the binaries or <code>null</code> to find them through the processes.
+    * @param pids Recorded processes, in our PID namespace.
+    * @param params Query parameters of {@link Workers#submit}.
+    */
+   void process(File dir, String symfs, List<String> pids, Map<String, Object> params) throws IOException, InterruptedException {
+      File staging = new File(dir, "remote");
+      Util.deleteRecursively(staging);
+      JsonObject job;
+      try {
+         List<String> args = stage(dir, staging, symfs, pids);
+         String query = params.entrySet().stream().filter(e -> e.getValue() != null)
+               .map(e -> e.getKey() + "=" + URLEncoder.encode(String.valueOf(e.getValue()), StandardCharsets.UTF_8))
+               .collect(Collectors.joining("&"));
+         try (InputStream archive = Archives.pack(args)) {
+            HttpRequest request = HttpRequest.newBuilder(URI.create(url + "/proxy/jobs?" + query))
+                  .header("Content-Type", "application/octet-stream")
+                  .header("Accept", "application/json")
+                  .POST(HttpRequest.BodyPublishers.ofInputStream(() -> archive)).build();
+            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() != 200) {
+               throw new IOException("Unexpected response " + response.statusCode() + ": " + response.body());
+            }
+            job = new JsonObject(response.body());
+         }
+      } finally {
+         Util.deleteRecursively(staging);
+      }
+      String jobUrl = url + "/proxy/jobs/" + job.getString("id");
+      String replica = job.getString("replica");
+      String replicaQuery = replica == null ? "" : "?replica=" + URLEncoder.encode(replica, StandardCharsets.UTF_8);
+      log.infof("Recording uploaded as job %s", job.getString("id"));
+      try {
+         String status;
+         do {
+            Thread.sleep(POLL_PERIOD);
+            HttpResponse<String> response = client.send(HttpRequest.newBuilder(URI.create(jobUrl + replicaQuery))
+                  .header("Accept", "application/json").GET().build(), HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() != 200) {
+               throw new IOException("Unexpected response " + response.statusCode() + ": " + response.body());
+            }
+            job = new JsonObject(response.body());
+            status = job.getString("status");
+         } while (!Workers.Job.DONE.equals(status) && !Workers.Job.FAILED.equals(status));
+         if (Workers.Job.FAILED.equals(status)) {
+            throw new IOException("Remote processing failed: " + job.getString("error"));
+         }
+         HttpResponse<InputStream> response = client.send(HttpRequest.newBuilder(URI.create(jobUrl + "/result" + replicaQuery)).GET().build(),
+               HttpResponse.BodyHandlers.ofInputStream());
+         try (InputStream body = response.body()) {
+            if (response.statusCode() != 200) {
+               throw new IOException("Unexpected response " + response.statusCode() + " fetching the result");
+            }
+            Archives.unpack(body, dir);
+         }
+      } finally {
+         try {
+            client.send(HttpRequest.newBuilder(URI.create(jobUrl + replicaQuery)).DELETE().build(), HttpResponse.BodyHandlers.discarding());
+         } catch (IOException e) {
+            log.debugf(e, "Failed to delete job %s, it will expire", job.getString("id"));
+         }
+      }
+   }
+
+   /**
+    * Copies what does not have a stable path into the staging directory.
+    *
+    * @return Arguments for <code>tar</code> archiving the recording.
+    */
+   private List<String> stage(File dir, File staging, String symfs, List<String> pids) throws IOException, InterruptedException {
+      File maps = new File(staging, "tmp");
+      File scripts = new File(staging, "scripts");
+      if (!maps.mkdirs() || !scripts.mkdirs()) {
+         throw new IOException("Failed to create " + staging);
+      }
+      // files in /proc report zero size and must be read as a stream
+      try (InputStream kallsyms = new FileInputStream("/proc/kallsyms")) {
+         Files.copy(kallsyms, new File(staging, "kallsyms").toPath());
+      }
+      if (StackTransforms.DEFAULT_CONFIG.isFile()) {
+         Files.copy(StackTransforms.DEFAULT_CONFIG.toPath(), new File(scripts, "transforms.json").toPath());
+      }
+      for (String pid : pids) {
+         // perf names the map by PID in its namespace, the process writes it with the PID in its own
+         File map = new File("/proc/" + pid + "/root/tmp/perf-" + namespacePid(pid) + ".map");
+         if (map.isFile()) {
+            Files.copy(map.toPath(), new File(maps, "perf-" + pid + ".map").toPath(), StandardCopyOption.REPLACE_EXISTING);
+         }
+      }
+      List<String> args = new ArrayList<>(Arrays.asList("--dereference",
+            "-C", staging.toString(), "kallsyms", "tmp", "scripts", "-C", dir.toString(), "perf.data"));
+      List<File> roots = new ArrayList<>();
+      if (symfs != null) {
+         roots.add(new File(symfs.trim()));
+      }
+      for (String pid : pids) {
+         roots.add(new File("/proc/" + pid + "/root"));
+      }
+      roots.add(new File("/"));
+      int missing = 0;
+      for (String dso : dsosWithHits(new File(dir, "perf.data"))) {
+         File root = roots.stream().filter(r -> new File(r, dso).isFile()).findFirst().orElse(null);
+         if (root == null) {
+            log.debugf("Cannot find %s, its symbols will not be resolved", dso);
+            ++missing;
+            continue;
+         }
+         args.add("-C");
+         args.add(root.toString());
+         args.add(dso.substring(1));
+      }
+      if (missing > 0) {
+         log.infof("%d binaries with samples were not found", missing);
+      }
+      return args;
+   }
+
+   private static Set<String> dsosWithHits(File perfData) throws IOException, InterruptedException {
+      Process process = new ProcessBuilder().command("perf", "buildid-list", "-i", perfData.toString(), "--with-hits")
+            .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+      Set<String> dsos = new LinkedHashSet<>();
+      try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+         String line;
+         while ((line = reader.readLine()) != null) {
+            // <build-id> <path>
+            int space = line.indexOf(' ');
+            String path = space < 0 ? "" : line.substring(space + 1).trim();
+            // [kernel.kallsyms] and [vdso] are not files, JIT maps are shipped separately
+            if (path.startsWith("/") && !path.startsWith("/tmp/perf-")) {
+               dsos.add(path);
+            }
+         }
+      }
+      int rc = process.waitFor();
+      if (rc != 0) {
+         throw new IOException("Non-zero return code from `perf buildid-list`: " + rc);
+      }
+      return dsos;
+   }
+
+   private static String namespacePid(String pid) {
+      try {
+         for (String line : Files.readAllLines(new File("/proc/" + pid + "/status").toPath())) {
+            // NSpid: <pid in our namespace> ... <pid in the innermost namespace>
+            if (line.startsWith("NSpid:")) {
+               String[] parts = line.substring(6).trim().split("\\s+");
+               return parts[parts.length - 1];
+            }
+         }
+      } catch (IOException e) {
+         // the process is gone
+      }
+      return pid;
+   }
+}
@@ -0,0 +1,190 @@
+package io.hyperfoil.furnace;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import io.quarkus.runtime.annotations.RegisterForReflection;
+
+/**
+ * Computes self and total sample counts per function from collapsed stacks
+ * (<code>frame1;frame2;...;frameN count</code>) in a single pass.
+ */
+public class Report {
+   public static final String KERNEL = "kernel";
+   public static final String JIT = "jit";
+
+   private final Map<String, Entry> entries = new HashMap<>();
+   private final Set<String> seen = new HashSet<>();
+   private final Map<String, String> modules;
+   private final Pattern filter;
+   private final String module;
+   private long samples;
+
+   public Report(Pattern filter, String module) {
+      this(Map.of(), filter, module);
+   }
+
+   /**
+    * @param modules Library of the symbolized native frames, see {@link Modules}.
+    */
+   Report(Map<String, String> modules, Pattern filter, String module) {
+      this.modules = modules;
+      this.filter = filter;
+      this.module = module == null || module.isEmpty() ? null : module;
+   }
+
+   public static Report read(Path collapsed, Pattern filter, String module) throws IOException {
+      return read(collapsed, Map.of(), filter, module);
+   }
+
+   static Report read(Path collapsed, Map<String, String> modules, Pattern filter, String module) throws IOException {
+      Report report = new Report(modules, filter, module);
+      try (BufferedReader reader = Files.newBufferedReader(collapsed, StandardCharsets.UTF_8)) {
+         String line;
+         while ((line = reader.readLine()) != null) {
+            report.add(line);
+         }
+      }
+      return report;
+   }
+
+   public void add(String line) {
+      int lastSpace = line.lastIndexOf(' ');
+      if (lastSpace <= 0) {
+         return;
+      }
+      long count;
+      try {
+         count = Long.parseLong(line.substring(lastSpace + 1).trim());
+      } catch (NumberFormatException e) {
+         return;
+      }
+      samples += count;
+      seen.clear();
+      int start = 0;
+      while (start < lastSpace) {
+         int end = line.indexOf(';', start);
+         if (end < 0 || end > lastSpace) {
+            end = lastSpace;
+         }
+         String frame = line.substring(start, end);
+         boolean leaf = end == lastSpace;
+         start = end + 1;
+         // recursive frames count only once towards the total
+         boolean first = seen.add(frame);
+         if (!first && !leaf) {
+            continue;
+         }
+         Entry entry = entries.get(frame);
+         if (entry == null) {
+            if (!matches(frame)) {
+               continue;
+            }
+            entry = new Entry(frame, moduleOf(frame));
+            entries.put(frame, entry);
+         }
+         if (leaf) {
+            entry.self += count;
+         }
+         if (first) {
+            entry.total += count;
+         }
+      }
+   }
+
+   private boolean matches(String frame) {
+      if (filter != null && !filter.matcher(frame).find()) {
+         return false;
+      }
+      return module == null || module.equals(moduleOf(frame));
+   }
+
+   private String moduleOf(String frame) {
+      String annotated = annotatedModule(frame);
+      return annotated != null ? annotated : modules.get(frame);
+   }
+
+   public long samples() {
+      return samples;
+   }
+
+   public Top top(int n, boolean byTotal) {
+      Top top = new Top();
+      top.samples = samples;
+      top.functions = entries(n, byTotal);
+      return top;
+   }
+
+   public List<Entry> entries(int n, boolean byTotal) {
+      Comparator<Entry> comparator = byTotal ? Comparator.comparingLong(e -> e.total) : Comparator.comparingLong(e -> e.self);
+      List<Entry> list = new ArrayList<>(entries.values());
+      list.sort(comparator.reversed().thenComparing(e -> e.function));
+      return n > 0 && list.size() > n ? list.subList(0, n) : list;
+   }
+
+   public static String toCsv(List<Entry> entries) {
+      StringBuilder sb = new StringBuilder("function,module,self,total\n");
+      for (Entry e : entries) {
+         sb.append(csvEscape(e.function)).append(',')
+               .append(e.module == null ? "" : csvEscape(e.module)).append(',')
+               .append(e.self).append(',').append(e.total).append('\n');
+      }
+      return sb.toString();
+   }
+
+   private static String csvEscape(String value) {
+      if (value.indexOf(',') < 0 && value.indexOf('"') < 0) {
+         return value;
+      }
+      return '"' + value.replace("\"", "\"\"") + '"';
+   }
+
+   /**
+    * Collapsed stacks carry module information only through annotations: <code>_[k]</code> for kernel
+    * frames, <code>_[j]</code> for JIT-compiled frames and <code>[libfoo.so]</code> for frames that
+    * could not be symbolized. Modules of the other frames are looked up in {@link Modules}.
+    */
+   static String annotatedModule(String frame) {
+      if (frame.endsWith("_[k]")) {
+         return KERNEL;
+      } else if (frame.endsWith("_[j]")) {
+         return JIT;
+      } else if (frame.length() > 2 && frame.charAt(0) == '[' && frame.charAt(frame.length() - 1) == ']') {
+         return frame.substring(1, frame.length() - 1);
+      }
+      return null;
+   }
+
+   @RegisterForReflection
+   public static class Top {
+      public long samples;
+      public List<Entry> functions;
+   }
+
+   @RegisterForReflection
+   public static class Entry {
+      public String function;
+      public String module;
+      public long self;
+      public long total;
+
+      public Entry() {
+      }
+
+      Entry(String function, String module) {
+         this.function = function;
+         this.module = module;
+      }
+   }
+}
@@ -0,0 +1,259 @@
+package io.hyperfoil.furnace;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Splits decoding of <code>perf.data</code> into shards that can be processed by several
+ * <code>perf script</code> instances in parallel. Each shard is described by the extra arguments
+ * to pass to <code>perf script</code>.
+ * <p>
+ * Every instance still reads the whole file and skips the samples of other shards, so the shards should be cheap
+ * to filter: by default the samples are split by CPU (<code>SCRIPT_SHARDING=cpu</code>) when the recording host had
+ * at least as many CPUs as there are shards, and by time (<code>SCRIPT_SHARDING=time</code>) otherwise. Only
+ * recordings of whole CPUs (<code>perf record -a</code>, also with cgroups) carry the CPU of the samples; those of
+ * PIDs are always split by time.
+ */
+class ScriptShards {
+   private static final Logger log = Logger.getLogger(ScriptShards.class);
+   private static final int MAX_PARALLELISM = 32;
+   private static final long NANOS = 1_000_000_000L;
+
+   static int parallelism(String configured) {
+      int cpus = Runtime.getRuntime().availableProcessors();
+      int parallelism = cpus;
+      if (configured != null) {
+         try {
+            parallelism = Integer.parseInt(configured.trim());
+         } catch (NumberFormatException e) {
+            log.errorf("Cannot parse SCRIPT_PARALLELISM=%s", configured);
+         }
+      }
+      return Math.max(1, Math.min(parallelism, Math.min(cpus, MAX_PARALLELISM)));
+   }
+
+   static List<List<String>> shards(String mode, int parallelism, File perfData) {
+      if (parallelism <= 1) {
+         return List.of(List.of());
+      }
+      Header header = Header.read(perfData);
+      List<String> cpus = header.cpus != null ? header.cpus : onlineCpus();
+      boolean auto = mode == null || mode.isBlank();
+      if ("cpu".equalsIgnoreCase(mode) || auto && cpus.size() >= parallelism) {
+         if (header.cpuSampled) {
+            return cpuShards(cpus, parallelism);
+         } else if (!auto) {
+            log.warn("The recording does not have the CPU of the samples, splitting it by time");
+         }
+      }
+      if (header.firstSample <= 0 || header.lastSample < header.firstSample) {
+         // older perf does not record the time of the first and last sample in the header
+         header.scanTimes(perfData);
+      }
+      if (header.firstSample > 0 && header.lastSample >= header.firstSample) {
+         return timeShards(header.firstSample, header.lastSample, parallelism);
+      }
+      log.warn("Cannot find the time of the samples, decoding perf.data in one shard");
+      return List.of(List.of());
+   }
+
+   static List<List<String>> cpuShards(List<String> cpus, int parallelism) {
+      List<List<String>> shards = new ArrayList<>();
+      int n = Math.min(parallelism, cpus.size());
+      for (int i = 0; i < n; ++i) {
+         List<String> shardCpus = new ArrayList<>();
+         for (int j = i; j < cpus.size(); j += n) {
+            shardCpus.add(cpus.get(j));
+         }
+         shards.add(List.of("--cpu", String.join(",", shardCpus)));
+      }
+      return shards;
+   }
+
+   /**
+    * The time ranges of perf are inclusive, therefore each shard ends a nanosecond before the next one starts.
+    * The first and last shards are open so that the rounding of the times in the header does not lose samples.
+    *
+    * @param first Time of the first sample in nanoseconds.
+    * @param last Time of the last sample in nanoseconds.
+    */
+   static List<List<String>> timeShards(long first, long last, int parallelism) {
+      List<List<String>> shards = new ArrayList<>();
+      for (int i = 0; i < parallelism; ++i) {
+         String start = i == 0 ? "" : time(boundary(first, last, i, parallelism));
+         String end = i == parallelism - 1 ? "" : time(boundary(first, last, i + 1, parallelism) - 1);
+         shards.add(List.of("--time", start + "," + end));
+      }
+      return shards;
+   }
+
+   private static long boundary(long first, long last, int index, int total) {
+      return first + (long) ((double) (last - first) * index / total);
+   }
+
+   private static String time(long nanos) {
+      return String.format(Locale.ROOT, "%d.%09d", nanos / NANOS, nanos % NANOS);
+   }
+
+   /**
+    * Parses the time in seconds with a fractional part, e.g. <code>12345.678901</code>, into nanoseconds.
+    */
+   static long parseTime(String time) {
+      int dot = time.indexOf('.');
+      if (dot < 0) {
+         return Long.parseLong(time) * NANOS;
+      }
+      String fraction = (time.substring(dot + 1) + "000000000").substring(0, 9);
+      return Long.parseLong(time.substring(0, dot)) * NANOS + Long.parseLong(fraction);
+   }
+
+   /**
+    * Parts of the output of <code>perf report --header-only</code>.
+    */
+   static class Header {
+      List<String> cpus;
+      long firstSample;
+      long lastSample;
+      /**
+       * All events have <code>PERF_SAMPLE_CPU</code> in their sample type.
+       */
+      boolean cpuSampled;
+
+      static Header read(File perfData) {
+         Header header = new Header();
+         try {
+            Process process = new ProcessBuilder("perf", "report", "--header-only", "-i", perfData.toString())
+                  .redirectError(ProcessBuilder.Redirect.DISCARD).start();
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+               header.parse(reader);
+            }
+            int rc = process.waitFor();
+            if (rc != 0) {
+               log.errorf("Non-zero return code from `perf report --header-only`: %d", rc);
+            }
+         } catch (IOException e) {
+            log.error("Cannot read perf.data header", e);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+         return header;
+      }
+
+      void parse(BufferedReader reader) throws IOException {
+         boolean events = false;
+         boolean allCpu = true;
+         String line;
+         while ((line = reader.readLine()) != null) {
+            int colon = line.indexOf(':');
+            if (!line.startsWith("#") || colon < 0) {
+               continue;
+            }
+            String name = line.substring(1, colon).trim();
+            String value = line.substring(colon + 1).trim();
+            try {
+               if (name.equals("event")) {
+                  // e.g. name = cpu-clock, , id = { 12, 13 }, type = 1, size = 128, ..., sample_type = IP|TID|TIME|CPU|PERIOD, ...
+                  events = true;
+                  int sampleType = value.indexOf("sample_type = ");
+                  String types = sampleType < 0 ? "" : value.substring(sampleType + "sample_type = ".length()).split(",", 2)[0];
+                  allCpu &= Arrays.asList(types.trim().split("\\|")).contains("CPU");
+               } else if (name.equals("nrcpus avail")) {
+                  int n = Integer.parseInt(value);
+                  cpus = new ArrayList<>(n);
+                  for (int cpu = 0; cpu < n; ++cpu) {
+                     cpus.add(String.valueOf(cpu));
+                  }
+               } else if (name.equals("time of first sample")) {
+                  firstSample = parseTime(value);
+               } else if (name.equals("time of last sample")) {
+                  lastSample = parseTime(value);
+               }
+            } catch (NumberFormatException e) {
+               log.errorf("Cannot parse perf.data header line: %s", line);
+            }
+         }
+         cpuSampled = events && allCpu;
+      }
+
+      /**
+       * Finds the time of the first and last sample with a pass of <code>perf script</code> that prints only the
+       * time, which is much cheaper than the decoding of the stacks.
+       */
+      void scanTimes(File perfData) {
+         try {
+            Process process = new ProcessBuilder("perf", "script", "-F", "time", "-i", perfData.toString())
+                  .redirectError(ProcessBuilder.Redirect.DISCARD).start();
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+               parseTimes(reader);
+            }
+            int rc = process.waitFor();
+            if (rc != 0) {
+               log.errorf("Non-zero return code from `perf script -F time`: %d", rc);
+               firstSample = lastSample = 0;
+            }
+         } catch (IOException e) {
+            log.error("Cannot read the time of the samples", e);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+      }
+
+      void parseTimes(BufferedReader reader) throws IOException {
+         String line;
+         while ((line = reader.readLine()) != null) {
+            // e.g. 4242.000123:
+            String time = line.trim();
+            if (time.endsWith(":")) {
+               time = time.substring(0, time.length() - 1);
+            }
+            try {
+               long nanos = parseTime(time);
+               if (firstSample <= 0) {
+                  firstSample = nanos;
+               }
+               lastSample = Math.max(lastSample, nanos);
+            } catch (NumberFormatException e) {
+               // not a sample
+            }
+         }
+      }
+   }
+
+   static List<String> onlineCpus() {
+      List<String> cpus = new ArrayList<>();
+      try {
+         // format is e.g. 0-3,5,7-9
+         for (String range : Files.readString(Paths.get("/sys/devices/system/cpu/online")).trim().split(",")) {
+            int dash = range.indexOf('-');
+            if (dash < 0) {
+               cpus.add(range);
+            } else {
+               int from = Integer.parseInt(range.substring(0, dash));
+               int to = Integer.parseInt(range.substring(dash + 1));
+               for (int cpu = from; cpu <= to; ++cpu) {
+                  cpus.add(String.valueOf(cpu));
+               }
+            }
+         }
+      } catch (IOException | NumberFormatException e) {
+         log.error("Cannot read online CPUs", e);
+      }
+      if (cpus.isEmpty()) {
+         for (int cpu = 0; cpu < Runtime.getRuntime().availableProcessors(); ++cpu) {
+            cpus.add(String.valueOf(cpu));
+         }
+      }
+      return cpus;
+   }
+}
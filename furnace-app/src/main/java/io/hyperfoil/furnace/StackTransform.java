@@ -0,0 +1,29 @@
+package io.hyperfoil.furnace;
+
+import java.util.List;
+
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Transforms a single collapsed stack as it streams through collapsing. The frames are ordered from the root
+ * (usually the thread name) to the leaf.
+ */
+public interface StackTransform {
+   /**
+    * @param frames Frames of the stack, can be modified in place.
+    * @return False if the whole stack should be dropped.
+    */
+   boolean transform(List<String> frames);
+
+   /**
+    * Custom transforms are registered through {@link java.util.ServiceLoader}.
+    */
+   interface Factory {
+      /**
+       * @return Value of the <code>type</code> property this factory handles.
+       */
+      String type();
+
+      StackTransform create(JsonObject config);
+   }
+}
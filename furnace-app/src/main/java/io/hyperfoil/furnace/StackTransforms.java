@@ -0,0 +1,204 @@
+package io.hyperfoil.furnace;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.jboss.logging.Logger;
+
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Chain of {@link StackTransform stack transforms} declared in <code>/scripts/transforms.json</code>
+ * (key <code>transforms.json</code> in the <code>furnace-scripts</code> ConfigMap), e.g.
+ * <pre>
+ * [
+ *    { "type": "rename", "pattern": "^Interpreter$", "replacement": "[interpreter]" },
+ *    { "type": "drop-frames", "pattern": "^(itable|vtable) stub$" },
+ *    { "type": "drop-stacks", "pattern": "^swapper$" },
+ *    { "type": "keep-stacks", "pattern": "MyService" },
+ *    { "type": "merge-thread-pools" }
+ * ]
+ * </pre>
+ * Instances are not thread-safe.
+ */
+public class StackTransforms {
+   private static final Logger log = Logger.getLogger(StackTransforms.class);
+   public static final File DEFAULT_CONFIG = new File("/scripts/transforms.json");
+
+   private final List<StackTransform> transforms;
+   private final List<String> frames = new ArrayList<>();
+
+   public StackTransforms(List<StackTransform> transforms) {
+      this.transforms = transforms;
+   }
+
+   public static StackTransforms load(File file) {
+      if (!file.isFile()) {
+         return new StackTransforms(List.of());
+      }
+      try {
+         return parse(new JsonArray(Files.readString(file.toPath())));
+      } catch (IOException | DecodeException | IllegalArgumentException e) {
+         log.errorf(e, "Failed to load stack transforms from %s", file);
+         return new StackTransforms(List.of());
+      }
+   }
+
+   public static StackTransforms parse(JsonArray config) {
+      Map<String, StackTransform.Factory> factories = new HashMap<>();
+      for (StackTransform.Factory factory : ServiceLoader.load(StackTransform.Factory.class)) {
+         factories.put(factory.type(), factory);
+      }
+      List<StackTransform> transforms = new ArrayList<>();
+      for (Object item : config) {
+         if (!(item instanceof JsonObject)) {
+            throw new IllegalArgumentException("Transform must be an object: " + item);
+         }
+         JsonObject object = (JsonObject) item;
+         String type = object.getString("type");
+         if (type == null) {
+            throw new IllegalArgumentException("Transform does not define type: " + object);
+         }
+         switch (type) {
+            case "rename":
+               transforms.add(new Rename(pattern(object), object.getString("replacement", ""), object.getBoolean("root", false)));
+               break;
+            case "drop-frames":
+               transforms.add(new DropFrames(pattern(object)));
+               break;
+            case "drop-stacks":
+               transforms.add(new FilterStacks(pattern(object), false, object.getBoolean("root", false)));
+               break;
+            case "keep-stacks":
+               transforms.add(new FilterStacks(pattern(object), true, object.getBoolean("root", false)));
+               break;
+            case "merge-thread-pools":
+               transforms.add(new Rename(Pattern.compile(object.getString("pattern", "[-_#]?\\d+$")), object.getString("replacement", ""), true));
+               break;
+            default:
+               StackTransform.Factory factory = factories.get(type);
+               if (factory == null) {
+                  throw new IllegalArgumentException("Unknown transform type: " + type);
+               }
+               transforms.add(factory.create(object));
+         }
+      }
+      return new StackTransforms(transforms);
+   }
+
+   private static Pattern pattern(JsonObject object) {
+      String pattern = object.getString("pattern");
+      if (pattern == null) {
+         throw new IllegalArgumentException("Transform does not define pattern: " + object);
+      }
+      return Pattern.compile(pattern);
+   }
+
+   /**
+    * @return Copy of this chain that first drops the stacks where the thread name (the root frame) does not match.
+    */
+   public StackTransforms keepThreads(Pattern pattern) {
+      List<StackTransform> transforms = new ArrayList<>(this.transforms.size() + 1);
+      transforms.add(new FilterStacks(pattern, true, true));
+      transforms.addAll(this.transforms);
+      return new StackTransforms(transforms);
+   }
+
+   public boolean isEmpty() {
+      return transforms.isEmpty();
+   }
+
+   public int size() {
+      return transforms.size();
+   }
+
+   /**
+    * @param stack Stack with frames separated by semicolons.
+    * @return Transformed stack or null if the stack should be dropped.
+    */
+   public String apply(String stack) {
+      if (transforms.isEmpty()) {
+         return stack;
+      }
+      frames.clear();
+      frames.addAll(Arrays.asList(stack.split(";")));
+      for (StackTransform transform : transforms) {
+         if (!transform.transform(frames) || frames.isEmpty()) {
+            return null;
+         }
+      }
+      return String.join(";", frames);
+   }
+
+   private static class Rename implements StackTransform {
+      private final Pattern pattern;
+      private final String replacement;
+      private final boolean root;
+
+      private Rename(Pattern pattern, String replacement, boolean root) {
+         this.pattern = pattern;
+         this.replacement = replacement;
+         this.root = root;
+      }
+
+      @Override
+      public boolean transform(List<String> frames) {
+         int n = root ? Math.min(1, frames.size()) : frames.size();
+         for (int i = 0; i < n; ++i) {
+            Matcher matcher = pattern.matcher(frames.get(i));
+            if (matcher.find()) {
+               frames.set(i, matcher.replaceAll(replacement));
+            }
+         }
+         return true;
+      }
+   }
+
+   private static class DropFrames implements StackTransform {
+      private final Pattern pattern;
+
+      private DropFrames(Pattern pattern) {
+         this.pattern = pattern;
+      }
+
+      @Override
+      public boolean transform(List<String> frames) {
+         frames.removeIf(frame -> pattern.matcher(frame).find());
+         return true;
+      }
+   }
+
+   private static class FilterStacks implements StackTransform {
+      private final Pattern pattern;
+      private final boolean keep;
+      private final boolean root;
+
+      private FilterStacks(Pattern pattern, boolean keep, boolean root) {
+         this.pattern = pattern;
+         this.keep = keep;
+         this.root = root;
+      }
+
+      @Override
+      public boolean transform(List<String> frames) {
+         int n = root ? Math.min(1, frames.size()) : frames.size();
+         for (int i = 0; i < n; ++i) {
+            if (pattern.matcher(frames.get(i)).find()) {
+               return keep;
+            }
+         }
+         return !keep;
+      }
+   }
+}
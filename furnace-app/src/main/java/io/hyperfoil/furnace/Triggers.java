@@ -0,0 +1,171 @@
+package io.hyperfoil.furnace;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Watches CPU usage (<code>cpu.stat</code>) and CPU pressure (<code>cpu.pressure</code>) of the recorded cgroups
+ * and starts a recording when any threshold is crossed. The rules are read from the <code>furnace-config</code>
+ * ConfigMap:
+ * <ul>
+ *    <li><code>triggerCpu</code>: CPU usage in cores, averaged over the sampling interval</li>
+ *    <li><code>triggerPsi</code>: percentage of time some tasks were stalled waiting for CPU (10s average)</li>
+ *    <li><code>triggerDuration</code>: length of the triggered recording in seconds, default 30</li>
+ *    <li><code>triggerPreBuffer</code>: seconds of low-frequency background recording preceding the trigger
+ *        included in the chart, default 0 (disabled)</li>
+ *    <li><code>triggerCooldown</code>: minimum seconds between the end of one triggered recording and the next
+ *        trigger, default 600</li>
+ *    <li><code>triggerMaxPerHour</code>: maximum number of triggered recordings per hour, default 3</li>
+ *    <li><code>triggerInterval</code>: sampling interval in seconds, default 5</li>
+ * </ul>
+ * Sampling reads only a couple of small files per cgroup, so it can run continuously.
+ */
+class Triggers {
+   private static final Logger log = Logger.getLogger(Triggers.class);
+   private static final String TRIGGER_CPU = System.getenv("TRIGGER_CPU");
+   private static final String TRIGGER_PSI = System.getenv("TRIGGER_PSI");
+   private static final String TRIGGER_DURATION = System.getenv("TRIGGER_DURATION");
+   private static final String TRIGGER_PRE_BUFFER = System.getenv("TRIGGER_PRE_BUFFER");
+   private static final String TRIGGER_COOLDOWN = System.getenv("TRIGGER_COOLDOWN");
+   private static final String TRIGGER_MAX_PER_HOUR = System.getenv("TRIGGER_MAX_PER_HOUR");
+   private static final String TRIGGER_INTERVAL = System.getenv("TRIGGER_INTERVAL");
+
+   private final Controller controller;
+   private final Supplier<List<String>> cgroupsSupplier;
+   private final double cpuThreshold;
+   private final double psiThreshold;
+   private final int duration;
+   private final int preBuffer;
+   private final int cooldown;
+   private final int maxPerHour;
+   private final int interval;
+   private final Deque<Long> history = new ArrayDeque<>();
+   private List<String> cgroups;
+   private long lastUsage = -1;
+   private long lastTimestamp;
+   private long cooldownUntil;
+
+   private Triggers(Controller controller, Supplier<List<String>> cgroupsSupplier, double cpuThreshold, double psiThreshold) {
+      this.controller = controller;
+      this.cgroupsSupplier = cgroupsSupplier;
+      this.cpuThreshold = cpuThreshold;
+      this.psiThreshold = psiThreshold;
+      this.duration = parseInt("TRIGGER_DURATION", TRIGGER_DURATION, 30);
+      this.preBuffer = parseInt("TRIGGER_PRE_BUFFER", TRIGGER_PRE_BUFFER, 0);
+      this.cooldown = parseInt("TRIGGER_COOLDOWN", TRIGGER_COOLDOWN, 600);
+      this.maxPerHour = parseInt("TRIGGER_MAX_PER_HOUR", TRIGGER_MAX_PER_HOUR, 3);
+      this.interval = Math.max(1, parseInt("TRIGGER_INTERVAL", TRIGGER_INTERVAL, 5));
+   }
+
+   /**
+    * @return Triggers or <code>null</code> if no threshold is configured.
+    */
+   static Triggers create(Controller controller, Supplier<List<String>> cgroups) {
+      double cpu = parseDouble("TRIGGER_CPU", TRIGGER_CPU);
+      double psi = parseDouble("TRIGGER_PSI", TRIGGER_PSI);
+      if (cpu <= 0 && psi <= 0) {
+         return null;
+      }
+      return new Triggers(controller, cgroups, cpu, psi);
+   }
+
+   int preBuffer() {
+      return preBuffer;
+   }
+
+   void start(ScheduledExecutorService executor) {
+      log.infof("Watching CPU usage (threshold %.2f cores) and pressure (threshold %.1f%%) every %d seconds",
+            cpuThreshold, psiThreshold, interval);
+      executor.scheduleWithFixedDelay(() -> {
+         try {
+            sample();
+         } catch (Exception e) {
+            // any exception would cancel the sampling
+            log.error("Failed to sample CPU usage", e);
+         }
+      }, interval, interval, TimeUnit.SECONDS);
+   }
+
+   private void sample() {
+      if (cgroups == null) {
+         cgroups = cgroupsSupplier.get();
+         if (cgroups == null) {
+            return;
+         }
+      }
+      long usage = 0;
+      double pressure = -1;
+      for (String cgroup : cgroups) {
+         long cgroupUsage = Cgroups.cpuUsage(cgroup);
+         if (cgroupUsage < 0) {
+            // container restarted, find the cgroups again on next sample
+            cgroups = null;
+            lastUsage = -1;
+            return;
+         }
+         usage += cgroupUsage;
+         if (psiThreshold > 0) {
+            pressure = Math.max(pressure, Cgroups.cpuPressure(cgroup));
+         }
+      }
+      long now = System.nanoTime();
+      double cores = lastUsage < 0 ? 0 : (double) (usage - lastUsage) / (now - lastTimestamp);
+      lastUsage = usage;
+      lastTimestamp = now;
+
+      String reason;
+      if (cpuThreshold > 0 && cores >= cpuThreshold) {
+         reason = String.format("CPU usage %.2f cores exceeds %.2f", cores, cpuThreshold);
+      } else if (psiThreshold > 0 && pressure >= psiThreshold) {
+         reason = String.format("CPU pressure %.1f%% exceeds %.1f%%", pressure, psiThreshold);
+      } else {
+         return;
+      }
+      long millis = System.currentTimeMillis();
+      if (millis < cooldownUntil) {
+         log.debugf("Not triggering during cooldown: %s", reason);
+         return;
+      }
+      while (!history.isEmpty() && history.peekFirst() < millis - TimeUnit.HOURS.toMillis(1)) {
+         history.pollFirst();
+      }
+      if (history.size() >= maxPerHour) {
+         log.debugf("Not triggering, reached %d recordings per hour: %s", maxPerHour, reason);
+         return;
+      }
+      if (controller.trigger(reason, duration)) {
+         history.addLast(millis);
+         cooldownUntil = millis + TimeUnit.SECONDS.toMillis(duration + cooldown);
+      }
+   }
+
+   private static int parseInt(String name, String value, int defaultValue) {
+      if (value == null || value.isEmpty()) {
+         return defaultValue;
+      }
+      try {
+         return Integer.parseInt(value);
+      } catch (NumberFormatException e) {
+         log.errorf("Cannot parse %s=%s", name, value);
+         return defaultValue;
+      }
+   }
+
+   private static double parseDouble(String name, String value) {
+      if (value == null || value.isEmpty()) {
+         return 0;
+      }
+      try {
+         return Double.parseDouble(value);
+      } catch (NumberFormatException e) {
+         log.errorf("Cannot parse %s=%s", name, value);
+         return 0;
+      }
+   }
+}
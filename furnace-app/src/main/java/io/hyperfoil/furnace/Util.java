@@ -1,8 +1,100 @@
 package io.hyperfoil.furnace;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.jboss.logging.Logger;
+
 public class Util {
+   private static final Logger log = Logger.getLogger(Util.class);
+
    static boolean getBooleanEnv(String env, boolean defaultValue) {
        String value = System.getenv(env);
        return value == null ? defaultValue : "true".equalsIgnoreCase(value);
    }
+
+   static String getStringEnv(String env, String defaultValue) {
+       String value = System.getenv(env);
+       return value == null || value.isEmpty() ? defaultValue : value;
+   }
+
+   /**
+    * @param pem File with one or more PEM-encoded certificates.
+    * @return SSL context trusting only the given certificates.
+    */
+   static SSLContext trustingSslContext(Path pem) throws GeneralSecurityException, IOException {
+       KeyStore trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
+       trustStore.load(null, null);
+       try (InputStream stream = Files.newInputStream(pem)) {
+           int i = 0;
+           for (Certificate certificate : CertificateFactory.getInstance("X.509").generateCertificates(stream)) {
+               trustStore.setCertificateEntry("ca" + i++, certificate);
+           }
+       }
+       TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+       trustManagerFactory.init(trustStore);
+       SSLContext sslContext = SSLContext.getInstance("TLS");
+       sslContext.init(null, trustManagerFactory.getTrustManagers(), null);
+       return sslContext;
+   }
+
+   /**
+    * @param location Truststore in the format of MicroProfile REST client configuration, e.g. <code>file:/root/keystore.jks</code>.
+    * @return SSL context trusting the certificates in the truststore.
+    */
+   static SSLContext trustStoreSslContext(String location, String password) throws GeneralSecurityException, IOException {
+       KeyStore trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
+       try (InputStream stream = Files.newInputStream(Paths.get(location.startsWith("file:") ? location.substring(5) : location))) {
+           trustStore.load(stream, password == null ? null : password.toCharArray());
+       }
+       TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+       trustManagerFactory.init(trustStore);
+       SSLContext sslContext = SSLContext.getInstance("TLS");
+       sslContext.init(null, trustManagerFactory.getTrustManagers(), null);
+       return sslContext;
+   }
+
+   static void deleteRecursively(File dir) {
+       if (!dir.exists()) {
+           return;
+       }
+       try (Stream<Path> paths = Files.walk(dir.toPath())) {
+           paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+       } catch (IOException e) {
+           log.errorf(e, "Failed to delete %s", dir);
+       }
+   }
+
+   /**
+    * @param host Host name or IP.
+    * @param address IP, e.g. the remote address of a request.
+    */
+   static boolean resolvesTo(String host, String address) {
+       try {
+           InetAddress expected = InetAddress.getByName(address);
+           for (InetAddress resolved : InetAddress.getAllByName(host)) {
+               if (resolved.equals(expected)) {
+                   return true;
+               }
+           }
+       } catch (UnknownHostException e) {
+           log.debugf(e, "Cannot resolve %s", host);
+       }
+       return false;
+   }
 }
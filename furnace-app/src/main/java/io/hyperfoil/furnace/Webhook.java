@@ -24,12 +24,16 @@ import io.vertx.core.json.JsonObject;
 @Path("/webhook")
 public class Webhook {
     private static final Logger log = Logger.getLogger(Webhook.class);
-    private static final String FURNACE_IMAGE = "quay.io/rvansa/furnace-app:latest";
+    private static final String DEFAULT_FURNACE_IMAGE = "quay.io/rvansa/furnace-app:latest";
+    // Allows to use the native sidecar image (see Dockerfile.furnace-native)
+    private static final String FURNACE_IMAGE = Util.getStringEnv("SIDECAR_IMAGE", DEFAULT_FURNACE_IMAGE);
     private static final String SERVICE_NAME = System.getenv("SERVICE_NAME");
     private static final String POD_NAME = System.getenv("POD_NAME");
     private static final String POD_NAMESPACE = System.getenv("POD_NAMESPACE");
     private static final boolean ADD_KERNEL_SRC = Util.getBooleanEnv("ADD_KERNEL_SRC", true);
     private static final String CONTAINER_STORAGE_NFS = System.getenv("CONTAINER_STORAGE_NFS");
+    // Pods are recorded by the node agent (see Agent) rather than by an injected sidecar
+    private static final boolean AGENT_MODE = Util.getBooleanEnv("AGENT_MODE", false);
     private String keystore;
     private final Map<String, String> images = new HashMap<>();
 
@@ -132,6 +136,14 @@ public class Webhook {
         if (!inject) {
             return patch;
         }
+        if (AGENT_MODE) {
+            if (labels == null) {
+                addToPatch(patch, "/metadata/labels", new JsonObject().put(Agent.AGENT_LABEL, "true"));
+            } else {
+                addToPatch(patch, "/metadata/labels/" + Agent.AGENT_LABEL, "true");
+            }
+            return patch;
+        }
         boolean pull = true;
         if (annotations != null && !isEnabled(annotations.getValue("furnace.pull"), true)) {
             pull = false;
@@ -156,6 +168,9 @@ public class Webhook {
         addMount(volumeMounts, "kernel-modules", "/lib/modules", true);
         addHostPath(volumes, "kernel-debug", "/sys/kernel/debug");
         addMount(volumeMounts, "kernel-debug", "/sys/kernel/debug", true);
+        // perf record -G needs the host hierarchy to find cgroups of the other containers
+        addHostPath(volumes, "host-cgroup", "/sys/fs/cgroup");
+        addMount(volumeMounts, "host-cgroup", "/host/sys/fs/cgroup", true);
         volumes.add(new JsonObject().put("name", "scripts").put("configMap",
               new JsonObject().put("name", "furnace-scripts").put("optional", true).put("defaultMode", 0777)
         ));
@@ -214,6 +229,7 @@ public class Webhook {
         addEnv(env, "FURNACE_MAIN_IMAGE", image);
         addEnvFromField(env, "POD_NAME", "metadata.name");
         addEnvFromField(env, "POD_NAMESPACE", "metadata.namespace");
+        addEnvFromField(env, "POD_UID", "metadata.uid");
         addEnvFromField(env, "POD_IP", "status.podIP");
         addEnv(env, "QUARKUS_HTTP_PORT", "12380");
         addEnv(env, "PROXY_CLIENT_MP_REST_URL", "https://" + SERVICE_NAME + "." + POD_NAMESPACE + ".svc:443");
@@ -226,6 +242,20 @@ public class Webhook {
         addEnvFromConfigMap(env, "AUTOSTOP", "autostop");
         addEnvFromConfigMap(env, "AUTORESTART", "autorestart");
         addEnvFromConfigMap(env, "PROCESS_PATTERN", "processPattern");
+        addEnvFromConfigMap(env, "LIVE_INTERVAL", "liveInterval");
+        addEnvFromConfigMap(env, "SCRIPT_PARALLELISM", "scriptParallelism");
+        addEnvFromConfigMap(env, "SCRIPT_SHARDING", "scriptSharding");
+        addEnvFromConfigMap(env, "COLLAPSE_MEMORY", "collapseMemory");
+        addEnvFromConfigMap(env, "EVENTS", "events");
+        addEnvFromConfigMap(env, "ALLOCATION_SAMPLE_EVERY", "allocationSampleEvery");
+        addEnvFromConfigMap(env, "REMOTE_PROCESSING", "remoteProcessing");
+        addEnvFromConfigMap(env, "TRIGGER_CPU", "triggerCpu");
+        addEnvFromConfigMap(env, "TRIGGER_PSI", "triggerPsi");
+        addEnvFromConfigMap(env, "TRIGGER_DURATION", "triggerDuration");
+        addEnvFromConfigMap(env, "TRIGGER_PRE_BUFFER", "triggerPreBuffer");
+        addEnvFromConfigMap(env, "TRIGGER_COOLDOWN", "triggerCooldown");
+        addEnvFromConfigMap(env, "TRIGGER_MAX_PER_HOUR", "triggerMaxPerHour");
+        addEnvFromConfigMap(env, "TRIGGER_INTERVAL", "triggerInterval");
 
         sidecar.put("volumeMounts", volumeMounts);
         sidecar.put("env", env);
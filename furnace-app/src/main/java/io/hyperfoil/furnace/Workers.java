@@ -0,0 +1,350 @@
+package io.hyperfoil.furnace;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.DELETE;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriInfo;
+
+import org.jboss.logging.Logger;
+import org.jboss.resteasy.annotations.cache.NoCache;
+import org.jboss.resteasy.client.jaxrs.ResteasyWebTarget;
+
+import io.quarkus.runtime.annotations.RegisterForReflection;
+import io.vertx.core.http.HttpServerRequest;
+
+/**
+ * Pool of workers in the proxy replicas that process recordings on behalf of the sidecars, see
+ * {@link RemoteProcessing}. The recording is stored in <code>PROCESSING_DIR</code>, decoded with the binaries
+ * shipped along and the sidecar downloads the collapsed stacks and the flamegraph. When all
+ * <code>PROCESSING_WORKERS</code> (by default half of the CPUs) of a replica are busy the recording is forwarded
+ * to the least loaded peer; the job then lives on that replica and the other endpoints are forwarded there
+ * using the <code>replica</code> parameter.
+ * <p>
+ * Recordings are accepted only from the controller registered for the pod (by its IP) or, when forwarded, from
+ * a peer replica. These are the only requests allowed beyond the usual body size limit, see {@link BodyLimit}.
+ */
+@ApplicationScoped
+@Path(Workers.PATH)
+public class Workers {
+   static final String PATH = "/proxy/jobs";
+   private static final Logger log = Logger.getLogger(Workers.class);
+   private static final String PROCESSING_WORKERS = System.getenv("PROCESSING_WORKERS");
+   private static final File WORK_DIR = new File(Util.getStringEnv("PROCESSING_DIR", System.getProperty("java.io.tmpdir") + "/furnace-jobs"));
+   // the sidecar downloads the result right away, this is for those that never come back
+   private static final long JOB_TTL = TimeUnit.HOURS.toMillis(1);
+   private static final String RECORDING = "recording";
+   private static final String RESULT = "result";
+
+   private final Timer timer = new Timer(true);
+   private final Map<String, Job> jobs = new HashMap<>();
+   private int workers;
+   private ExecutorService executor;
+
+   @Inject
+   ProxyCluster cluster;
+
+   @Inject
+   Proxy proxy;
+
+   @PostConstruct
+   public void init() {
+      workers = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+      if (PROCESSING_WORKERS != null) {
+         try {
+            workers = Math.max(1, Integer.parseInt(PROCESSING_WORKERS));
+         } catch (NumberFormatException e) {
+            log.errorf("Cannot parse PROCESSING_WORKERS=%s", PROCESSING_WORKERS);
+         }
+      }
+      executor = Executors.newFixedThreadPool(workers);
+      timer.scheduleAtFixedRate(new TimerTask() {
+         @Override
+         public void run() {
+            expire();
+         }
+      }, TimeUnit.MINUTES.toMillis(1), TimeUnit.MINUTES.toMillis(1));
+   }
+
+   @PreDestroy
+   public void destroy() {
+      timer.cancel();
+      executor.shutdownNow();
+   }
+
+   @POST
+   @Consumes(MediaType.APPLICATION_OCTET_STREAM)
+   @Produces(MediaType.APPLICATION_JSON)
+   public Job submit(InputStream recording, @Context UriInfo uriInfo, @Context HttpServerRequest request,
+                     @QueryParam("namespace") String namespace, @QueryParam("pod") String pod,
+                     @QueryParam("start") long start, @QueryParam("stop") long stop,
+                     @QueryParam("width") int width, @QueryParam("colors") String colors,
+                     @QueryParam("inverted") @DefaultValue("true") boolean inverted,
+                     @QueryParam("threadFilter") String threadFilter,
+                     @QueryParam("events") String events,
+                     @QueryParam("forwarded") boolean forwarded) {
+      checkClient(request.remoteAddress().host(), namespace, pod, forwarded);
+      // forwarded recordings are accepted even if busy, to avoid loops
+      if (!forwarded && cluster.isEnabled() && load().active >= workers) {
+         String peer = leastLoadedPeer();
+         if (peer != null) {
+            log.infof("All workers are busy, forwarding recording of %s/%s to %s", namespace, pod, peer);
+            return forward(peer, recording, uriInfo);
+         }
+      }
+      Job job = new Job();
+      job.id = UUID.randomUUID().toString();
+      job.replica = cluster.self();
+      job.status = Job.QUEUED;
+      job.dir = new File(WORK_DIR, job.id);
+      job.expires = Long.MAX_VALUE;
+      File archive = new File(job.dir, RECORDING);
+      try {
+         Files.createDirectories(job.dir.toPath());
+         Files.copy(recording, archive.toPath());
+      } catch (IOException e) {
+         Util.deleteRecursively(job.dir);
+         throw new WebApplicationException("Failed to receive the recording", e);
+      }
+      log.infof("Received recording of %s/%s (%d bytes) as job %s", namespace, pod, archive.length(), job.id);
+      synchronized (this) {
+         jobs.put(job.id, job);
+      }
+      executor.submit(() -> process(job, namespace, pod, start, stop, events, width, colors, inverted, threadFilter));
+      return job;
+   }
+
+   private void checkClient(String address, String namespace, String pod, boolean forwarded) {
+      boolean accepted;
+      if (forwarded) {
+         accepted = cluster.isPeer(address);
+      } else {
+         String ip = proxy.registeredIp(namespace, pod);
+         accepted = ip != null && Util.resolvesTo(ip, address);
+      }
+      if (!accepted) {
+         log.warnf("Rejected recording of %s/%s from %s", namespace, pod, address);
+         throw new WebApplicationException("Recording of " + namespace + "/" + pod + " is not accepted from " + address, 403);
+      }
+   }
+
+   private Job forward(String peer, InputStream recording, UriInfo uriInfo) {
+      ResteasyWebTarget target = cluster.target(peer).path(PATH);
+      for (Map.Entry<String, List<String>> param : uriInfo.getQueryParameters().entrySet()) {
+         target = target.queryParam(param.getKey(), param.getValue().toArray());
+      }
+      try {
+         // do not buffer the recording in memory
+         return target.queryParam("forwarded", true).setChunked(true).request(MediaType.APPLICATION_JSON_TYPE)
+               .post(Entity.entity(recording, MediaType.APPLICATION_OCTET_STREAM_TYPE), Job.class);
+      } catch (Exception e) {
+         throw new WebApplicationException("Failed to forward the recording to " + peer, e);
+      }
+   }
+
+   private String leastLoadedPeer() {
+      String best = null;
+      double bestLoad = 1;
+      for (String peer : cluster.peers()) {
+         try {
+            Load load = cluster.client(peer).load();
+            double ratio = (double) load.active / Math.max(1, load.workers);
+            if (ratio < bestLoad) {
+               best = peer;
+               bestLoad = ratio;
+            }
+         } catch (Exception e) {
+            log.debugf(e, "Failed to fetch load of %s", peer);
+         }
+      }
+      return best;
+   }
+
+   private void process(Job job, String namespace, String pod, long start, long stop, String events,
+                        int width, String colors, boolean inverted, String threadFilter) {
+      synchronized (this) {
+         job.status = Job.PROCESSING;
+      }
+      File archive = new File(job.dir, RECORDING);
+      File data = new File(job.dir, "data");
+      Controller controller = new Controller(data, namespace, pod, () -> null, false);
+      try {
+         Files.createDirectories(data.toPath());
+         try (InputStream stream = Files.newInputStream(archive.toPath())) {
+            Archives.unpack(stream, data);
+         }
+         Files.delete(archive.toPath());
+         controller.processOffline(start, stop, threadFilter, events, width, colors, inverted);
+         List<String> args = new ArrayList<>(List.of("-C", data.toString()));
+         args.addAll(controller.outputs());
+         try (InputStream result = Archives.pack(args)) {
+            Files.copy(result, new File(job.dir, RESULT).toPath());
+         }
+         log.infof("Job %s (%s/%s) is done", job.id, namespace, pod);
+         finish(job, Job.DONE, null);
+      } catch (IOException | RuntimeException e) {
+         log.errorf(e, "Job %s (%s/%s) failed", job.id, namespace, pod);
+         finish(job, Job.FAILED, e.getMessage());
+      } finally {
+         controller.destroy();
+         Util.deleteRecursively(data);
+         archive.delete();
+      }
+   }
+
+   private synchronized void finish(Job job, String status, String error) {
+      job.status = status;
+      job.error = error;
+      // it might have been deleted while processing
+      job.expires = Math.min(job.expires, System.currentTimeMillis() + JOB_TTL);
+   }
+
+   private void expire() {
+      long now = System.currentTimeMillis();
+      List<Job> expired = new ArrayList<>();
+      synchronized (this) {
+         for (Iterator<Job> iterator = jobs.values().iterator(); iterator.hasNext(); ) {
+            Job job = iterator.next();
+            if (job.isFinished() && job.expires < now) {
+               iterator.remove();
+               expired.add(job);
+            }
+         }
+      }
+      for (Job job : expired) {
+         log.infof("Job %s expired", job.id);
+         Util.deleteRecursively(job.dir);
+      }
+   }
+
+   @GET
+   @Path("load")
+   @Produces(MediaType.APPLICATION_JSON)
+   @NoCache
+   public synchronized Load load() {
+      Load load = new Load();
+      load.workers = workers;
+      load.active = (int) jobs.values().stream().filter(job -> !job.isFinished()).count();
+      return load;
+   }
+
+   @GET
+   @Path("{id}")
+   @Produces(MediaType.APPLICATION_JSON)
+   @NoCache
+   public Job status(@PathParam("id") String id, @QueryParam("replica") String replica) {
+      if (replica != null && !cluster.isSelf(replica)) {
+         return cluster.client(replica).job(id, replica);
+      }
+      return job(id);
+   }
+
+   @GET
+   @Path("{id}/result")
+   @Produces(MediaType.APPLICATION_OCTET_STREAM)
+   public Response result(@PathParam("id") String id, @QueryParam("replica") String replica) {
+      if (replica != null && !cluster.isSelf(replica)) {
+         Response response = cluster.target(replica).path("/proxy/jobs/" + id + "/result").queryParam("replica", replica)
+               .request(MediaType.APPLICATION_OCTET_STREAM_TYPE).get();
+         if (response.getStatus() != 200) {
+            response.close();
+            return Response.status(response.getStatus()).build();
+         }
+         return Response.ok(response.readEntity(InputStream.class)).build();
+      }
+      Job job = job(id);
+      if (!Job.DONE.equals(job.status)) {
+         return Response.status(404).build();
+      }
+      return Response.ok(new File(job.dir, RESULT)).build();
+   }
+
+   @DELETE
+   @Path("{id}")
+   public void delete(@PathParam("id") String id, @QueryParam("replica") String replica) {
+      if (replica != null && !cluster.isSelf(replica)) {
+         cluster.client(replica).deleteJob(id, replica);
+         return;
+      }
+      Job job;
+      synchronized (this) {
+         job = job(id);
+         if (!job.isFinished()) {
+            // removed when the processing finishes
+            job.expires = 0;
+            return;
+         }
+         jobs.remove(id);
+      }
+      Util.deleteRecursively(job.dir);
+   }
+
+   private synchronized Job job(String id) {
+      Job job = jobs.get(id);
+      if (job == null) {
+         throw new WebApplicationException("No job " + id, 404);
+      }
+      return job;
+   }
+
+   @RegisterForReflection
+   public static class Job {
+      static final String QUEUED = "queued";
+      static final String PROCESSING = "processing";
+      static final String DONE = "done";
+      static final String FAILED = "failed";
+
+      public String id;
+      /**
+       * URL of the replica that processes the job, <code>null</code> when the proxy is not clustered.
+       */
+      public String replica;
+      public String status;
+      public String error;
+      File dir;
+      long expires;
+
+      boolean isFinished() {
+         return DONE.equals(status) || FAILED.equals(status);
+      }
+   }
+
+   @RegisterForReflection
+   public static class Load {
+      /**
+       * Queued and running jobs.
+       */
+      public int active;
+      public int workers;
+   }
+}
@@ -0,0 +1,241 @@
+#!/usr/bin/python3
+#
+# Traces native memory allocations of given processes with eBPF until SIGINT or SIGTERM and writes folded stacks
+# of the bytes still allocated at that moment (outstanding.folded) and of all bytes allocated (allocated.folded).
+# The bytes are summed per stack in kernel maps, only the aggregates are read when the tracing stops.
+#
+# In the malloc mode uprobes trace malloc, calloc, realloc, aligned_alloc, memalign and free in the libc used
+# by each process. In the mmap mode the mmap and munmap syscalls are traced, this covers also statically linked
+# binaries (e.g. Go) and allocators that map memory directly; only unmapping of whole mappings is matched.
+#
+# The library of each symbolized frame is written to perf.modules (function<TAB>module) for the report.
+
+import argparse
+import os
+import signal
+import sys
+import time
+
+from bcc import BPF
+
+parser = argparse.ArgumentParser(description="Trace native allocations into folded stacks")
+parser.add_argument("-p", "--pids", required=True, help="comma-separated PIDs to trace")
+parser.add_argument("-m", "--mode", choices=["malloc", "mmap"], default="malloc")
+parser.add_argument("-s", "--sample-every", type=int, default=1,
+                    help="trace only every n-th allocation on average, the sizes are scaled")
+parser.add_argument("-o", "--output", required=True, help="directory for the folded stacks")
+args = parser.parse_args()
+
+pids = [int(pid) for pid in args.pids.split(",") if pid.strip()]
+
+program = """
+#include <uapi/linux/ptrace.h>
+
+struct key_t {
+    u32 tgid;
+    int stack_id;
+};
+
+struct alloc_t {
+    u64 size;
+    struct key_t key;
+};
+
+BPF_HASH(traced, u32, u8, 65536);
+BPF_HASH(sizes, u64, u64, 65536);
+BPF_HASH(allocs, u64, struct alloc_t, 1000000);
+BPF_HASH(outstanding, struct key_t, s64, 16384);
+BPF_HASH(allocated, struct key_t, u64, 16384);
+BPF_STACK_TRACE(stacks, 16384);
+
+static inline int trace_enter(u64 size) {
+    if (SAMPLE_EVERY > 1 && bpf_get_prandom_u32() % SAMPLE_EVERY != 0) {
+        return 0;
+    }
+    u64 id = bpf_get_current_pid_tgid();
+    u32 tgid = id >> 32;
+    if (traced.lookup(&tgid) == 0) {
+        return 0;
+    }
+    sizes.update(&id, &size);
+    return 0;
+}
+
+static inline int trace_exit(void *ctx, u64 address) {
+    u64 id = bpf_get_current_pid_tgid();
+    u64 *size = sizes.lookup(&id);
+    if (size == 0) {
+        return 0;
+    }
+    struct alloc_t alloc = {};
+    alloc.size = *size * SAMPLE_EVERY;
+    sizes.delete(&id);
+    if (address == 0 || address == (u64) -1) {
+        return 0;
+    }
+    alloc.key.tgid = id >> 32;
+    alloc.key.stack_id = stacks.get_stackid(ctx, BPF_F_USER_STACK);
+    allocs.update(&address, &alloc);
+    s64 zero = 0;
+    s64 *bytes = outstanding.lookup_or_try_init(&alloc.key, &zero);
+    if (bytes) {
+        __sync_fetch_and_add(bytes, alloc.size);
+    }
+    u64 uzero = 0;
+    u64 *total = allocated.lookup_or_try_init(&alloc.key, &uzero);
+    if (total) {
+        __sync_fetch_and_add(total, alloc.size);
+    }
+    return 0;
+}
+
+static inline int trace_release(u64 address) {
+    struct alloc_t *alloc = allocs.lookup(&address);
+    if (alloc == 0) {
+        return 0;
+    }
+    s64 *bytes = outstanding.lookup(&alloc->key);
+    if (bytes) {
+        __sync_fetch_and_add(bytes, -(s64) alloc->size);
+    }
+    allocs.delete(&address);
+    return 0;
+}
+"""
+
+malloc_probes = """
+int malloc_enter(struct pt_regs *ctx, size_t size) {
+    return trace_enter(size);
+}
+
+int calloc_enter(struct pt_regs *ctx, size_t nmemb, size_t size) {
+    return trace_enter(nmemb * size);
+}
+
+int realloc_enter(struct pt_regs *ctx, void *ptr, size_t size) {
+    trace_release((u64) ptr);
+    return trace_enter(size);
+}
+
+int aligned_enter(struct pt_regs *ctx, size_t alignment, size_t size) {
+    return trace_enter(size);
+}
+
+int alloc_exit(struct pt_regs *ctx) {
+    return trace_exit(ctx, PT_REGS_RC(ctx));
+}
+
+int free_enter(struct pt_regs *ctx, void *ptr) {
+    return trace_release((u64) ptr);
+}
+"""
+
+mmap_probes = """
+TRACEPOINT_PROBE(syscalls, sys_enter_mmap) {
+    // only anonymous mappings (MAP_ANONYMOUS), mapped files are not allocations
+    if (!(args->flags & 0x20)) {
+        return 0;
+    }
+    return trace_enter(args->len);
+}
+
+TRACEPOINT_PROBE(syscalls, sys_exit_mmap) {
+    return trace_exit(args, args->ret);
+}
+
+TRACEPOINT_PROBE(syscalls, sys_enter_munmap) {
+    return trace_release(args->addr);
+}
+"""
+
+program += malloc_probes if args.mode == "malloc" else mmap_probes
+program = program.replace("SAMPLE_EVERY", str(max(1, args.sample_every)))
+bpf = BPF(text=program)
+for pid in pids:
+    bpf["traced"][bpf["traced"].Key(pid)] = bpf["traced"].Leaf(1)
+
+def libc(pid):
+    # the process can run in another mount namespace, its root is accessible through /proc
+    with open("/proc/%d/maps" % pid) as maps:
+        for line in maps:
+            parts = line.split()
+            if len(parts) >= 6 and os.path.basename(parts[5]).startswith("libc.so"):
+                return "/proc/%d/root%s" % (pid, parts[5])
+    return None
+
+if args.mode == "malloc":
+    attached = 0
+    for pid in pids:
+        try:
+            path = libc(pid)
+        except OSError:
+            continue
+        if path is None:
+            # statically linked, use the mmap mode
+            continue
+        for sym, enter in [("malloc", "malloc_enter"), ("calloc", "calloc_enter"), ("realloc", "realloc_enter"),
+                           ("aligned_alloc", "aligned_enter"), ("memalign", "aligned_enter")]:
+            bpf.attach_uprobe(name=path, sym=sym, fn_name=enter, pid=pid)
+            bpf.attach_uretprobe(name=path, sym=sym, fn_name="alloc_exit", pid=pid)
+        bpf.attach_uprobe(name=path, sym="free", fn_name="free_enter", pid=pid)
+        attached += 1
+    if attached == 0:
+        print("None of the processes %s uses libc, try the mmap mode" % pids, file=sys.stderr)
+        sys.exit(1)
+
+stopped = False
+
+def stop(signum, frame):
+    global stopped
+    stopped = True
+
+signal.signal(signal.SIGINT, stop)
+signal.signal(signal.SIGTERM, stop)
+print("Tracing %s in %d processes" % (args.mode, len(pids)), file=sys.stderr)
+while not stopped:
+    time.sleep(1)
+
+comms = {}
+
+def comm(tgid):
+    if tgid not in comms:
+        try:
+            with open("/proc/%d/comm" % tgid) as f:
+                comms[tgid] = f.read().strip()
+        except OSError:
+            comms[tgid] = str(tgid)
+    return comms[tgid]
+
+modules = {}
+
+def frame(address, tgid):
+    symbol = bpf.sym(address, tgid, demangle=True)
+    # " [libfoo.so]" is appended when the module is known
+    module = bpf.sym(address, tgid, show_module=True, demangle=True)[len(symbol):].strip()
+    if symbol == b"[unknown]":
+        # like stackcollapse-perf.pl, show the module of unresolved frames
+        return module.decode("utf-8", "replace") if module else "[unknown]"
+    name = symbol.decode("utf-8", "replace").replace(";", ":")
+    if module:
+        modules.setdefault(name, module[1:-1].decode("utf-8", "replace"))
+    return name
+
+def write(table, name):
+    stacks = bpf["stacks"]
+    with open(os.path.join(args.output, name), "w") as output:
+        for key, value in table.items():
+            if value.value <= 0:
+                continue
+            frames = [comm(key.tgid)]
+            if key.stack_id < 0:
+                # the stack map was full
+                frames.append("[lost]")
+            else:
+                frames.extend(frame(address, key.tgid) for address in reversed(list(stacks.walk(key.stack_id))))
+            output.write("%s %d\n" % (";".join(frames), value.value))
+
+write(bpf["outstanding"], "outstanding.folded")
+write(bpf["allocated"], "allocated.folded")
+with open(os.path.join(args.output, "perf.modules"), "w") as output:
+    for name, module in modules.items():
+        output.write("%s\t%s\n" % (name, module))
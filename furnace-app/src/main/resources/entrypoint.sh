@@ -7,5 +7,15 @@ if [ "$(ls -A /etc/pull-secrets/)" ]; then
 else
   mv /tmp/config.json /root/.docker/config.json
 fi
-echo $KEYSTORE | base64 -d > /root/keystore.jks
-java -jar /root/quarkus-run.jar
\ No newline at end of file
+if [ -n "$KEYSTORE" ]; then
+  echo $KEYSTORE | base64 -d > /root/keystore.jks
+elif [ -f /var/service-ca/service-ca.crt ]; then
+  # node agent does not get the keystore from webhook
+  keytool -importcert -file /var/service-ca/service-ca.crt -keystore /root/keystore.jks -storepass changeit -trustcacerts -noprompt
+fi
+if [ -x /root/furnace-app-runner ]; then
+  # native build, see Dockerfile.furnace-native
+  exec /root/furnace-app-runner
+else
+  java -jar /root/quarkus-run.jar
+fi
@@ -0,0 +1,61 @@
+package io.hyperfoil.furnace;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.vertx.core.json.JsonArray;
+
+public class AllocationTracingTest {
+   private static final StackTransforms MERGE_POOLS = StackTransforms.parse(new JsonArray("[{ \"type\": \"merge-thread-pools\" }]"));
+
+   @TempDir
+   Path dir;
+
+   @Test
+   public void testRate() throws IOException {
+      Files.write(dir.resolve("allocated.folded"), List.of(
+            "worker-1;main;malloc 6000",
+            "worker-2;main;malloc 4500",
+            "worker-1;init;malloc 600",
+            "worker-1;rare;malloc 400",
+            "worker-1;once;malloc 16"), StandardCharsets.UTF_8);
+      File target = dir.resolve("perf.allocation-rate.collapsed").toFile();
+      // 10 seconds
+      AllocationTracing.collapse(dir.toFile(), AllocationTracing.RATE, 10_000, MERGE_POOLS, target);
+      // the rate is computed after the threads are merged and rounded to whole bytes per second
+      assertEquals(List.of("worker;init;malloc 60", "worker;main;malloc 1050", "worker;once;malloc 2", "worker;rare;malloc 40"),
+            lines(target));
+      File bytes = AllocationTracing.bytesFile(AllocationTracing.RATE, target);
+      assertEquals("perf.allocation-rate.bytes.collapsed", bytes.getName());
+      assertEquals(List.of("worker;init;malloc 600", "worker;main;malloc 10500", "worker;once;malloc 16", "worker;rare;malloc 400"),
+            lines(bytes));
+
+      // 0.16 B/s is left out of the chart, the exports still have the bytes
+      AllocationTracing.collapse(dir.toFile(), AllocationTracing.RATE, 100_000, MERGE_POOLS, target);
+      assertEquals(List.of("worker;init;malloc 6", "worker;main;malloc 105", "worker;rare;malloc 4"), lines(target));
+      assertEquals(List.of("worker;init;malloc 600", "worker;main;malloc 10500", "worker;once;malloc 16", "worker;rare;malloc 400"),
+            lines(bytes));
+   }
+
+   @Test
+   public void testOutstanding() throws IOException {
+      Files.write(dir.resolve("outstanding.folded"), List.of("worker-1;leak;malloc 1", "worker-2;leak;malloc 2"), StandardCharsets.UTF_8);
+      File target = dir.resolve("perf.collapsed").toFile();
+      AllocationTracing.collapse(dir.toFile(), AllocationTracing.OUTSTANDING, 10_000, MERGE_POOLS, target);
+      assertEquals(List.of("worker;leak;malloc 3"), lines(target));
+      assertEquals(target, AllocationTracing.bytesFile(AllocationTracing.OUTSTANDING, target));
+   }
+
+   private static List<String> lines(File file) throws IOException {
+      return Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+   }
+}
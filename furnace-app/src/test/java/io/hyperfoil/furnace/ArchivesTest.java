@@ -0,0 +1,116 @@
+package io.hyperfoil.furnace;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ArchivesTest {
+   @TempDir
+   Path dir;
+
+   @Test
+   public void testRoundTrip() throws IOException {
+      Path source = Files.createDirectories(dir.resolve("source"));
+      // longer than the 100 characters of the name field
+      String longName = "lib/" + "x".repeat(120) + ".so";
+      Files.createDirectories(source.resolve("lib"));
+      Files.writeString(source.resolve(longName), "binary");
+      Files.writeString(source.resolve("perf.data"), "data");
+      Files.createLink(source.resolve("lib/link.so"), source.resolve(longName));
+      byte[] archive;
+      try (InputStream packed = Archives.pack(List.of("-C", source.toString(), "perf.data", "lib"))) {
+         archive = packed.readAllBytes();
+      }
+      Path target = Files.createDirectories(dir.resolve("target"));
+      Archives.unpack(new ByteArrayInputStream(archive), target.toFile());
+      assertEquals("data", Files.readString(target.resolve("perf.data")));
+      assertEquals("binary", Files.readString(target.resolve(longName)));
+      assertEquals("binary", Files.readString(target.resolve("lib/link.so")));
+   }
+
+   @Test
+   public void testRejectsEntriesOutsideTarget() throws IOException {
+      Path target = Files.createDirectories(dir.resolve("a/b"));
+      // the crafted archives are valid otherwise
+      Archives.unpack(new ByteArrayInputStream(tar(header("ok", '0', 2), block("ok"))), target.toFile());
+      assertEquals("ok", Files.readString(target.resolve("ok")));
+      assertRejected(target, tar(header("../evil", '0', 4), block("evil")));
+      assertRejected(target, tar(header("ok/../../evil", '0', 4), block("evil")));
+      assertRejected(target, tar(header(dir.resolve("evil").toString(), '0', 4), block("evil")));
+      // GNU long name
+      String longName = "../" + "y".repeat(120);
+      assertRejected(target, tar(header("././@LongLink", 'L', longName.length() + 1), block(longName),
+            header("y", '0', 4), block("evil")));
+      assertRejected(target, tar(header("link", '1', 0, "../../evil")));
+      assertRejected(target, tar(header("link", '2', 0, "/")));
+      assertFalse(Files.exists(dir.resolve("evil")));
+      assertFalse(Files.exists(dir.resolve("a/evil")));
+      assertFalse(Files.exists(target.resolve("link")));
+   }
+
+   private static void assertRejected(Path target, byte[] archive) {
+      assertThrows(IOException.class, () -> Archives.unpack(new ByteArrayInputStream(archive), target.toFile()));
+   }
+
+   private static byte[] tar(byte[]... blocks) throws IOException {
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+      try (DeflaterOutputStream output = new DeflaterOutputStream(compressed)) {
+         for (byte[] block : blocks) {
+            output.write(block);
+         }
+         // end of archive
+         output.write(new byte[1024]);
+      }
+      return compressed.toByteArray();
+   }
+
+   private static byte[] header(String name, char type, long size) {
+      return header(name, type, size, "");
+   }
+
+   private static byte[] header(String name, char type, long size, String link) {
+      byte[] header = new byte[512];
+      put(header, 0, name.length() > 100 ? name.substring(0, 100) : name);
+      put(header, 100, "0000644");
+      put(header, 108, "0000000");
+      put(header, 116, "0000000");
+      put(header, 124, String.format("%011o", size));
+      put(header, 136, "00000000000");
+      header[156] = (byte) type;
+      put(header, 157, link);
+      put(header, 257, "ustar  ");
+      put(header, 148, "        ");
+      int checksum = 0;
+      for (byte b : header) {
+         checksum += b & 0xFF;
+      }
+      put(header, 148, String.format("%06o", checksum));
+      header[155] = ' ';
+      return header;
+   }
+
+   private static byte[] block(String content) {
+      byte[] bytes = content.getBytes(StandardCharsets.ISO_8859_1);
+      byte[] block = new byte[(bytes.length + 511) / 512 * 512];
+      System.arraycopy(bytes, 0, block, 0, bytes.length);
+      return block;
+   }
+
+   private static void put(byte[] header, int offset, String value) {
+      byte[] bytes = value.getBytes(StandardCharsets.ISO_8859_1);
+      System.arraycopy(bytes, 0, header, offset, bytes.length);
+   }
+}
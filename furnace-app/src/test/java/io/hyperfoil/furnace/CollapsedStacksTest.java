@@ -0,0 +1,119 @@
+package io.hyperfoil.furnace;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class CollapsedStacksTest {
+   private static final StackTransforms NO_TRANSFORMS = new StackTransforms(List.of());
+   // characters sorting before ';' ('-', '.', digits) put frame prefixes to the test
+   private static final String[] FRAMES = { "a", "b", "b-c", "b.c", "c", "x1", "x", "0" };
+
+   @TempDir
+   Path dir;
+
+   @Test
+   public void testOrder() throws IOException {
+      List<String> input = List.of("a;b-c 1", "a;b;c 2", "a 3", "a;b 4", "a;b.c 5", "a;b;c 6", "a;b0 7");
+      List<String> expected = List.of("a 3", "a;b 4", "a;b;c 8", "a;b-c 1", "a;b.c 5", "a;b0 7");
+      assertEquals(expected, collapse(input, Long.MAX_VALUE));
+      // every stack goes to its own run
+      assertEquals(expected, collapse(input, 1));
+   }
+
+   @Test
+   public void testSpillingMatchesInMemory() throws IOException {
+      List<String> input = randomStacks(new Random(42), 5000);
+      List<String> inMemory = collapse(input, Long.MAX_VALUE);
+      // the table alone takes 24 kB so this spills every few hundred stacks, without compaction
+      assertEquals(inMemory, collapse(input, 64 << 10));
+   }
+
+   @Test
+   public void testCompaction() throws IOException {
+      List<String> input = randomStacks(new Random(17), 1000);
+      List<String> inMemory = collapse(input, Long.MAX_VALUE);
+      File spillDir = dir.resolve("spill").toFile();
+      assertTrue(spillDir.mkdir());
+      try (CollapsedStacks stacks = new CollapsedStacks(NO_TRANSFORMS, spillDir, 1)) {
+         for (String line : input) {
+            stacks.add(line);
+            // more than 64 runs are compacted into one
+            assertTrue(spillDir.list().length <= 64);
+         }
+         File target = dir.resolve("perf.collapsed").toFile();
+         stacks.write(target);
+         assertEquals(inMemory, Files.readAllLines(target.toPath(), StandardCharsets.UTF_8));
+      }
+      assertEquals(0, spillDir.list().length);
+   }
+
+   @Test
+   public void testSharedBudget() throws IOException {
+      long limit = 256 << 10;
+      CollapsedStacks.MemoryBudget budget = new CollapsedStacks.MemoryBudget(limit);
+      List<String> input = randomStacks(new Random(7), 20000);
+      File target = dir.resolve("perf.collapsed").toFile();
+      try (CollapsedStacks first = new CollapsedStacks(NO_TRANSFORMS, dir.toFile(), budget);
+           CollapsedStacks second = new CollapsedStacks(NO_TRANSFORMS, dir.toFile(), budget)) {
+         for (int i = 0; i < input.size(); ++i) {
+            (i % 3 == 0 ? second : first).add(input.get(i));
+            // an addition can grow the table before the aggregate spills
+            assertTrue(budget.used() <= 2 * limit, String.valueOf(budget.used()));
+         }
+         first.write(target);
+         assertEquals(collapse(every(input, 1), Long.MAX_VALUE), Files.readAllLines(target.toPath(), StandardCharsets.UTF_8));
+         second.write(target);
+         assertEquals(collapse(every(input, 0), Long.MAX_VALUE), Files.readAllLines(target.toPath(), StandardCharsets.UTF_8));
+      }
+      assertEquals(0, budget.used());
+   }
+
+   private List<String> collapse(List<String> input, long budget) throws IOException {
+      File target = dir.resolve("perf.collapsed").toFile();
+      try (CollapsedStacks stacks = new CollapsedStacks(NO_TRANSFORMS, dir.toFile(), budget)) {
+         for (String line : input) {
+            stacks.add(line);
+         }
+         stacks.write(target);
+      }
+      return Files.readAllLines(target.toPath(), StandardCharsets.UTF_8);
+   }
+
+   private static List<String> randomStacks(Random random, int count) {
+      List<String> stacks = new ArrayList<>();
+      for (int i = 0; i < count; ++i) {
+         StringBuilder sb = new StringBuilder("java");
+         for (int depth = random.nextInt(6); depth > 0; --depth) {
+            sb.append(';').append(FRAMES[random.nextInt(FRAMES.length)]);
+         }
+         stacks.add(sb.append(' ').append(1 + random.nextInt(5)).toString());
+      }
+      return stacks;
+   }
+
+   /**
+    * @return Lines that went to the second aggregate (<code>remainder == 0</code>) or the first one in
+    *         {@link #testSharedBudget()}.
+    */
+   private static List<String> every(List<String> input, int remainder) {
+      List<String> lines = new ArrayList<>();
+      for (int i = 0; i < input.size(); ++i) {
+         if ((i % 3 == 0) == (remainder == 0)) {
+            lines.add(input.get(i));
+         }
+      }
+      return lines;
+   }
+}
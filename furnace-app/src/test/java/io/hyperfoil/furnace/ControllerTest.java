@@ -0,0 +1,52 @@
+package io.hyperfoil.furnace;
+
+import static io.restassured.RestAssured.given;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+
+import org.junit.jupiter.api.Test;
+
+import io.quarkus.test.junit.QuarkusTest;
+
+@QuarkusTest
+public class ControllerTest {
+   @Test
+   public void testStatus() {
+      given().when().get("/controller/status").then().statusCode(200).body(is("idle"));
+   }
+
+   @Test
+   public void testClock() {
+      long before = System.currentTimeMillis();
+      String clock = given().when().get("/controller/clock").then().statusCode(200).extract().asString();
+      assertThat(Long.parseLong(clock), greaterThanOrEqualTo(before));
+   }
+
+   @Test
+   public void testNoRecording() {
+      given().when().get("/controller/chart").then().statusCode(404);
+      given().when().get("/controller/report").then().statusCode(404);
+   }
+
+   @Test
+   public void testCancelSchedule() {
+      long startAt = System.currentTimeMillis() + 600_000;
+      given().queryParam("startAt", startAt).queryParam("stopAt", startAt + 10_000)
+            .when().post("/controller/schedule").then().statusCode(204);
+      given().when().get("/controller/status").then().statusCode(200).body(is("scheduled"));
+      given().when().get("/controller/timing").then().statusCode(200).body("scheduledStart", is(startAt));
+      // a second schedule is rejected, stop cancels the first one
+      given().queryParam("startAt", startAt).queryParam("stopAt", startAt + 10_000)
+            .when().post("/controller/schedule").then().statusCode(500);
+      given().when().post("/controller/stop").then().statusCode(204);
+      given().when().get("/controller/status").then().statusCode(200).body(is("idle"));
+   }
+
+   @Test
+   public void testSymfsWithoutImage() {
+      // outside of the sidecar there is no mounted image
+      given().queryParam("symfs", true).when().post("/controller/start").then().statusCode(400);
+      given().when().get("/controller/status").then().statusCode(200).body(is("idle"));
+   }
+}
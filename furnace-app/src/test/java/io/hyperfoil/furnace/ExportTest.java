@@ -0,0 +1,275 @@
+package io.hyperfoil.furnace;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingFile;
+
+public class ExportTest {
+   private static final long START = 1_600_000_000_000L;
+   private static final long END = START + 10_000;
+   private static final List<String> STACKS = List.of(
+         "java;main;Lio/App:::run_[j];memcpy 3",
+         "java;main;do_syscall_64_[k] 2",
+         "GC Thread#0;[libjvm.so] 1");
+
+   @TempDir
+   Path dir;
+
+   @Test
+   public void testPprof() throws IOException {
+      File collapsed = collapsed();
+      File target = dir.resolve("perf.pb.gz").toFile();
+      PprofExport.write(collapsed, target, START, END, 99);
+
+      Profile profile = Profile.read(target);
+      assertEquals("", profile.strings.get(0));
+      assertEquals(List.of("samples/count", "cpu/nanoseconds"), profile.sampleTypes);
+      assertEquals("cpu/nanoseconds", profile.periodType);
+      assertEquals(1_000_000_000L / 99, profile.period);
+      assertEquals(START * 1_000_000, profile.timeNanos);
+      assertEquals(10_000_000_000L, profile.durationNanos);
+      Map<String, long[]> expected = new TreeMap<>();
+      expected.put("java;main;Lio/App:::run_[j];memcpy", new long[]{ 3, 3 * profile.period });
+      expected.put("java;main;do_syscall_64_[k]", new long[]{ 2, 2 * profile.period });
+      expected.put("GC Thread#0;[libjvm.so]", new long[]{ 1, profile.period });
+      assertEquals(expected.keySet(), profile.samples.keySet());
+      expected.forEach((stack, values) -> assertEquals(List.of(values[0], values[1]), profile.samples.get(stack)));
+   }
+
+   @Test
+   public void testPprofMemory() throws IOException {
+      File collapsed = collapsed();
+      File target = dir.resolve("perf.pb.gz").toFile();
+      // bytes allocated over the tracing, not the rate in the chart
+      PprofExport.writeMemory(collapsed, target, START, END, AllocationTracing.sampleType(AllocationTracing.RATE));
+
+      Profile profile = Profile.read(target);
+      assertEquals(List.of("alloc_space/bytes"), profile.sampleTypes);
+      assertNull(profile.periodType);
+      assertEquals(0, profile.period);
+      assertEquals(START * 1_000_000, profile.timeNanos);
+      assertEquals(10_000_000_000L, profile.durationNanos);
+      assertEquals(List.of(3L), profile.samples.get("java;main;Lio/App:::run_[j];memcpy"));
+      assertEquals(List.of(2L), profile.samples.get("java;main;do_syscall_64_[k]"));
+      assertEquals(List.of(1L), profile.samples.get("GC Thread#0;[libjvm.so]"));
+   }
+
+   @Test
+   public void testJfrAllocations() throws IOException {
+      File collapsed = collapsed();
+      File target = dir.resolve("perf.jfr").toFile();
+      JfrExport.writeAllocations(collapsed, target, START, END);
+
+      Map<String, Long> weights = new TreeMap<>();
+      for (RecordedEvent event : RecordingFile.readAllEvents(target.toPath())) {
+         assertEquals("jdk.ObjectAllocationSample", event.getEventType().getName());
+         assertEquals("[native]", event.getClass("objectClass").getName());
+         List<RecordedFrame> frames = event.getStackTrace().getFrames();
+         weights.put(event.getThread("eventThread").getJavaName() + ";" + frames.get(0).getMethod().getName(), event.getLong("weight"));
+      }
+      // one event per stack
+      assertEquals(Map.of("java;memcpy", 3L, "java;do_syscall_64", 2L, "GC Thread#0;[libjvm.so]", 1L), weights);
+   }
+
+   @Test
+   public void testJfr() throws IOException {
+      File collapsed = collapsed();
+      File target = dir.resolve("perf.jfr").toFile();
+      JfrExport.write(collapsed, target, START, END);
+
+      List<RecordedEvent> events = RecordingFile.readAllEvents(target.toPath());
+      assertEquals(6, events.size());
+      Map<String, Integer> stacks = new TreeMap<>();
+      for (RecordedEvent event : events) {
+         assertEquals("jdk.ExecutionSample", event.getEventType().getName());
+         Instant time = event.getStartTime();
+         assertTrue(!time.isBefore(Instant.ofEpochMilli(START)) && !time.isAfter(Instant.ofEpochMilli(END)), time.toString());
+         StringBuilder sb = new StringBuilder(event.getThread("sampledThread").getJavaName());
+         RecordedStackTrace stackTrace = event.getStackTrace();
+         List<RecordedFrame> frames = new ArrayList<>(stackTrace.getFrames());
+         // JFR lists the top frame first
+         for (int i = frames.size() - 1; i >= 0; --i) {
+            RecordedFrame frame = frames.get(i);
+            sb.append(';').append(frame.getMethod().getType().getName()).append("::").append(frame.getMethod().getName())
+                  .append('/').append(frame.getType());
+         }
+         stacks.merge(sb.toString(), 1, Integer::sum);
+      }
+      Map<String, Integer> expected = new TreeMap<>();
+      expected.put("java;[native]::main/Native;io.App::run/JIT compiled;[native]::memcpy/Native", 3);
+      expected.put("java;[native]::main/Native;[kernel]::do_syscall_64/Native", 2);
+      expected.put("GC Thread#0;[native]::[libjvm.so]/Native", 1);
+      assertEquals(expected, stacks);
+   }
+
+   private File collapsed() throws IOException {
+      File collapsed = dir.resolve("perf.collapsed").toFile();
+      Files.write(collapsed.toPath(), STACKS, StandardCharsets.UTF_8);
+      return collapsed;
+   }
+
+   /**
+    * Minimal decoder of the fields written by {@link PprofExport}, see profile.proto.
+    */
+   private static class Profile {
+      final List<String> strings = new ArrayList<>();
+      final List<String> sampleTypes = new ArrayList<>();
+      final Map<String, List<Long>> samples = new TreeMap<>();
+      String periodType;
+      long period;
+      long timeNanos;
+      long durationNanos;
+
+      static Profile read(File file) throws IOException {
+         byte[] bytes;
+         try (InputStream input = new GZIPInputStream(Files.newInputStream(file.toPath()))) {
+            bytes = input.readAllBytes();
+         }
+         Profile profile = new Profile();
+         List<long[]> valueTypes = new ArrayList<>();
+         long[] periodType = null;
+         Map<Long, Long> functionNames = new HashMap<>();
+         Map<Long, Long> locationFunctions = new HashMap<>();
+         List<Object[]> samples = new ArrayList<>();
+         ByteBuffer buffer = ByteBuffer.wrap(bytes);
+         while (buffer.hasRemaining()) {
+            long tag = varint(buffer);
+            int field = (int) (tag >>> 3);
+            if ((tag & 7) == 0) {
+               long value = varint(buffer);
+               switch (field) {
+                  case 9: profile.timeNanos = value; break;
+                  case 10: profile.durationNanos = value; break;
+                  case 12: profile.period = value; break;
+                  default: throw new AssertionError("Unexpected varint field " + field);
+               }
+               continue;
+            }
+            assertEquals(2, tag & 7);
+            ByteBuffer message = bytes(buffer);
+            switch (field) {
+               case 1: valueTypes.add(fields(message)); break;
+               case 11: periodType = fields(message); break;
+               case 2: {
+                  List<Long> locations = null, values = null;
+                  while (message.hasRemaining()) {
+                     int sampleField = (int) (varint(message) >>> 3);
+                     List<Long> packed = packed(bytes(message));
+                     if (sampleField == 1) {
+                        locations = packed;
+                     } else {
+                        values = packed;
+                     }
+                  }
+                  samples.add(new Object[]{ locations, values });
+                  break;
+               }
+               case 4: {
+                  long id = 0, function = 0;
+                  while (message.hasRemaining()) {
+                     long locationTag = varint(message);
+                     if (locationTag >>> 3 == 1) {
+                        id = varint(message);
+                     } else {
+                        // line { function_id }
+                        function = fields(bytes(message))[1];
+                     }
+                  }
+                  locationFunctions.put(id, function);
+                  break;
+               }
+               case 5: {
+                  long[] function = fields(message);
+                  functionNames.put(function[1], function[2]);
+                  break;
+               }
+               case 6: profile.strings.add(StandardCharsets.UTF_8.decode(message).toString()); break;
+               default: throw new AssertionError("Unexpected field " + field);
+            }
+         }
+         for (long[] valueType : valueTypes) {
+            profile.sampleTypes.add(profile.strings.get((int) valueType[1]) + "/" + profile.strings.get((int) valueType[2]));
+         }
+         if (periodType != null) {
+            profile.periodType = profile.strings.get((int) periodType[1]) + "/" + profile.strings.get((int) periodType[2]);
+         }
+         for (Object[] sample : samples) {
+            @SuppressWarnings("unchecked") List<Long> locations = (List<Long>) sample[0];
+            @SuppressWarnings("unchecked") List<Long> values = (List<Long>) sample[1];
+            StringBuilder stack = new StringBuilder();
+            // leaf first
+            for (int i = locations.size() - 1; i >= 0; --i) {
+               long function = locationFunctions.get(locations.get(i));
+               stack.append(profile.strings.get(functionNames.get(function).intValue()));
+               if (i > 0) {
+                  stack.append(';');
+               }
+            }
+            profile.samples.put(stack.toString(), values);
+         }
+         return profile;
+      }
+
+      /**
+       * @return Varint fields of the message indexed by field number.
+       */
+      private static long[] fields(ByteBuffer message) {
+         long[] fields = new long[8];
+         while (message.hasRemaining()) {
+            int field = (int) (varint(message) >>> 3);
+            fields[field] = varint(message);
+         }
+         return fields;
+      }
+
+      private static List<Long> packed(ByteBuffer buffer) {
+         List<Long> values = new ArrayList<>();
+         while (buffer.hasRemaining()) {
+            values.add(varint(buffer));
+         }
+         return values;
+      }
+
+      private static ByteBuffer bytes(ByteBuffer buffer) {
+         int length = (int) varint(buffer);
+         ByteBuffer slice = buffer.slice();
+         slice.limit(length);
+         buffer.position(buffer.position() + length);
+         return slice;
+      }
+
+      private static long varint(ByteBuffer buffer) {
+         long value = 0;
+         for (int shift = 0; ; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+               return value;
+            }
+         }
+      }
+   }
+}
@@ -0,0 +1,52 @@
+package io.hyperfoil.furnace;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+
+import io.quarkus.test.junit.NativeImageTest;
+
+/**
+ * Runs the tests against the native executable (<code>./mvnw verify -Pnative</code>) and checks the footprint
+ * expected from the native sidecar image.
+ */
+@NativeImageTest
+public class NativeControllerIT extends ControllerTest {
+   private static final long MAX_STARTUP_MILLIS = 100;
+   private static final long MAX_RSS_KB = 64 * 1024;
+
+   @Test
+   public void testStartupTime() throws IOException {
+      // the native executable logs into target/quarkus.log when run by the tests
+      Matcher matcher = Pattern.compile("started in (\\d+)\\.(\\d{3})s").matcher(Files.readString(Paths.get("target", "quarkus.log")));
+      assertThat("Startup message not found", matcher.find());
+      long millis = Long.parseLong(matcher.group(1)) * 1000 + Long.parseLong(matcher.group(2));
+      assertThat(millis, lessThan(MAX_STARTUP_MILLIS));
+   }
+
+   @Test
+   public void testResidentSetSize() throws IOException {
+      ProcessHandle runner = ProcessHandle.current().children()
+            .filter(p -> p.info().command().map(command -> command.endsWith("-runner")).orElse(false))
+            .findFirst().orElse(null);
+      assertNotNull(runner, "Native executable not found");
+      long rssKb = -1;
+      for (String line : Files.readAllLines(Path.of("/proc", String.valueOf(runner.pid()), "status"))) {
+         if (line.startsWith("VmRSS:")) {
+            rssKb = Long.parseLong(line.replaceAll("[^0-9]", ""));
+         }
+      }
+      assertThat(rssKb, allOf(greaterThan(0L), lessThan(MAX_RSS_KB)));
+   }
+}
@@ -0,0 +1,11 @@
+package io.hyperfoil.furnace;
+
+import io.quarkus.test.junit.NativeImageTest;
+
+/**
+ * Registration round trip against the native executable: the proxy creates a {@link ControllerClient} proxy
+ * to reach the registered controller.
+ */
+@NativeImageTest
+public class NativeProxyIT extends ProxyTest {
+}
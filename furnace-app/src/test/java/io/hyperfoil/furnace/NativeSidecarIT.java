@@ -0,0 +1,79 @@
+package io.hyperfoil.furnace;
+
+import static io.restassured.RestAssured.given;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+
+import io.quarkus.test.junit.NativeImageTest;
+import io.restassured.RestAssured;
+
+/**
+ * Runs the native executable as a sidecar (see the <code>native-sidecar</code> execution in the native profile),
+ * which registers itself through the {@link ProxyClient} REST client with its own proxy, and records through it.
+ */
+@NativeImageTest
+public class NativeSidecarIT {
+   private static final String NAMESPACE = "furnace-it";
+   private static final String POD = "native-sidecar";
+   // the first registration can come before the HTTP server listens, it is retried in 30 seconds
+   private static final long REGISTRATION_TIMEOUT = 45_000;
+
+   @Test
+   public void testSelfRegistration() throws InterruptedException {
+      awaitRegistration();
+      given().queryParam("namespace", NAMESPACE).queryParam("pod", POD)
+            .when().get("/proxy/registration").then().statusCode(200)
+            .body("ip", is("127.0.0.1")).body("port", is(RestAssured.port));
+   }
+
+   @Test
+   public void testRecording() throws InterruptedException, IOException {
+      assumeTrue(canRecord(), "perf cannot record the host here");
+      awaitRegistration();
+      given().queryParam("namespace", NAMESPACE).queryParam("pod", POD).queryParam("events", PerfEvents.CPU_CLOCK)
+            .when().post("/proxy/start").then().statusCode(204);
+      given().queryParam("namespace", NAMESPACE).queryParam("pod", POD)
+            .when().get("/proxy/status").then().statusCode(200).body(is("perf record"));
+      // post-processing needs the FlameGraph scripts from the image, only stopping perf is checked here
+      given().queryParam("namespace", NAMESPACE).queryParam("pod", POD)
+            .when().post("/proxy/stop");
+      given().queryParam("namespace", NAMESPACE).queryParam("pod", POD)
+            .when().get("/proxy/status").then().statusCode(200).body(not("perf record"));
+   }
+
+   private static void awaitRegistration() throws InterruptedException {
+      long deadline = System.currentTimeMillis() + REGISTRATION_TIMEOUT;
+      while (given().queryParam("namespace", NAMESPACE).queryParam("pod", POD)
+            .when().get("/proxy/registration").statusCode() != 200) {
+         if (System.currentTimeMillis() > deadline) {
+            throw new AssertionError("The sidecar did not register itself");
+         }
+         Thread.sleep(500);
+      }
+   }
+
+   private static boolean canRecord() throws InterruptedException, IOException {
+      // the sidecar records the whole host into /out when it does not know the cgroups of its pod
+      if (!new File("/out").isDirectory()) {
+         return false;
+      }
+      Path data = Files.createTempFile("native-sidecar", ".data");
+      try {
+         Process perf = new ProcessBuilder("perf", "record", "-a", "-o", data.toString(), "--", "true")
+               .redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+         return perf.waitFor() == 0;
+      } catch (IOException e) {
+         return false;
+      } finally {
+         Files.delete(data);
+      }
+   }
+}
@@ -0,0 +1,62 @@
+package io.hyperfoil.furnace;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+public class PerfEventsTest {
+   @AfterEach
+   public void clearProbes() {
+      PerfEvents.supported.clear();
+   }
+
+   @Test
+   public void testParse() {
+      assertEquals(List.of("cycles", "page-faults", "context-switches"), PerfEvents.parse("cycles, page-faults,,context-switches "));
+      // commas in the terms of a PMU event do not split it
+      assertEquals(List.of("cpu/event=0x3c,umask=0x0/", "cache-misses", "intel_pt//"),
+            PerfEvents.parse("cpu/event=0x3c,umask=0x0/,cache-misses,intel_pt//"));
+      assertEquals(List.of("cpu/event=0xc0,umask=0x0,name=inst/u"), PerfEvents.parse("cpu/event=0xc0,umask=0x0,name=inst/u"));
+      assertEquals(List.of(), PerfEvents.parse(" , "));
+   }
+
+   @Test
+   public void testSampleEvent() {
+      List<String> events = List.of("cpu-clock", "page-faults", "cpu-clock-x");
+      assertEquals("cpu-clock", PerfEvents.sampleEvent("java 1234/1235 [003] 12345.678901:     10101010 cpu-clock:pppH: ", events));
+      assertEquals("cpu-clock", PerfEvents.sampleEvent("java 1234/1235 [003] 12345.678901:     10101010 cpu-clock:", events));
+      assertEquals("page-faults", PerfEvents.sampleEvent("java 1234 12345.678901:          1 page-faults:u:", events));
+      // a prefix of another event is not a match
+      assertEquals("cpu-clock-x", PerfEvents.sampleEvent("java 1234 12345.678901:          1 cpu-clock-x:", events));
+      assertNull(PerfEvents.sampleEvent("java 1234 12345.678901:          1 cycles:", events));
+   }
+
+   @Test
+   public void testSuffix() {
+      List<String> events = List.of("cycles", "page-faults", "cpu/event=0x3c,umask=0x0/u");
+      assertEquals("", PerfEvents.suffix(events, null));
+      assertEquals("", PerfEvents.suffix(events, ""));
+      assertEquals("", PerfEvents.suffix(events, "cycles"));
+      assertEquals(".page-faults", PerfEvents.suffix(events, "page-faults"));
+      // no path separators or other characters unsafe in file names
+      assertEquals(".cpu_event_0x3c_umask_0x0_u", PerfEvents.suffix(events, "cpu/event=0x3c,umask=0x0/u"));
+      assertEquals(".______etc_passwd", PerfEvents.suffix(events, "../../etc/passwd"));
+   }
+
+   @Test
+   public void testResolveFallback() {
+      PerfEvents.supported.put("ref-cycles", false);
+      PerfEvents.supported.put("bus-cycles", false);
+      PerfEvents.supported.put("page-faults", true);
+      PerfEvents.supported.put("cache-misses", false);
+      // CPU time events fall back to cpu-clock once, other unsupported events are dropped
+      assertEquals(List.of("cpu-clock", "page-faults"), PerfEvents.resolve("ref-cycles,page-faults,cache-misses,bus-cycles"));
+      assertEquals(List.of("page-faults"), PerfEvents.resolve("page-faults,page-faults"));
+      // nothing left to record
+      assertEquals(List.of("cpu-clock"), PerfEvents.resolve("cache-misses"));
+   }
+}
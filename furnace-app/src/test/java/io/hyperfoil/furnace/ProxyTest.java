@@ -0,0 +1,47 @@
+package io.hyperfoil.furnace;
+
+import static io.restassured.RestAssured.given;
+import static org.hamcrest.CoreMatchers.hasItem;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import io.quarkus.test.junit.QuarkusTest;
+import io.restassured.RestAssured;
+import io.restassured.http.ContentType;
+
+@QuarkusTest
+public class ProxyTest {
+   private static final String NAMESPACE = "furnace-test";
+
+   @Test
+   public void testRegistration() {
+      // the controller of this instance registers as a pod, the proxy reaches it through ControllerClient
+      String pod = "round-trip";
+      String lease = given().contentType(ContentType.JSON)
+            .body(Map.of("podName", pod, "namespace", NAMESPACE, "ip", "127.0.0.1", "port", RestAssured.port))
+            .when().post("/proxy/register").then().statusCode(200).extract().asString();
+      assertThat(Long.parseLong(lease), greaterThan(0L));
+      given().queryParam("namespace", NAMESPACE).queryParam("pod", pod)
+            .when().get("/proxy/registration").then().statusCode(200)
+            .body("ip", is("127.0.0.1")).body("port", is(RestAssured.port));
+      given().queryParam("namespace", NAMESPACE)
+            .when().get("/proxy/registered").then().statusCode(200).body("podName", hasItem(pod));
+      given().queryParam("namespace", NAMESPACE).queryParam("pod", pod)
+            .when().get("/proxy/status").then().statusCode(200).body(is("idle"));
+      given().queryParam("namespace", NAMESPACE).queryParam("pod", pod)
+            .when().get("/proxy/events").then().statusCode(200).body("", hasItem(PerfEvents.DEFAULT));
+   }
+
+   @Test
+   public void testInvalidRegistration() {
+      given().contentType(ContentType.JSON).body(Map.of("podName", "no-ip", "namespace", NAMESPACE))
+            .when().post("/proxy/register").then().statusCode(200).body(is("-1"));
+      given().queryParam("namespace", NAMESPACE).queryParam("pod", "no-ip")
+            .when().get("/proxy/status").then().statusCode(500);
+   }
+}
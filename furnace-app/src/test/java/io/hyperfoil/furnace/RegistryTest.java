@@ -0,0 +1,120 @@
+package io.hyperfoil.furnace;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+
+public class RegistryTest {
+   private static final long LEASE = 1000;
+
+   @Test
+   public void testPaging() {
+      Registry registry = new Registry();
+      for (String pod : List.of("web-1", "web-2", "db-1", "web-3")) {
+         registry.put(Proxy.Registration.create(pod, "shop", "10.0.0.1", 12380, LEASE));
+      }
+      registry.put(Proxy.Registration.create("web-1", "other", "10.0.0.2", 12380, LEASE));
+      // namespaces that share a prefix are not in the range
+      registry.put(Proxy.Registration.create("web-1", "shop2", "10.0.0.3", 12380, LEASE));
+
+      assertEquals(List.of("shop/db-1", "shop/web-1"), keys(registry.list("shop", null, null, 2)));
+      assertEquals(List.of("shop/web-2", "shop/web-3"), keys(registry.list("shop", null, "shop/web-1", 2)));
+      assertEquals(List.of(), keys(registry.list("shop", null, "shop/web-3", 2)));
+      assertEquals(List.of("shop/web-1", "shop/web-2"), keys(registry.list("shop", "web", null, 2)));
+      // prefix without namespace
+      assertEquals(List.of("other/web-1", "shop/web-1", "shop/web-2", "shop/web-3", "shop2/web-1"),
+            keys(registry.list(null, "web", null, Integer.MAX_VALUE)));
+   }
+
+   @Test
+   public void testRemovalBetweenPages() {
+      Registry registry = new Registry();
+      registry.put(Proxy.Registration.create("a", "ns", "10.0.0.1", 12380, LEASE));
+      registry.put(Proxy.Registration.create("b", "ns", "10.0.0.2", 12380, 2 * LEASE));
+      registry.put(Proxy.Registration.create("c", "ns", "10.0.0.3", 12380, 2 * LEASE));
+      List<Proxy.Registration> page = registry.list("ns", null, null, 1);
+      assertEquals(List.of("ns/a"), keys(page));
+      // the last registration of the page expires before the next page is requested
+      assertEquals(List.of("ns/a"), keys(registry.expire(LEASE + 1)));
+      assertEquals(List.of("ns/b", "ns/c"), keys(registry.list("ns", null, "ns/a", 10)));
+   }
+
+   @Test
+   public void testChanges() {
+      Registry registry = new Registry();
+      String version = registry.changes(null, null, null).version;
+      registry.put(Proxy.Registration.create("a", "ns", "10.0.0.1", 12380, LEASE));
+      registry.put(Proxy.Registration.create("b", "ns", "10.0.0.2", 12380, 2 * LEASE));
+
+      Proxy.Changes changes = registry.changes(version, "ns", null);
+      assertFalse(changes.reset);
+      assertEquals(List.of("ns/a", "ns/b"), keys(changes.updated));
+      assertEquals(List.of(), changes.removed);
+      version = changes.version;
+
+      // renewal of the lease is not a change
+      registry.put(Proxy.Registration.create("a", "ns", "10.0.0.1", 12380, 3 * LEASE));
+      assertEquals(version, registry.changes(version, null, null).version);
+      // new address is
+      registry.put(Proxy.Registration.create("b", "ns", "10.0.0.3", 12380, 2 * LEASE));
+      registry.expire(2 * LEASE + 1);
+      changes = registry.changes(version, null, null);
+      assertEquals(List.of(), keys(changes.updated));
+      assertEquals(List.of("ns/b"), changes.removed);
+      assertEquals(List.of(), registry.changes(version, "other", null).removed);
+
+      // removed and registered again is an update
+      registry.put(Proxy.Registration.create("b", "ns", "10.0.0.4", 12380, 4 * LEASE));
+      changes = registry.changes(version, null, null);
+      assertEquals(List.of("ns/b"), keys(changes.updated));
+      assertEquals(List.of(), changes.removed);
+   }
+
+   @Test
+   public void testEpoch() {
+      Registry registry = new Registry();
+      String version = registry.changes(null, null, null).version;
+      String epoch = version.substring(0, version.indexOf('.'));
+      assertFalse(registry.changes(version, null, null).reset);
+      // versions of a previous incarnation of the replica
+      assertTrue(registry.changes((Long.parseLong(epoch) - 1) + ".0", null, null).reset);
+      // version from the future
+      assertTrue(registry.changes(epoch + ".1", null, null).reset);
+      assertTrue(registry.changes("0", null, null).reset);
+      assertTrue(registry.changes("garbage", null, null).reset);
+      assertTrue(registry.changes(epoch + ".x", null, null).reset);
+   }
+
+   @Test
+   public void testTombstoneCap() {
+      Registry registry = new Registry();
+      int pods = 10001;
+      for (int i = 0; i < pods; ++i) {
+         registry.put(Proxy.Registration.create("pod-" + i, "ns", "10.0.0.1", 12380, LEASE));
+      }
+      String beforeExpiry = registry.changes(null, null, null).version;
+      String epoch = beforeExpiry.substring(0, beforeExpiry.indexOf('.'));
+      assertEquals(pods, registry.expire(LEASE + 1).size());
+      String afterExpiry = registry.changes(null, null, null).version;
+      assertNotEquals(beforeExpiry, afterExpiry);
+
+      // the first tombstone is forgotten, the client must list the registrations again
+      assertTrue(registry.changes(beforeExpiry, null, null).reset);
+      // the client saw the first removal
+      Proxy.Changes changes = registry.changes(epoch + "." + (pods + 1), null, null);
+      assertFalse(changes.reset);
+      assertEquals(10000, changes.removed.size());
+      assertEquals(List.of(), registry.changes(afterExpiry, null, null).removed);
+   }
+
+   private static List<String> keys(List<Proxy.Registration> registrations) {
+      return registrations.stream().map(r -> Registry.key(r.namespace, r.podName)).collect(Collectors.toCollection(ArrayList::new));
+   }
+}
@@ -0,0 +1,88 @@
+package io.hyperfoil.furnace;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+
+public class ReportTest {
+   @Test
+   public void testSelfAndTotal() {
+      Report report = new Report(null, null);
+      report.add("java;main;foo;bar 3");
+      report.add("java;main;foo 2");
+      // recursion counts once towards the total
+      report.add("java;main;foo;foo;foo 5");
+      assertEquals(10, report.samples());
+
+      Map<String, Report.Entry> entries = byFunction(report.entries(0, false));
+      assertEquals(10, entries.get("main").total);
+      assertEquals(0, entries.get("main").self);
+      assertEquals(10, entries.get("foo").total);
+      assertEquals(7, entries.get("foo").self);
+      assertEquals(3, entries.get("bar").self);
+
+      List<Report.Entry> top = report.entries(1, false);
+      assertEquals(1, top.size());
+      assertEquals("foo", top.get(0).function);
+      // ties are sorted by name
+      assertEquals("foo", report.entries(1, true).get(0).function);
+   }
+
+   @Test
+   public void testModuleFilter() {
+      Map<String, String> modules = Map.of("memcpy", "libc.so.6", "main", "app");
+      Report report = new Report(modules, null, "libc.so.6");
+      report.add("app;main;memcpy 4");
+      report.add("app;main;[libc.so.6] 1");
+      report.add("app;main;do_syscall_64_[k] 2");
+      Map<String, Report.Entry> entries = byFunction(report.entries(0, false));
+      assertEquals(2, entries.size());
+      assertEquals(4, entries.get("memcpy").self);
+      assertEquals("libc.so.6", entries.get("memcpy").module);
+      assertEquals(1, entries.get("[libc.so.6]").self);
+
+      report = new Report(modules, Pattern.compile("sys"), Report.KERNEL);
+      report.add("app;main;do_syscall_64_[k] 2");
+      report.add("app;main;Lfoo/Bar:.sys_[j] 2");
+      assertEquals(List.of("do_syscall_64_[k]"), List.copyOf(byFunction(report.entries(0, false)).keySet()));
+   }
+
+   @Test
+   public void testModulesFromPerfScript() {
+      Modules modules = new Modules();
+      modules.addFrame("\t    7f2b4c0d1e2f __memmove_avx_unaligned_erms+0x1f (/usr/lib64/libc-2.28.so)");
+      modules.addFrame("\t    55d0c1a2b3c4 std::vector<int, std::allocator<int> >::push_back(int const&)+0x44 (/app/server)");
+      modules.addFrame("\t    4a1b2c main.(*Server).Serve+0x10 (/app/go-server)");
+      modules.addFrame("\tffffffff8100abcd do_syscall_64+0x5b ([kernel.kallsyms])");
+      modules.addFrame("\t    7f00deadbeef Lio/Foo;::bar+0x10 (/tmp/perf-123.map)");
+      modules.addFrame("\t    7f2b4c0d0000 [unknown] (/usr/lib64/libfoo.so)");
+      Map<String, String> map = modules.map();
+      assertEquals("libc-2.28.so", map.get("__memmove_avx_unaligned_erms"));
+      // tidied the same way as by stackcollapse-perf.pl
+      assertEquals("server", map.get("std::vectorint, std::allocatorint ::push_back"));
+      assertEquals("go-server", map.get("main.(*Server).Serve"));
+      assertEquals(3, map.size());
+      assertNull(Modules.functionName("[unknown]"));
+   }
+
+   @Test
+   public void testCsv() {
+      Report report = new Report(null, null);
+      report.add("a;b,c 1");
+      assertEquals("function,module,self,total\n\"b,c\",,1,1\na,,0,1\n", Report.toCsv(report.entries(0, false)));
+   }
+
+   private static Map<String, Report.Entry> byFunction(List<Report.Entry> entries) {
+      Map<String, Report.Entry> map = new LinkedHashMap<>();
+      for (Report.Entry entry : entries) {
+         map.put(entry.function, entry);
+      }
+      return map;
+   }
+}
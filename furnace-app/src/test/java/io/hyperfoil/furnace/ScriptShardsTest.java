@@ -0,0 +1,74 @@
+package io.hyperfoil.furnace;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class ScriptShardsTest {
+   @Test
+   public void testTimeShardsAreHalfOpen() {
+      List<List<String>> shards = ScriptShards.timeShards(ScriptShards.parseTime("100.5"), ScriptShards.parseTime("103.5"), 3);
+      assertEquals(List.of(
+            List.of("--time", ",101.499999999"),
+            List.of("--time", "101.500000000,102.499999999"),
+            List.of("--time", "102.500000000,")), shards);
+   }
+
+   @Test
+   public void testCpuShards() {
+      assertEquals(List.of(List.of("--cpu", "0,2,4"), List.of("--cpu", "1,3")),
+            ScriptShards.cpuShards(List.of("0", "1", "2", "3", "4"), 2));
+      assertEquals(2, ScriptShards.cpuShards(List.of("0", "1"), 4).size());
+   }
+
+   @Test
+   public void testHeader() throws IOException {
+      ScriptShards.Header header = new ScriptShards.Header();
+      header.parse(new BufferedReader(new StringReader(String.join("\n",
+            "# ========",
+            "# captured on    : Mon Oct 19 12:00:00 2026",
+            "# nrcpus online : 4",
+            "# nrcpus avail : 4",
+            "# event : name = cpu-clock:pppH, , id = { 12, 13 }, type = 1, size = 128, { sample_period, sample_freq } = 99, " +
+                  "sample_type = IP|TID|TIME|CALLCHAIN|CPU|PERIOD, read_format = ID, disabled = 1, freq = 1",
+            "# time of first sample : 4242.000123",
+            "# time of last sample : 4252.500000",
+            "# ========"))));
+      assertEquals(List.of("0", "1", "2", "3"), header.cpus);
+      assertEquals(4242_000_123_000L, header.firstSample);
+      assertEquals(4252_500_000_000L, header.lastSample);
+      assertTrue(header.cpuSampled);
+   }
+
+   @Test
+   public void testHeaderWithoutCpu() throws IOException {
+      ScriptShards.Header header = new ScriptShards.Header();
+      // recorded with -p, the second event has the CPU but the first does not
+      header.parse(new BufferedReader(new StringReader(String.join("\n",
+            "# event : name = cycles, , id = { 1 }, sample_type = IP|TID|TIME|CALLCHAIN|PERIOD|IDENTIFIER, read_format = ID",
+            "# event : name = page-faults, , id = { 2 }, sample_type = IP|TID|TIME|CALLCHAIN|CPU|PERIOD|IDENTIFIER",
+            "# nrcpus avail : 4"))));
+      assertFalse(header.cpuSampled);
+      header = new ScriptShards.Header();
+      header.parse(new BufferedReader(new StringReader("# nrcpus avail : 4")));
+      assertFalse(header.cpuSampled);
+   }
+
+   @Test
+   public void testScannedTimes() throws IOException {
+      ScriptShards.Header header = new ScriptShards.Header();
+      header.parseTimes(new BufferedReader(new StringReader(String.join("\n",
+            "  4242.000123: ",
+            "  4245.100000: ",
+            "  4252.500000: "))));
+      assertEquals(4242_000_123_000L, header.firstSample);
+      assertEquals(4252_500_000_000L, header.lastSample);
+   }
+}
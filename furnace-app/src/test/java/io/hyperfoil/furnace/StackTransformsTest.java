@@ -0,0 +1,183 @@
+package io.hyperfoil.furnace;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+public class StackTransformsTest {
+   private static final List<String> INPUT = List.of(
+         "pool-1-thread-1;Thread::run;Interpreter;MyService::handle;itable stub;read_[k] 5",
+         "pool-1-thread-2;Thread::run;Interpreter;MyService::handle 3",
+         "pool-2-thread-13;Thread::run;Other::work 2",
+         "swapper;cpu_idle_[k] 7",
+         "GC Thread#0;GCTaskThread::run 1",
+         "GC Thread#1;GCTaskThread::run 4");
+
+   @TempDir
+   Path dir;
+
+   @Test
+   public void testRename() throws IOException {
+      assertEquals(List.of(
+                  "GC Thread#0;GCTaskThread::run 1",
+                  "GC Thread#1;GCTaskThread::run 4",
+                  "pool-1-thread-1;Thread::run;[interpreter];MyService::handle;itable stub;read_[k] 5",
+                  "pool-1-thread-2;Thread::run;[interpreter];MyService::handle 3",
+                  "pool-2-thread-13;Thread::run;Other::work 2",
+                  "swapper;cpu_idle_[k] 7"),
+            collapse("[{ \"type\": \"rename\", \"pattern\": \"^Interpreter$\", \"replacement\": \"[interpreter]\" }]"));
+      // root rename does not touch the other frames
+      assertEquals(List.of("T;Thread::run 1"),
+            collapse("[{ \"type\": \"rename\", \"pattern\": \"^[^;]*run$\", \"replacement\": \"T\", \"root\": true }]",
+                  List.of("Thread::run;Thread::run 1")));
+   }
+
+   @Test
+   public void testDropFrames() throws IOException {
+      assertEquals(List.of(
+                  "GC Thread#0;GCTaskThread::run 1",
+                  "GC Thread#1;GCTaskThread::run 4",
+                  "pool-1-thread-1;Thread::run;MyService::handle;read_[k] 5",
+                  "pool-1-thread-2;Thread::run;MyService::handle 3",
+                  "pool-2-thread-13;Thread::run;Other::work 2",
+                  "swapper;cpu_idle_[k] 7"),
+            collapse("[{ \"type\": \"drop-frames\", \"pattern\": \"^(itable|vtable) stub$|^Interpreter$\" }]"));
+      // a stack without frames is dropped
+      assertEquals(List.of("GC Thread#1;GCTaskThread::run 4"),
+            collapse("[{ \"type\": \"drop-frames\", \"pattern\": \"^GC Thread#0$|^Idle$\" }]",
+                  List.of("GC Thread#0;Idle 1", "GC Thread#1;GCTaskThread::run 4")));
+   }
+
+   @Test
+   public void testFilterStacks() throws IOException {
+      assertEquals(List.of(
+                  "GC Thread#0;GCTaskThread::run 1",
+                  "GC Thread#1;GCTaskThread::run 4",
+                  "pool-1-thread-1;Thread::run;Interpreter;MyService::handle;itable stub;read_[k] 5",
+                  "pool-1-thread-2;Thread::run;Interpreter;MyService::handle 3",
+                  "pool-2-thread-13;Thread::run;Other::work 2"),
+            collapse("[{ \"type\": \"drop-stacks\", \"pattern\": \"^swapper$\" }]"));
+      assertEquals(List.of(
+                  "pool-1-thread-1;Thread::run;Interpreter;MyService::handle;itable stub;read_[k] 5",
+                  "pool-1-thread-2;Thread::run;Interpreter;MyService::handle 3"),
+            collapse("[{ \"type\": \"keep-stacks\", \"pattern\": \"MyService\" }]"));
+      // with root the pattern is matched against the thread name only
+      assertEquals(List.of(), collapse("[{ \"type\": \"keep-stacks\", \"pattern\": \"MyService\", \"root\": true }]"));
+      assertEquals(List.of(
+                  "pool-1-thread-1;Thread::run;Interpreter;MyService::handle;itable stub;read_[k] 5",
+                  "pool-1-thread-2;Thread::run;Interpreter;MyService::handle 3",
+                  "pool-2-thread-13;Thread::run;Other::work 2",
+                  "swapper;cpu_idle_[k] 7"),
+            collapse("[{ \"type\": \"drop-stacks\", \"pattern\": \"GC\", \"root\": true }]"));
+   }
+
+   @Test
+   public void testMergeThreadPools() throws IOException {
+      assertEquals(List.of(
+                  "GC Thread;GCTaskThread::run 5",
+                  "pool-1-thread;Thread::run;Interpreter;MyService::handle 3",
+                  "pool-1-thread;Thread::run;Interpreter;MyService::handle;itable stub;read_[k] 5",
+                  "pool-2-thread;Thread::run;Other::work 2",
+                  "swapper;cpu_idle_[k] 7"),
+            collapse("[{ \"type\": \"merge-thread-pools\" }]"));
+      // a custom pattern merges the pools, too
+      assertEquals(List.of(
+                  "GC Thread#0;GCTaskThread::run 1",
+                  "GC Thread#1;GCTaskThread::run 4",
+                  "pool;Thread::run;Interpreter;MyService::handle 3",
+                  "pool;Thread::run;Interpreter;MyService::handle;itable stub;read_[k] 5",
+                  "pool;Thread::run;Other::work 2",
+                  "swapper;cpu_idle_[k] 7"),
+            collapse("[{ \"type\": \"merge-thread-pools\", \"pattern\": \"-\\\\d+-thread-\\\\d+$\" }]"));
+   }
+
+   @Test
+   public void testSequence() throws IOException {
+      // the frames dropped first do not make the stacks distinct after merging the pools
+      assertEquals(List.of("pool-1-thread;Thread::run;MyService::handle 8"),
+            collapse("[{ \"type\": \"keep-stacks\", \"pattern\": \"MyService\" }," +
+                  " { \"type\": \"drop-frames\", \"pattern\": \"^Interpreter$|stub$|_\\\\[k\\\\]$\" }," +
+                  " { \"type\": \"merge-thread-pools\" }]"));
+      // the order matters: renamed threads do not match the filter anymore
+      assertEquals(List.of(),
+            collapse("[{ \"type\": \"merge-thread-pools\" }, { \"type\": \"keep-stacks\", \"pattern\": \"thread-1$\", \"root\": true }]"));
+   }
+
+   @Test
+   public void testKeepThreads() throws IOException {
+      StackTransforms transforms = StackTransforms.parse(new JsonArray("[{ \"type\": \"merge-thread-pools\" }]"))
+            .keepThreads(Pattern.compile("thread-1$"));
+      // the threads are filtered before the other transforms
+      assertEquals(List.of("pool-1-thread;Thread::run;Interpreter;MyService::handle;itable stub;read_[k] 5"),
+            collapse(transforms, INPUT));
+      assertNull(transforms.apply("swapper;cpu_idle_[k]"));
+   }
+
+   @Test
+   public void testCustomFactory() throws IOException {
+      assertEquals(List.of("SWAPPER;CPU_IDLE_[K] 7"),
+            collapse("[{ \"type\": \"keep-stacks\", \"pattern\": \"swapper\" }, { \"type\": \"upper-case\" }]"));
+   }
+
+   @Test
+   public void testInvalidConfig() throws IOException {
+      assertThrows(IllegalArgumentException.class, () -> StackTransforms.parse(new JsonArray("[{ \"type\": \"unknown\" }]")));
+      assertThrows(IllegalArgumentException.class, () -> StackTransforms.parse(new JsonArray("[{ \"type\": \"drop-frames\" }]")));
+      assertThrows(IllegalArgumentException.class, () -> StackTransforms.parse(new JsonArray("[\"rename\"]")));
+      // a broken file does not fail the recording
+      File config = dir.resolve("transforms.json").toFile();
+      Files.writeString(config.toPath(), "[{ \"type\": ");
+      assertTrue(StackTransforms.load(config).isEmpty());
+      assertTrue(StackTransforms.load(dir.resolve("missing.json").toFile()).isEmpty());
+   }
+
+   private List<String> collapse(String config) throws IOException {
+      return collapse(config, INPUT);
+   }
+
+   private List<String> collapse(String config, List<String> input) throws IOException {
+      return collapse(StackTransforms.parse(new JsonArray(config)), input);
+   }
+
+   private List<String> collapse(StackTransforms transforms, List<String> input) throws IOException {
+      File target = dir.resolve("perf.collapsed").toFile();
+      try (CollapsedStacks stacks = new CollapsedStacks(transforms, dir.toFile(), Long.MAX_VALUE)) {
+         for (String line : input) {
+            stacks.add(line);
+         }
+         stacks.write(target);
+      }
+      return Files.readAllLines(target.toPath(), StandardCharsets.UTF_8);
+   }
+
+   public static class UpperCaseFactory implements StackTransform.Factory {
+      @Override
+      public String type() {
+         return "upper-case";
+      }
+
+      @Override
+      public StackTransform create(JsonObject config) {
+         return frames -> {
+            frames.replaceAll(frame -> frame.toUpperCase(Locale.ROOT));
+            return true;
+         };
+      }
+   }
+}
@@ -0,0 +1,62 @@
+package io.hyperfoil.furnace;
+
+import static io.restassured.RestAssured.given;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+import io.quarkus.test.junit.QuarkusTest;
+import io.restassured.RestAssured;
+import io.restassured.http.ContentType;
+
+@QuarkusTest
+public class WorkersTest {
+   @Test
+   public void testUnregisteredClient() {
+      given().queryParam("namespace", "test").queryParam("pod", "unknown")
+            .contentType(ContentType.BINARY).body(new byte[]{ 1, 2, 3 })
+            .when().post("/proxy/jobs").then().statusCode(403);
+   }
+
+   @Test
+   public void testBodyLimit() throws IOException {
+      // only recordings may exceed the default limit, the others are rejected before sending the body
+      try (Socket socket = new Socket("localhost", RestAssured.port)) {
+         socket.getOutputStream().write(("POST /proxy/register HTTP/1.1\r\nHost: localhost\r\n" +
+               "Content-Type: application/json\r\nContent-Length: " + (BodyLimit.MAX_BODY + 1) + "\r\n\r\n")
+               .getBytes(StandardCharsets.US_ASCII));
+         BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+         assertEquals("HTTP/1.1 413 Request Entity Too Large", reader.readLine());
+      }
+   }
+
+   @Test
+   public void testChunkedBodyLimit() throws IOException {
+      try (Socket socket = new Socket("localhost", RestAssured.port)) {
+         OutputStream output = socket.getOutputStream();
+         output.write(("POST /proxy/register HTTP/1.1\r\nHost: localhost\r\n" +
+               "Content-Type: application/json\r\nTransfer-Encoding: chunked\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+         chunk(output, "{\"podName\":\"");
+         String chunk = "x".repeat(65536);
+         for (long written = 0; written <= BodyLimit.MAX_BODY; written += chunk.length()) {
+            chunk(output, chunk);
+         }
+         chunk(output, "\"}");
+         chunk(output, "");
+         BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+         assertEquals("HTTP/1.1 413 Request Entity Too Large", reader.readLine());
+      }
+   }
+
+   private static void chunk(OutputStream output, String data) throws IOException {
+      output.write((Integer.toHexString(data.length()) + "\r\n" + data + "\r\n").getBytes(StandardCharsets.US_ASCII));
+   }
+
+}
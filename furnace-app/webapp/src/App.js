@@ -10,17 +10,159 @@ import {
   ProgressMeasureLocation,
   Select,
   SelectOption,
+  SelectVariant,
   Spinner,
+  TextInput,
 } from "@patternfly/react-core";
 
 import './App.css';
 
-function fetchRegistered() {
-  return fetch("/proxy/registered").then(res => res.json(), error => console.error(error))
+const PAGE_SIZE = 200
+const ROW_HEIGHT = 36
+const VISIBLE_ROWS = 10
+
+function fetchNamespaces() {
+  return fetch("/proxy/namespaces").then(res => res.json(), error => console.error(error))
+}
+
+function podsQuery(namespace, prefix) {
+  return "namespace=" + encodeURIComponent(namespace) + (prefix ? "&prefix=" + encodeURIComponent(prefix) : "")
+}
+
+function fetchPods(namespace, prefix, after) {
+  return fetch("/proxy/registered?" + podsQuery(namespace, prefix) + "&limit=" + PAGE_SIZE + (after ? "&after=" + encodeURIComponent(after) : ""))
+    .then(res => res.json(), error => console.error(error))
+}
+
+function fetchPodChanges(namespace, prefix, since) {
+  return fetch("/proxy/registered/changes?" + podsQuery(namespace, prefix) + (since ? "&since=" + encodeURIComponent(since) : ""))
+    .then(res => res.json(), error => console.error(error))
+}
+
+function podKey(r) {
+  return r.namespace + "/" + r.podName
 }
 
-function startRecording(namespace, pod) {
-  return fetch("/proxy/start?namespace=" + namespace + "&pod=" + pod, { method: "POST" })
+function applyChanges(pods, complete, changes) {
+  const last = pods.length > 0 ? podKey(pods[pods.length - 1]) : undefined
+  const byKey = new Map(pods.map(r => [podKey(r), r]))
+  changes.removed.forEach(key => byKey.delete(key))
+  changes.updated.forEach(r => {
+    // pods after the loaded pages come with the next page
+    if (complete || (last && podKey(r) <= last)) {
+      byKey.set(podKey(r), r)
+    }
+  })
+  return [...byKey.values()].sort((a, b) => podKey(a) < podKey(b) ? -1 : 1)
+}
+
+// Loads pods matching the typed prefix page by page as the list is scrolled and renders only the visible rows,
+// registrations are kept up to date by polling for changes.
+function PodPicker({ namespace, pod, onSelect, isDisabled }) {
+  const [search, setSearch] = useState("")
+  const [open, setOpen] = useState(false)
+  const [scrollTop, setScrollTop] = useState(0)
+  const [list, setList] = useState({ pods: [], complete: false })
+  const [reload, setReload] = useState(0)
+  const loading = useRef(false)
+  useEffect(() => {
+    setList({ pods: [], complete: false })
+    setScrollTop(0)
+    if (!namespace) {
+      return
+    }
+    let cancelled = false
+    // wait until the user stops typing
+    const timer = setTimeout(() => {
+      // track changes from before the first page so that none is missed
+      fetchPodChanges(namespace, search).then(changes => fetchPods(namespace, search).then(pods => {
+        if (!cancelled && changes && pods) {
+          setList({ pods, complete: pods.length < PAGE_SIZE, version: changes.version })
+        }
+      }))
+    }, 300)
+    return () => {
+      cancelled = true
+      clearTimeout(timer)
+    }
+  }, [namespace, search, reload])
+  useEffect(() => {
+    if (!namespace || !list.version) {
+      return
+    }
+    const timer = setInterval(() => fetchPodChanges(namespace, search, list.version).then(changes => {
+      if (!changes) {
+        return
+      } else if (changes.reset) {
+        setReload(r => r + 1)
+      } else {
+        setList(l => l.version !== list.version ? l :
+          { ...l, pods: applyChanges(l.pods, l.complete, changes), version: changes.version })
+      }
+    }), 10000)
+    return () => clearInterval(timer)
+  }, [namespace, search, list.version])
+  const loadMore = () => {
+    if (list.complete || loading.current || list.pods.length === 0) {
+      return
+    }
+    loading.current = true
+    const version = list.version
+    fetchPods(namespace, search, podKey(list.pods[list.pods.length - 1])).then(pods => {
+      if (pods) {
+        setList(l => l.version !== version ? l :
+          { ...l, pods: applyChanges(l.pods, true, { updated: pods, removed: [] }), complete: pods.length < PAGE_SIZE })
+      }
+    }).finally(() => loading.current = false)
+  }
+  const first = Math.floor(scrollTop / ROW_HEIGHT)
+  const visible = list.pods.slice(first, first + VISIBLE_ROWS + 1)
+  return (
+    <div className="pod-picker">
+      <TextInput
+        aria-label="Search pods"
+        placeholder={ pod || "Search pods..." }
+        isDisabled={ isDisabled || !namespace }
+        value={search}
+        onChange={setSearch}
+        onFocus={() => setOpen(true)}
+        onBlur={() => setOpen(false)}
+      />
+      { open && namespace &&
+        <div
+          className="pf-c-select__menu pod-picker-menu"
+          style={{ height: Math.max(1, Math.min(list.pods.length, VISIBLE_ROWS)) * ROW_HEIGHT }}
+          onMouseDown={e => e.preventDefault() /* keep the focus in the input */}
+          onScroll={e => {
+            setScrollTop(e.target.scrollTop)
+            if (e.target.scrollTop + e.target.clientHeight >= list.pods.length * ROW_HEIGHT - VISIBLE_ROWS * ROW_HEIGHT) {
+              loadMore()
+            }
+          }}
+        >
+          <div style={{ position: "relative", height: list.pods.length * ROW_HEIGHT }}>
+            { visible.map((r, i) => (
+              <button
+                key={ podKey(r) }
+                className="pf-c-select__menu-item pod-picker-item"
+                style={{ top: (first + i) * ROW_HEIGHT, height: ROW_HEIGHT }}
+                onClick={() => {
+                  onSelect(r.podName)
+                  setSearch("")
+                  setOpen(false)
+                }}
+              >{ r.podName }</button>
+            ))}
+          </div>
+        </div>
+      }
+    </div>
+  )
+}
+
+function startRecording(namespace, pod, live, events, allocations) {
+  return fetch("/proxy/start?namespace=" + namespace + "&pod=" + pod + "&live=" + live
+      + (allocations ? "&allocations=" + allocations : events ? "&events=" + encodeURIComponent(events) : ""), { method: "POST" })
     .catch(error => console.error(error))
 }
 
@@ -34,10 +176,53 @@ function fetchStatus(namespace, pod) {
     .then(res => res.text(), error => console.error(error));
 }
 
+function fetchReport(namespace, pod, filter, event, time) {
+  return fetch("/proxy/report?namespace=" + namespace + "&pod=" + pod + "&top=25&filter=" + encodeURIComponent(filter || "") + eventParam(event) + "&time=" + time)
+    .then(res => res.ok ? res.json() : undefined, error => console.error(error))
+}
+
+function fetchEvents(namespace, pod) {
+  return fetch("/proxy/events?namespace=" + namespace + "&pod=" + pod)
+    .then(res => res.ok ? res.json() : [], error => console.error(error))
+}
+
+function eventParam(event) {
+  return event ? "&event=" + encodeURIComponent(event) : ""
+}
+
+function ReportTable({ report }) {
+  if (!report) {
+    return null
+  }
+  const percent = value => report.samples > 0 ? (100 * value / report.samples).toFixed(2) + "%" : ""
+  return (
+    <table className="pf-c-table pf-m-compact pf-m-grid-md" role="grid">
+      <thead>
+        <tr>
+          <th>Function</th>
+          <th>Self</th>
+          <th>Total</th>
+        </tr>
+      </thead>
+      <tbody>
+        { report.functions.map((f, i) => (
+          <tr key={i}>
+            <td className="report-function" title={ f.function }>{ f.function }</td>
+            <td>{ f.self } ({ percent(f.self) })</td>
+            <td>{ f.total } ({ percent(f.total) })</td>
+          </tr>
+        ))}
+      </tbody>
+    </table>
+  )
+}
+
 function statusValue(status) {
   switch (status) {
     case "perf record": return 0;
+    case "tracing allocations": return 0;
     case "perf script": return 1;
+    case "remote processing": return 1;
     case "stackcollapse": return 2;
     case "flamegraph": return 3;
     case "idle": return 4;
@@ -46,25 +231,70 @@ function statusValue(status) {
 }
 
 function App() {
-  const [registered, setRegistered] = useState()
-  useEffect(() => fetchRegistered().then(setRegistered), [])
+  const [namespaces, setNamespaces] = useState()
+  useEffect(() => fetchNamespaces().then(setNamespaces), [])
   useEffect(() => {
-    const timer = setInterval(() => fetchRegistered().then(setRegistered), 10000);
+    const timer = setInterval(() => fetchNamespaces().then(setNamespaces), 10000);
     return () => clearInterval(timer);
   }, []);
   const [nsOpen, setNsOpen] = useState(false)
   const [namespace, setNamespace] = useState()
-  const [podOpen, setPodOpen] = useState(false)
   const [pod, setPod] = useState()
   const [colorsOpen, setColorsOpen] = useState()
   const [colors, setColors] = useState("hot")
   const [inverted, setInverted] = useState(true)
+  const [events, setEvents] = useState("")
+  const [profileOpen, setProfileOpen] = useState(false)
+  const [allocations, setAllocations] = useState()
+  const [recordedEvents, setRecordedEvents] = useState([])
+  const [eventOpen, setEventOpen] = useState(false)
+  const [event, setEvent] = useState()
   const [symfs, setSymfs] = useState(false)
   const [recording, setRecording] = useState(false)
+  const [live, setLive] = useState(false)
+  const [liveTime, setLiveTime] = useState()
+  useEffect(() => {
+    if (!recording || !live || allocations) {
+      setLiveTime(undefined)
+      return
+    }
+    const timer = setInterval(() => setLiveTime(new Date().getTime()), 10000);
+    return () => clearInterval(timer);
+  }, [recording, live, allocations]);
   const [busy, setBusy] = useState(false)
   const statusTimer = useRef()
   const [status, setStatus] = useState("idle")
   const [chartReadyTime, setChartReadyTime] = useState()
+  const [report, setReport] = useState()
+  const [reportFilter, setReportFilter] = useState("")
+  useEffect(() => {
+    if (chartReadyTime) {
+      fetchEvents(namespace, pod).then(evs => {
+        setRecordedEvents(evs || [])
+        setEvent(evs && evs.length > 0 ? evs[0] : undefined)
+      })
+    } else {
+      setRecordedEvents([])
+      setEvent(undefined)
+    }
+  }, [namespace, pod, chartReadyTime])
+  useEffect(() => {
+    if (!chartReadyTime) {
+      setReport(undefined)
+      return
+    }
+    let cancelled = false
+    // wait until the user stops typing the filter; responses to superseded requests are dropped
+    const timer = setTimeout(() => fetchReport(namespace, pod, reportFilter, event, chartReadyTime).then(report => {
+      if (!cancelled) {
+        setReport(report)
+      }
+    }), 300)
+    return () => {
+      cancelled = true
+      clearTimeout(timer)
+    }
+  }, [namespace, pod, reportFilter, event, chartReadyTime])
   const updateStatus = () => {
     fetchStatus(namespace, pod).then(status => {
       setStatus(status)
@@ -83,6 +313,8 @@ function App() {
       >
         <PageSection style={{ "display" : "flex"}}>
           <Select
+            variant={SelectVariant.typeahead}
+            typeAheadAriaLabel="Select namespace"
             isDisabled={recording || busy}
             placeholderText="Select namespace..."
             isOpen={nsOpen}
@@ -93,30 +325,27 @@ function App() {
               setNsOpen(false)
               setChartReadyTime(undefined)
             }}
+            onClear={() => {
+              setNamespace(undefined)
+              setPod(undefined)
+              setChartReadyTime(undefined)
+            }}
             selections={namespace}
             menuAppendTo="parent"
           >
-            { registered && registered.map(r => r.namespace)
-                .sort().filter((el,i,a) => (i===a.indexOf(el)))
-                .map((ns, i) => (<SelectOption key={i} value={ns} /> )) }
+            { namespaces && namespaces.map(ns => (
+              <SelectOption key={ns.namespace} value={ns.namespace} description={ ns.pods + (ns.pods === 1 ? " pod" : " pods") } />
+            )) }
           </Select>
-          <Select
+          <PodPicker
+            namespace={namespace}
+            pod={pod}
             isDisabled={recording || busy}
-            placeholderText="Select pod..."
-            isOpen={podOpen}
-            onToggle={setPodOpen}
-            onSelect={(_, p) => {
+            onSelect={p => {
               setPod(p)
-              setPodOpen(false)
               setChartReadyTime(undefined)
             }}
-            selections={pod}
-            menuAppendTo="parent"
-          >
-            { registered && registered.filter(r => r.namespace === namespace)
-                .map(r => r.podName).sort()
-                .map((p, i) => (<SelectOption key={i} value={p} /> )) }
-          </Select>
+          />
           <Button
             isDisabled={ !namespace || !pod || busy }
             onClick={ () => {
@@ -130,11 +359,40 @@ function App() {
                   }, _ => setBusy(false))
               } else {
                 setStatus("perf record")
-                startRecording(namespace, pod)
+                startRecording(namespace, pod, live && !allocations, events, allocations)
                   .then(_ => setRecording(true)).finally(() => setBusy(false))
               }
             }}
           >{ recording ? "Stop recording" : "Start recording" }</Button>
+          <Select
+            isDisabled={recording || busy}
+            isOpen={profileOpen}
+            onToggle={setProfileOpen}
+            onSelect={(_, p) => {
+              setAllocations(p === "cpu" ? undefined : p)
+              setProfileOpen(false)
+            }}
+            selections={allocations || "cpu"}
+            menuAppendTo="parent"
+          >
+            <SelectOption key={0} value="cpu">CPU</SelectOption>
+            <SelectOption key={1} value="malloc">Allocations (malloc)</SelectOption>
+            <SelectOption key={2} value="mmap">Allocations (mmap)</SelectOption>
+          </Select>
+          <Checkbox
+            label="Live"
+            isDisabled={recording || busy || !!allocations}
+            isChecked={live}
+            onChange={setLive}
+          />
+          <TextInput
+            aria-label="Events"
+            placeholder="Events, e.g. cycles,page-faults"
+            isDisabled={recording || busy || !!allocations}
+            value={events}
+            onChange={setEvents}
+            style={{ "width": "20em" }}
+          />
           <Checkbox
             label="Use&nbsp;--symfs"
             isChecked={symfs}
@@ -168,20 +426,52 @@ function App() {
             isChecked={inverted}
             onChange={setInverted}
           />
+          {
+            chartReadyTime && recordedEvents.length > 1 &&
+            <Select
+              isOpen={eventOpen}
+              onToggle={setEventOpen}
+              onSelect={(_, ev) => {
+                setEvent(ev)
+                setEventOpen(false)
+              }}
+              selections={event}
+              menuAppendTo="parent"
+            >
+              { recordedEvents.map((ev, i) => (<SelectOption key={i} value={ev} /> )) }
+            </Select>
+          }
           {
             chartReadyTime &&
             <Button
               component="a" variant="primary"
-              href={"/proxy/chart?namespace=" + namespace + "&pod=" + pod + "&time=" + chartReadyTime + "&download=true"}
+              href={"/proxy/chart?namespace=" + namespace + "&pod=" + pod + "&time=" + chartReadyTime + eventParam(event) + "&download=true"}
               target="_blank">
               Download
             </Button>
           }
+          {
+            chartReadyTime && ["pprof", "jfr"].map(format => (
+              <Button
+                key={format}
+                component="a" variant="secondary"
+                href={"/proxy/chart?namespace=" + namespace + "&pod=" + pod + "&time=" + chartReadyTime + eventParam(event) + "&download=true&format=" + format}
+                target="_blank">
+                { format === "jfr" ? "JFR" : "pprof" }
+              </Button>
+            ))
+          }
         </PageSection>
         <PageSection>
             { recording &&
               <div style={{ height: "100px" }}><Spinner size="xl" />Recording...</div>
             }
+            { recording && liveTime &&
+              <object type="image/svg+xml"
+                data={ "/proxy/chart?namespace=" + namespace + "&pod=" + pod + "&live=true&time=" + liveTime}
+                alt={ "Live flamegraph for " + namespace + "/" + pod }
+              />
+            }
             { statusTimer.current && status !== "idle" &&
               <Progress
                 min={0} max={4} value={statusValue(status)}
@@ -190,10 +480,21 @@ function App() {
               />
             }
             { chartReadyTime &&
-              <object type="image/svg+xml"
-                data={ "/proxy/chart?namespace=" + namespace + "&pod=" + pod + "&time=" + chartReadyTime}
-                alt={ "Flamegraph for " + namespace + "/" + pod }
-              />
+              <div className="chart-with-report">
+                <object type="image/svg+xml"
+                  data={ "/proxy/chart?namespace=" + namespace + "&pod=" + pod + "&time=" + chartReadyTime + eventParam(event)}
+                  alt={ "Flamegraph for " + namespace + "/" + pod + (event ? " (" + event + ")" : "") }
+                />
+                <div className="report">
+                  <TextInput
+                    aria-label="Filter functions"
+                    placeholder="Filter functions (regex)..."
+                    value={reportFilter}
+                    onChange={setReportFilter}
+                  />
+                  <ReportTable report={report} />
+                </div>
+              </div>
             }
         </PageSection>
       </Page>
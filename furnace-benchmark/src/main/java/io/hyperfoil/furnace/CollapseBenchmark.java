@@ -0,0 +1,121 @@
+package io.hyperfoil.furnace;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.vertx.core.json.JsonArray;
+
+/**
+ * Post-processing done in the JVM on the output of <code>stackcollapse-perf.pl</code>: merging and transforming
+ * the collapsed stacks (<code>merge</code> in memory, <code>mergeSpilling</code> with a small memory budget
+ * that forces spilling sorted runs to disk), the top-N report and the pprof/JFR exports. The input is generated by
+ * {@link PerfScriptGenerator}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.jboss.logging.provider=jdk")
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class CollapseBenchmark {
+   private static final java.util.logging.Logger ROOT_LOGGER = java.util.logging.Logger.getLogger("");
+   // the example from README
+   private static final String TRANSFORMS = "[" +
+         "{ \"type\": \"rename\", \"pattern\": \"^Interpreter$\", \"replacement\": \"[interpreter]\" }," +
+         "{ \"type\": \"drop-frames\", \"pattern\": \"^(itable|vtable) stub$\" }," +
+         "{ \"type\": \"drop-stacks\", \"pattern\": \"^swapper$\", \"root\": true }," +
+         "{ \"type\": \"merge-thread-pools\" }" +
+         "]";
+
+   @Param({ "16", "64" })
+   int depth;
+
+   @Param({ "1000", "100000" })
+   int cardinality;
+
+   @Param("10000000")
+   long samples;
+
+   // memory budget in MB for mergeSpilling
+   @Param("16")
+   int spillBudget;
+
+   private File dir;
+   private File collapsed;
+   private File output;
+   private StackTransforms transforms;
+
+   @Setup
+   public void setup() throws IOException {
+      ROOT_LOGGER.setLevel(Level.WARNING);
+      dir = Files.createTempDirectory("furnace-benchmark").toFile();
+      collapsed = new File(dir, "perf.collapsed");
+      output = new File(dir, "output");
+      new PerfScriptGenerator(depth, cardinality, samples, 42).writeCollapsed(collapsed);
+      transforms = StackTransforms.parse(new JsonArray(TRANSFORMS));
+   }
+
+   @TearDown
+   public void tearDown() throws IOException {
+      deleteRecursively(dir);
+   }
+
+   @Benchmark
+   public long merge() throws IOException {
+      try (CollapsedStacks stacks = new CollapsedStacks(transforms, dir, Long.MAX_VALUE)) {
+         stacks.read(collapsed);
+         stacks.write(output);
+         return stacks.samples();
+      }
+   }
+
+   @Benchmark
+   public long mergeSpilling() throws IOException {
+      try (CollapsedStacks stacks = new CollapsedStacks(transforms, dir, (long) spillBudget << 20)) {
+         stacks.read(collapsed);
+         stacks.write(output);
+         return stacks.samples();
+      }
+   }
+
+   @Benchmark
+   public Report.Top report() throws IOException {
+      return Report.read(collapsed.toPath(), null, null).top(100, false);
+   }
+
+   @Benchmark
+   public File pprof() throws IOException {
+      PprofExport.write(collapsed, output, 0, 60_000, 99);
+      return output;
+   }
+
+   @Benchmark
+   public File jfr() throws IOException {
+      JfrExport.write(collapsed, output, 0, 60_000);
+      return output;
+   }
+
+   static void deleteRecursively(File dir) throws IOException {
+      try (Stream<java.nio.file.Path> paths = Files.walk(dir.toPath())) {
+         paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+      }
+   }
+}
@@ -0,0 +1,89 @@
+package io.hyperfoil.furnace;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The external stages of {@link Controller} processing, <code>stackcollapse-perf.pl --all</code> on the output
+ * of <code>perf script</code> and <code>flamegraph.pl</code> on the collapsed stacks, with the same arguments
+ * as the sidecar uses. Requires the <a href="https://github.com/brendangregg/FlameGraph">FlameGraph</a> scripts
+ * (<code>-p flameGraph=/path/to/FlameGraph</code>, installed in <code>/root/FlameGraph</code> in the Furnace
+ * image); exclude this benchmark with <code>-e FlameGraph</code> when these are not available.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+public class FlameGraphBenchmark {
+   @Param("/root/FlameGraph")
+   String flameGraph;
+
+   @Param("32")
+   int depth;
+
+   @Param({ "1000", "100000" })
+   int cardinality;
+
+   @Param("100000")
+   long samples;
+
+   private File dir;
+   private File script;
+   private File collapsed;
+   private File output;
+
+   @Setup
+   public void setup() throws IOException {
+      if (!new File(flameGraph, "stackcollapse-perf.pl").isFile() || !new File(flameGraph, "flamegraph.pl").isFile()) {
+         throw new IllegalStateException("FlameGraph scripts not found in " + flameGraph +
+               ", set -p flameGraph=... or exclude the benchmark with -e FlameGraph");
+      }
+      dir = Files.createTempDirectory("furnace-benchmark").toFile();
+      script = new File(dir, "perf.script");
+      collapsed = new File(dir, "perf.collapsed");
+      output = new File(dir, "output");
+      PerfScriptGenerator generator = new PerfScriptGenerator(depth, cardinality, samples, 42);
+      generator.writeScript(script);
+      generator.writeCollapsed(collapsed);
+   }
+
+   @TearDown
+   public void tearDown() throws IOException {
+      CollapseBenchmark.deleteRecursively(dir);
+   }
+
+   @Benchmark
+   public int stackcollapse() throws IOException, InterruptedException {
+      return run(new ProcessBuilder(flameGraph + "/stackcollapse-perf.pl", "--all", script.toString()));
+   }
+
+   @Benchmark
+   public int flamegraph() throws IOException, InterruptedException {
+      return run(new ProcessBuilder(flameGraph + "/flamegraph.pl", "--title", "benchmark", collapsed.toString()));
+   }
+
+   private int run(ProcessBuilder builder) throws IOException, InterruptedException {
+      int rc = builder.redirectError(ProcessBuilder.Redirect.INHERIT).redirectOutput(output).start().waitFor();
+      if (rc != 0) {
+         throw new IllegalStateException("Non-zero return code " + rc + " from " + builder.command());
+      }
+      return rc;
+   }
+}
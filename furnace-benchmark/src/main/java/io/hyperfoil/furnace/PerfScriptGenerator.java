@@ -0,0 +1,231 @@
+package io.hyperfoil.furnace;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Generates synthetic output of <code>perf script</code> (<code>perf.script</code>) and the equivalent
+ * collapsed stacks (<code>perf.collapsed</code>) with configurable shape:
+ * <ul>
+ *    <li><code>depth</code>: maximum number of frames in a stack, the stacks have between half and full depth</li>
+ *    <li><code>cardinality</code>: number of distinct stacks</li>
+ *    <li><code>samples</code>: total number of samples; every stack is sampled at least once (if there are enough
+ *        samples) and the rest is skewed towards a few hot stacks</li>
+ * </ul>
+ * Frames near the root are picked from a small set so that the stacks share prefixes as in a real application.
+ * Stacks mix native frames (<code>libjvm.so</code>), JIT-compiled Java frames (<code>/tmp/perf-1.map</code>,
+ * annotated <code>_[j]</code>) and kernel frames (annotated <code>_[k]</code>).
+ * <p>
+ * Run as <code>java -cp ... io.hyperfoil.furnace.PerfScriptGenerator --depth 32 --cardinality 10000
+ * --samples 1000000 /tmp/corpus</code>.
+ */
+public class PerfScriptGenerator {
+   private static final String[] THREAD_PREFIXES = { "executor-thread-", "vert.x-eventloop-thread-", "pool-1-thread-" };
+   private static final String[] ROOT_FRAMES = { "start_thread", "thread_native_entry", "Thread::call_run", "JavaThread::run",
+         "JavaCalls::call_helper", "call_stub" };
+   private static final String[] KERNEL_FRAMES = { "entry_SYSCALL_64_after_hwframe", "do_syscall_64", "__x64_sys_futex",
+         "do_futex", "futex_wait", "__x64_sys_epoll_wait", "do_epoll_wait", "ep_poll", "schedule_hrtimeout_range",
+         "__x64_sys_write", "ksys_write", "vfs_write", "sock_write_iter", "tcp_sendmsg", "tcp_sendmsg_locked",
+         "__tcp_push_pending_frames", "tcp_write_xmit", "ip_output", "schedule", "__schedule", "finish_task_switch" };
+   private static final String JIT_DSO = "/tmp/perf-1.map";
+   private static final String JVM_DSO = "/usr/lib/jvm/java-11/lib/server/libjvm.so";
+   private static final String KERNEL_DSO = "[kernel.kallsyms]";
+
+   private final int depth;
+   private final int cardinality;
+   private final long samples;
+   private final long seed;
+   private final int threads;
+   private List<List<Frame>> stacks;
+   private long[] counts;
+
+   public PerfScriptGenerator(int depth, int cardinality, long samples, long seed) {
+      if (depth < ROOT_FRAMES.length + 2) {
+         throw new IllegalArgumentException("Depth must be at least " + (ROOT_FRAMES.length + 2));
+      }
+      if (cardinality <= 0) {
+         throw new IllegalArgumentException("Cardinality must be positive");
+      }
+      this.depth = depth;
+      this.cardinality = cardinality;
+      this.samples = samples;
+      this.seed = seed;
+      this.threads = Math.max(1, Math.min(64, cardinality / 100));
+   }
+
+   public static void main(String[] args) throws IOException {
+      int depth = 32;
+      int cardinality = 10000;
+      long samples = 1000000;
+      long seed = 42;
+      File dir = null;
+      for (int i = 0; i < args.length; ++i) {
+         switch (args[i]) {
+            case "--depth":
+               depth = Integer.parseInt(args[++i]);
+               break;
+            case "--cardinality":
+               cardinality = Integer.parseInt(args[++i]);
+               break;
+            case "--samples":
+               samples = Long.parseLong(args[++i]);
+               break;
+            case "--seed":
+               seed = Long.parseLong(args[++i]);
+               break;
+            default:
+               dir = new File(args[i]);
+         }
+      }
+      if (dir == null) {
+         System.err.println("Usage: PerfScriptGenerator [--depth N] [--cardinality N] [--samples N] [--seed N] <output dir>");
+         System.exit(1);
+      }
+      if (!dir.isDirectory() && !dir.mkdirs()) {
+         throw new IOException("Cannot create " + dir);
+      }
+      PerfScriptGenerator generator = new PerfScriptGenerator(depth, cardinality, samples, seed);
+      generator.writeScript(new File(dir, "perf.script"));
+      generator.writeCollapsed(new File(dir, "perf.collapsed"));
+   }
+
+   /**
+    * Writes the samples in the format of <code>perf script</code>, leaf frames first.
+    */
+   public void writeScript(File file) throws IOException {
+      generate();
+      Random random = new Random(seed);
+      // sample the stacks in random order, with the same counts as in the collapsed file
+      long[] remaining = counts.clone();
+      int[] active = new int[stacks.size()];
+      int numActive = 0;
+      for (int i = 0; i < stacks.size(); ++i) {
+         if (remaining[i] > 0) {
+            active[numActive++] = i;
+         }
+      }
+      long timestamp = 1_000_000_000L;
+      try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8))) {
+         while (numActive > 0) {
+            int index = random.nextInt(numActive);
+            int stack = active[index];
+            if (--remaining[stack] == 0) {
+               active[index] = active[--numActive];
+            }
+            List<Frame> frames = stacks.get(stack);
+            timestamp += 1 + random.nextInt(20000);
+            writer.printf(Locale.ROOT, "%s %d/%d [%03d] %d.%06d: %d cycles: %n", frames.get(0).name, 1, 100 + stack % threads,
+                  random.nextInt(16), timestamp / 1_000_000, timestamp % 1_000_000, 100000 + random.nextInt(10000));
+            for (int i = frames.size() - 1; i > 0; --i) {
+               Frame frame = frames.get(i);
+               writer.printf(Locale.ROOT, "\t%16x %s+0x%x (%s)%n", frame.address, frame.name, random.nextInt(0x200), frame.dso);
+            }
+            writer.println();
+         }
+      }
+   }
+
+   /**
+    * Writes the stacks in the format of <code>stackcollapse-perf.pl --all</code>, thread name first.
+    */
+   public void writeCollapsed(File file) throws IOException {
+      generate();
+      try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8))) {
+         StringBuilder sb = new StringBuilder();
+         for (int i = 0; i < stacks.size(); ++i) {
+            if (counts[i] == 0) {
+               continue;
+            }
+            sb.setLength(0);
+            for (Frame frame : stacks.get(i)) {
+               if (sb.length() > 0) {
+                  sb.append(';');
+               }
+               sb.append(frame.name);
+               if (frame.dso == JIT_DSO) {
+                  sb.append("_[j]");
+               } else if (frame.dso == KERNEL_DSO) {
+                  sb.append("_[k]");
+               }
+            }
+            writer.print(sb);
+            writer.print(' ');
+            writer.println(counts[i]);
+         }
+      }
+   }
+
+   private void generate() {
+      if (stacks != null) {
+         return;
+      }
+      Random random = new Random(seed);
+      // stacks have at least depth / 2 frames, the vocabulary must be large enough to reach the cardinality
+      int javaFrames = Math.max(16, (int) Math.ceil(Math.pow(cardinality, 2.0 / depth)) * 4);
+      stacks = new ArrayList<>(cardinality);
+      Set<String> unique = new HashSet<>();
+      int attempts = 0;
+      while (stacks.size() < cardinality) {
+         if (++attempts > cardinality * 100) {
+            throw new IllegalStateException("Cannot generate " + cardinality + " distinct stacks with depth " + depth);
+         }
+         List<Frame> stack = new ArrayList<>(depth + 1);
+         stack.add(new Frame(THREAD_PREFIXES[random.nextInt(THREAD_PREFIXES.length)] + random.nextInt(threads), null));
+         for (String root : ROOT_FRAMES) {
+            stack.add(new Frame(root, JVM_DSO));
+         }
+         int length = Math.max(stack.size() + 1, depth / 2 + random.nextInt(depth - depth / 2 + 1));
+         boolean kernel = random.nextInt(5) == 0;
+         int kernelFrames = kernel ? Math.min(1 + random.nextInt(6), length - stack.size() + 1) : 0;
+         int level = 0;
+         while (stack.size() <= length - kernelFrames) {
+            // frames close to the root are shared by many stacks
+            int choices = Math.min(javaFrames, 2 + level * javaFrames / 8);
+            double r = random.nextDouble();
+            int method = (int) (choices * r * r);
+            stack.add(new Frame("com.example.module" + (method % 7) + ".Class" + (method / 7) + "::method" + level % 5, JIT_DSO));
+            ++level;
+         }
+         for (int i = 0; i < kernelFrames; ++i) {
+            stack.add(new Frame(KERNEL_FRAMES[(i == 0 ? 0 : 1 + random.nextInt(KERNEL_FRAMES.length - 1))], KERNEL_DSO));
+         }
+         StringBuilder key = new StringBuilder();
+         for (Frame frame : stack) {
+            key.append(frame.name).append(';');
+         }
+         if (unique.add(key.toString())) {
+            stacks.add(stack);
+         }
+      }
+      counts = new long[cardinality];
+      long remaining = samples;
+      for (int i = 0; i < cardinality && remaining > 0; ++i, --remaining) {
+         counts[i] = 1;
+      }
+      for (; remaining > 0; --remaining) {
+         double r = random.nextDouble();
+         counts[(int) (cardinality * r * r * r)]++;
+      }
+   }
+
+   private static class Frame {
+      final String name;
+      final String dso;
+      final long address;
+
+      Frame(String name, String dso) {
+         this.name = name;
+         this.dso = dso;
+         this.address = (dso == KERNEL_DSO ? 0xffffffff81000000L : 0x7f0000000000L) + (name.hashCode() & 0xFFFFFFFL);
+      }
+   }
+}
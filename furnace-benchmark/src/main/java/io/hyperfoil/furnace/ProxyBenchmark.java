@@ -0,0 +1,89 @@
+package io.hyperfoil.furnace;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import javax.ws.rs.WebApplicationException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Registrations and lookups in a single {@link Proxy} replica. In the <code>churn</code> group one thread keeps
+ * re-registering random pods (each renewal replaces the registration, as when the sidecars renew their leases
+ * or pods are replaced) while the other threads resolve controllers of random pods, which creates a client
+ * for every registration it has not seen yet. Leases are shortened to one second so that the expiration runs
+ * during the measurement.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = { "-Dorg.jboss.logging.provider=jdk", "-Dfurnace.lease=1" })
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ProxyBenchmark {
+   private static final java.util.logging.Logger ROOT_LOGGER = java.util.logging.Logger.getLogger("");
+
+   @Param({ "100", "10000" })
+   int pods;
+
+   private Proxy proxy;
+
+   @Setup
+   public void setup() {
+      ROOT_LOGGER.setLevel(Level.WARNING);
+      proxy = new Proxy();
+      // not clustered: PROXY_SELF_URL is not set
+      proxy.cluster = new ProxyCluster();
+      proxy.init();
+      for (int i = 0; i < pods; ++i) {
+         proxy.register(registration(i), false);
+      }
+   }
+
+   @TearDown
+   public void tearDown() {
+      proxy.destroy();
+   }
+
+   @Benchmark
+   @Group("churn")
+   @GroupThreads(1)
+   public long register() {
+      return proxy.register(registration(ThreadLocalRandom.current().nextInt(pods)), false);
+   }
+
+   @Benchmark
+   @Group("churn")
+   @GroupThreads(3)
+   public ControllerClient controller() {
+      int pod = ThreadLocalRandom.current().nextInt(pods);
+      try {
+         return proxy.controller(namespace(pod), "pod-" + pod);
+      } catch (WebApplicationException e) {
+         // the lease expired before the pod was renewed
+         return null;
+      }
+   }
+
+   private static Proxy.Registration registration(int pod) {
+      return Proxy.Registration.create("pod-" + pod, namespace(pod), "10.128." + (pod >> 8 & 0xFF) + "." + (pod & 0xFF), 12380, 0);
+   }
+
+   private static String namespace(int pod) {
+      return "namespace-" + (pod % 50);
+   }
+}
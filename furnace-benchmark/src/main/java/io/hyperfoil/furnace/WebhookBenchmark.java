@@ -0,0 +1,160 @@
+package io.hyperfoil.furnace;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Admission of a pod by {@link Webhook#mutate(JsonObject)}. The pods are modeled on application deployments:
+ * each container has environment, probes, resources and mounts, and the pod carries the usual labels and
+ * annotations (including <code>kubectl.kubernetes.io/last-applied-configuration</code>).
+ * <code>roundTrip</code> includes decoding the request and encoding the response as done by the REST layer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.jboss.logging.provider=jdk")
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class WebhookBenchmark {
+   // JUL keeps only weak references to loggers
+   private static final java.util.logging.Logger ROOT_LOGGER = java.util.logging.Logger.getLogger("");
+
+   @Param({ "1", "5" })
+   int containers;
+
+   @Param({ "true", "false" })
+   boolean inject;
+
+   private Webhook webhook;
+   private JsonObject request;
+   private String encoded;
+
+   @Setup
+   public void setup() {
+      // measure the admission, not the console
+      ROOT_LOGGER.setLevel(Level.WARNING);
+      webhook = new Webhook();
+      request = admissionReview(containers, inject);
+      encoded = request.encode();
+   }
+
+   @Benchmark
+   public JsonObject mutate() {
+      return webhook.mutate(request);
+   }
+
+   @Benchmark
+   public String roundTrip() {
+      return webhook.mutate(new JsonObject(encoded)).encode();
+   }
+
+   static JsonObject admissionReview(int numContainers, boolean inject) {
+      JsonObject labels = new JsonObject()
+            .put("app", "checkout")
+            .put("app.kubernetes.io/name", "checkout")
+            .put("app.kubernetes.io/version", "1.42.0")
+            .put("app.kubernetes.io/part-of", "shop")
+            .put("pod-template-hash", "7d9f8b6c5d");
+      if (inject) {
+         labels.put("furnace", "true");
+      }
+      JsonArray containers = new JsonArray();
+      for (int i = 0; i < numContainers; ++i) {
+         JsonArray env = new JsonArray();
+         for (int j = 0; j < 20; ++j) {
+            env.add(new JsonObject().put("name", "CONFIG_VARIABLE_" + j).put("value", "value-of-the-configuration-variable-" + j));
+         }
+         env.add(new JsonObject().put("name", "DB_PASSWORD").put("valueFrom",
+               new JsonObject().put("secretKeyRef", new JsonObject().put("name", "db").put("key", "password"))));
+         containers.add(new JsonObject()
+               .put("name", i == 0 ? "checkout" : "sidecar-" + i)
+               .put("image", "quay.io/example/checkout-" + i + "@sha256:3c4e5f1a2b3c4d5e6f708192a3b4c5d6e7f8091a2b3c4d5e6f708192a3b4c5d6")
+               .put("imagePullPolicy", "IfNotPresent")
+               .put("args", new JsonArray().add("-Xmx512m").add("-XX:+UseG1GC").add("-jar").add("/deployments/app.jar"))
+               .put("ports", new JsonArray().add(new JsonObject().put("containerPort", 8080 + i).put("protocol", "TCP")))
+               .put("env", env)
+               .put("resources", new JsonObject()
+                     .put("limits", new JsonObject().put("cpu", "2").put("memory", "1Gi"))
+                     .put("requests", new JsonObject().put("cpu", "500m").put("memory", "512Mi")))
+               .put("readinessProbe", probe("/q/health/ready", 8080 + i))
+               .put("livenessProbe", probe("/q/health/live", 8080 + i))
+               .put("volumeMounts", new JsonArray()
+                     .add(new JsonObject().put("name", "config").put("mountPath", "/deployments/config").put("readOnly", true))
+                     .add(new JsonObject().put("name", "kube-api-access-x7k2p").put("mountPath", "/var/run/secrets/kubernetes.io/serviceaccount").put("readOnly", true)))
+               .put("terminationMessagePath", "/dev/termination-log")
+               .put("terminationMessagePolicy", "File"));
+      }
+      JsonObject spec = new JsonObject()
+            .put("containers", containers)
+            .put("volumes", new JsonArray()
+                  .add(new JsonObject().put("name", "config").put("configMap", new JsonObject().put("name", "checkout-config")))
+                  .add(new JsonObject().put("name", "kube-api-access-x7k2p").put("projected", new JsonObject().put("defaultMode", 420))))
+            .put("imagePullSecrets", new JsonArray().add(new JsonObject().put("name", "quay-pull-secret")))
+            .put("serviceAccountName", "checkout")
+            .put("restartPolicy", "Always")
+            .put("terminationGracePeriodSeconds", 30)
+            .put("dnsPolicy", "ClusterFirst")
+            .put("affinity", new JsonObject().put("podAntiAffinity", new JsonObject().put("preferredDuringSchedulingIgnoredDuringExecution",
+                  new JsonArray().add(new JsonObject().put("weight", 100).put("podAffinityTerm", new JsonObject()
+                        .put("topologyKey", "kubernetes.io/hostname")
+                        .put("labelSelector", new JsonObject().put("matchLabels", new JsonObject().put("app", "checkout"))))))))
+            .put("tolerations", new JsonArray()
+                  .add(new JsonObject().put("key", "node.kubernetes.io/not-ready").put("operator", "Exists").put("effect", "NoExecute").put("tolerationSeconds", 300))
+                  .add(new JsonObject().put("key", "node.kubernetes.io/unreachable").put("operator", "Exists").put("effect", "NoExecute").put("tolerationSeconds", 300)));
+      JsonObject metadata = new JsonObject()
+            .put("generateName", "checkout-7d9f8b6c5d-")
+            .put("namespace", "shop")
+            .put("labels", labels)
+            .put("annotations", new JsonObject()
+                  .put("kubectl.kubernetes.io/last-applied-configuration", new JsonObject().put("spec", spec.copy()).encode())
+                  .put("prometheus.io/scrape", "true")
+                  .put("prometheus.io/port", "8080"))
+            .put("ownerReferences", new JsonArray().add(new JsonObject()
+                  .put("apiVersion", "apps/v1").put("kind", "ReplicaSet").put("name", "checkout-7d9f8b6c5d")
+                  .put("uid", "5c1f0a9e-8d1b-4c5e-9a7f-2b3c4d5e6f70").put("controller", true).put("blockOwnerDeletion", true)));
+      JsonObject pod = new JsonObject()
+            .put("apiVersion", "v1")
+            .put("kind", "Pod")
+            .put("metadata", metadata)
+            .put("spec", spec)
+            .put("status", new JsonObject());
+      JsonObject request = new JsonObject()
+            .put("uid", "0f3c8e2a-1b4d-4e6f-8a9b-0c1d2e3f4a5b")
+            .put("kind", new JsonObject().put("group", "").put("version", "v1").put("kind", "Pod"))
+            .put("resource", new JsonObject().put("group", "").put("version", "v1").put("resource", "pods"))
+            .put("namespace", "shop")
+            .put("operation", "CREATE")
+            .put("userInfo", new JsonObject().put("username", "system:serviceaccount:kube-system:replicaset-controller")
+                  .put("groups", new JsonArray().add("system:serviceaccounts").add("system:serviceaccounts:kube-system").add("system:authenticated")))
+            .put("object", pod)
+            .put("dryRun", false);
+      return new JsonObject()
+            .put("apiVersion", "admission.k8s.io/v1")
+            .put("kind", "AdmissionReview")
+            .put("request", request);
+   }
+
+   private static JsonObject probe(String path, int port) {
+      return new JsonObject()
+            .put("httpGet", new JsonObject().put("path", path).put("port", port).put("scheme", "HTTP"))
+            .put("initialDelaySeconds", 5)
+            .put("periodSeconds", 10)
+            .put("timeoutSeconds", 1)
+            .put("failureThreshold", 3);
+   }
+}